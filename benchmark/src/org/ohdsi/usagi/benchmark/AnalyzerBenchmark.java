@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.ohdsi.usagi.UsagiAnalyzer;
+import org.ohdsi.usagi.indexBuilding.SyntheticVocabularyGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Tokenization of a term by the UsagiAnalyzer. This does not need an index.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnalyzerBenchmark {
+	private UsagiAnalyzer	analyzer;
+	private List<String>	terms;
+	private int				index;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		analyzer = new UsagiAnalyzer();
+		SyntheticVocabularyGenerator generator = new SyntheticVocabularyGenerator();
+		terms = new ArrayList<String>(1000);
+		for (int i = 0; i < 1000; i++)
+			terms.add(generator.getConceptName(i));
+	}
+
+	@Benchmark
+	public void tokenize(Blackhole blackhole) throws IOException {
+		index = (index + 1) % terms.size();
+		TokenStream tokenStream = analyzer.tokenStream("TERM", terms.get(index));
+		CharTermAttribute charTermAttribute = tokenStream.addAttribute(CharTermAttribute.class);
+		tokenStream.reset();
+		while (tokenStream.incrementToken())
+			blackhole.consume(charTermAttribute.length());
+		tokenStream.end();
+		tokenStream.close();
+	}
+}
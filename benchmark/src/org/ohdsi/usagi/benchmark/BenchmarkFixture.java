@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.ohdsi.usagi.BerkeleyDbEngine;
+import org.ohdsi.usagi.UsagiSearchEngine;
+import org.ohdsi.usagi.indexBuilding.IndexBuildCoordinator;
+import org.ohdsi.usagi.indexBuilding.SyntheticVocabularyGenerator;
+import org.ohdsi.usagi.ui.Global;
+
+/**
+ * Index of a synthetic vocabulary, shared by the benchmarks. The index is built once per size in the temp folder (or the folder specified by the
+ * usagi.benchmark.folder system property) and reused by later runs, so only the first fork pays for the build.
+ */
+public class BenchmarkFixture {
+	public String						folder;
+	public int							conceptCount;
+	public SyntheticVocabularyGenerator	generator;
+	public UsagiSearchEngine			usagiSearchEngine;
+	public BerkeleyDbEngine				dbEngine;
+
+	/**
+	 * Opens the fixture of the given size, building it first if needed.
+	 */
+	public static BenchmarkFixture open(int conceptCount) {
+		String root = System.getProperty("usagi.benchmark.folder", System.getProperty("java.io.tmpdir") + "/usagiBenchmark");
+		BenchmarkFixture fixture = new BenchmarkFixture();
+		fixture.conceptCount = conceptCount;
+		fixture.folder = root + "/" + conceptCount;
+		fixture.generator = new SyntheticVocabularyGenerator();
+		fixture.generator.conceptCount = conceptCount;
+		Global.folder = fixture.folder;
+		if (!new UsagiSearchEngine(fixture.folder).mainIndexIsCurrent())
+			fixture.build();
+		fixture.dbEngine = new BerkeleyDbEngine(fixture.folder);
+		fixture.dbEngine.openForReading();
+		Global.dbEngine = fixture.dbEngine;
+		fixture.usagiSearchEngine = new UsagiSearchEngine(fixture.folder);
+		fixture.usagiSearchEngine.openIndexForSearching(false);
+		Global.usagiSearchEngine = fixture.usagiSearchEngine;
+		return fixture;
+	}
+
+	public void close() {
+		usagiSearchEngine.close();
+		dbEngine.shutdown();
+		Global.usagiSearchEngine = null;
+		Global.dbEngine = null;
+	}
+
+	/**
+	 * Returns a deterministic set of search terms, resembling source code names: concept names with some words dropped, abbreviated or misspelled.
+	 */
+	public List<String> createQueries(int count) {
+		Random random = new Random(count);
+		List<String> queries = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++)
+			queries.add(generator.distort(generator.getConceptName(random.nextInt(conceptCount)), random));
+		return queries;
+	}
+
+	private void build() {
+		String vocabFolder = folder + "/vocabulary";
+		generator.generateVocabulary(vocabFolder);
+		new IndexBuildCoordinator().new BuildThread(vocabFolder, null, null, null).run();
+	}
+}
@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi.benchmark;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.ohdsi.usagi.Concept;
+import org.ohdsi.usagi.ParentChildRelationShip;
+import org.ohdsi.usagi.indexBuilding.SyntheticVocabularyGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Concept and hierarchy lookups in the Berkeley database, as performed for every search result and when browsing concepts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConceptLookupBenchmark {
+	@Param({ "10000" })
+	public int					conceptCount;
+
+	private BenchmarkFixture	fixture;
+	private int[]				conceptIds;
+	private int					index;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		fixture = BenchmarkFixture.open(conceptCount);
+		Random random = new Random(0);
+		conceptIds = new int[1000];
+		for (int i = 0; i < conceptIds.length; i++)
+			conceptIds[i] = SyntheticVocabularyGenerator.FIRST_CONCEPT_ID + random.nextInt(conceptCount);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		fixture.close();
+	}
+
+	private int nextConceptId() {
+		index = (index + 1) % conceptIds.length;
+		return conceptIds[index];
+	}
+
+	@Benchmark
+	public Concept getConcept() {
+		return fixture.dbEngine.getConcept(nextConceptId());
+	}
+
+	@Benchmark
+	public List<ParentChildRelationShip> getChildren() {
+		return fixture.dbEngine.getParentChildRelationshipsByParentConceptId(nextConceptId());
+	}
+
+	@Benchmark
+	public List<ParentChildRelationShip> getParents() {
+		return fixture.dbEngine.getParentChildRelationshipsByChildConceptId(nextConceptId());
+	}
+}
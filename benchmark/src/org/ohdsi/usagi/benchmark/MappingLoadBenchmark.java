@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi.benchmark;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.ohdsi.usagi.CodeMapping;
+import org.ohdsi.usagi.CodeMapping.MappingStatus;
+import org.ohdsi.usagi.ReadCodeMappingsFromFile;
+import org.ohdsi.usagi.SourceCode;
+import org.ohdsi.usagi.WriteCodeMappingsToFile;
+import org.ohdsi.utilities.collections.Pair;
+import org.ohdsi.usagi.indexBuilding.SyntheticVocabularyGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading a mapping file, including the concept lookups for the mapped targets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MappingLoadBenchmark {
+	@Param({ "10000" })
+	public int					conceptCount;
+
+	@Param({ "10000" })
+	public int					mappingCount;
+
+	private BenchmarkFixture	fixture;
+	private String				filename;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		fixture = BenchmarkFixture.open(conceptCount);
+		filename = fixture.folder + "/mapping_" + mappingCount + ".csv";
+		Random random = new Random(0);
+		WriteCodeMappingsToFile out = new WriteCodeMappingsToFile(filename);
+		int i = 0;
+		for (String query : fixture.createQueries(mappingCount)) {
+			SourceCode sourceCode = new SourceCode();
+			sourceCode.sourceCode = "S" + i++;
+			sourceCode.sourceName = query;
+			sourceCode.sourceFrequency = random.nextInt(1000);
+			sourceCode.sourceAdditionalInfo.add(new Pair<String, String>("Category", "Category " + random.nextInt(10)));
+			CodeMapping codeMapping = new CodeMapping(sourceCode);
+			codeMapping.matchScore = random.nextDouble();
+			codeMapping.mappingStatus = MappingStatus.UNCHECKED;
+			codeMapping.comment = "";
+			int targetCount = random.nextInt(3);
+			for (int j = 0; j < targetCount; j++)
+				codeMapping.targetConcepts.add(fixture.dbEngine.getConcept(SyntheticVocabularyGenerator.FIRST_CONCEPT_ID + random.nextInt(conceptCount)));
+			out.write(codeMapping);
+		}
+		out.close();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		fixture.close();
+		new File(filename).delete();
+	}
+
+	@Benchmark
+	public int readCodeMappings() {
+		int count = 0;
+		for (CodeMapping codeMapping : new ReadCodeMappingsFromFile(filename))
+			count += codeMapping.targetConcepts.size();
+		return count;
+	}
+}
@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.ohdsi.usagi.SourceCode;
+import org.ohdsi.usagi.UsagiSearchEngine.ScoredConcept;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Searching the derived index, either with its segments searched in parallel within each search (interactive use), or after merging it into a single
+ * segment (batch mapping). Run with a single benchmark thread to compare latency, and with as many threads as processors to compare throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParallelSearchBenchmark {
+	@Param({ "10000" })
+	public int					conceptCount;
+
+	@Param({ "20000" })
+	public int					sourceCodeCount;
+
+	@Param({ "1", "4" })
+	public int					searchThreads;
+
+	@Param({ "false", "true" })
+	public boolean				mergeIndex;
+
+	private BenchmarkFixture	fixture;
+	private List<String>		queries;
+	private int					index;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		fixture = BenchmarkFixture.open(conceptCount);
+		fixture.usagiSearchEngine.setSearchThreads(searchThreads);
+		queries = fixture.createQueries(1000);
+		List<SourceCode> sourceCodes = new ArrayList<SourceCode>(sourceCodeCount);
+		for (String sourceName : fixture.createQueries(sourceCodeCount)) {
+			SourceCode sourceCode = new SourceCode();
+			sourceCode.sourceCode = Integer.toString(sourceCodes.size());
+			sourceCode.sourceName = sourceName;
+			sourceCodes.add(sourceCode);
+		}
+		fixture.usagiSearchEngine.createDerivedIndex(sourceCodes);
+		fixture.usagiSearchEngine.openIndexForSearching(true);
+		if (mergeIndex) {
+			fixture.usagiSearchEngine.mergeDerivedIndexInBackground();
+			fixture.usagiSearchEngine.waitForDerivedIndexMerge();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		fixture.close();
+	}
+
+	private String nextQuery() {
+		index = (index + 1) % queries.size();
+		return queries.get(index);
+	}
+
+	@Benchmark
+	public List<ScoredConcept> searchDerivedIndex() {
+		return fixture.usagiSearchEngine.search(nextQuery(), true, null, null, null, null, false, true);
+	}
+}
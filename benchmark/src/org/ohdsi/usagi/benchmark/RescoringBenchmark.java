@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.ohdsi.usagi.UsagiSearchEngine;
+import org.ohdsi.usagi.UsagiSearchEngine.SearchSteps;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The individual steps of a search: building the MoreLikeThis query, retrieving the candidate window, and recomputing the scores of the candidates as
+ * TF*IDF cosine similarity.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RescoringBenchmark {
+	@Param({ "10000" })
+	public int					conceptCount;
+
+	private BenchmarkFixture	fixture;
+	private SearchSteps			searchSteps;
+	private List<String>		queries;
+	private List<Query>			mltQueries;
+	private List<ScoreDoc[]>	hits;
+	private int					index;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		fixture = BenchmarkFixture.open(conceptCount);
+		queries = fixture.createQueries(1000);
+		mltQueries = new ArrayList<Query>(queries.size());
+		hits = new ArrayList<ScoreDoc[]>(queries.size());
+		searchSteps = fixture.usagiSearchEngine.openSearchSteps();
+		for (String query : queries) {
+			Query mltQuery = searchSteps.createMltQuery(query);
+			mltQueries.add(mltQuery);
+			hits.add(searchSteps.luceneSearch(mltQuery, UsagiSearchEngine.CANDIDATE_WINDOW).scoreDocs);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		searchSteps.close();
+		fixture.close();
+	}
+
+	@Benchmark
+	public Query createMltQuery() throws IOException {
+		index = (index + 1) % queries.size();
+		return searchSteps.createMltQuery(queries.get(index));
+	}
+
+	@Benchmark
+	public TopDocs luceneSearch() throws IOException {
+		index = (index + 1) % queries.size();
+		return searchSteps.luceneSearch(mltQueries.get(index), UsagiSearchEngine.CANDIDATE_WINDOW);
+	}
+
+	@Benchmark
+	public ScoreDoc[] recomputeScores() {
+		index = (index + 1) % queries.size();
+		ScoreDoc[] original = hits.get(index);
+		ScoreDoc[] scoreDocs = new ScoreDoc[original.length];
+		for (int i = 0; i < original.length; i++)
+			scoreDocs[i] = new ScoreDoc(original[i].doc, original[i].score);
+		searchSteps.recomputeScores(scoreDocs, mltQueries.get(index));
+		return scoreDocs;
+	}
+}
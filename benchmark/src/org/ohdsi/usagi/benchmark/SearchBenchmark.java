@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi.benchmark;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.ohdsi.usagi.UsagiSearchEngine.ScoredConcept;
+import org.ohdsi.usagi.indexBuilding.SyntheticVocabularyGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end search, as performed for every source code during import and when selecting a code in the user interface.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+	@Param({ "10000" })
+	public int					conceptCount;
+
+	private BenchmarkFixture	fixture;
+	private List<String>		queries;
+	private Vector<String>		filterDomains;
+	private Vector<String>		filterVocabularies;
+	private Set<Integer>		filterConceptIds;
+	private int					index;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		fixture = BenchmarkFixture.open(conceptCount);
+		queries = fixture.createQueries(1000);
+		filterDomains = new Vector<String>();
+		filterDomains.add(SyntheticVocabularyGenerator.DOMAINS[0]);
+		filterVocabularies = new Vector<String>();
+		filterVocabularies.add(SyntheticVocabularyGenerator.VOCABULARIES[0]);
+		filterConceptIds = new HashSet<Integer>();
+		for (int i = 0; i < 10; i++)
+			filterConceptIds.add(SyntheticVocabularyGenerator.FIRST_CONCEPT_ID + i * 7);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		fixture.close();
+	}
+
+	private String nextQuery() {
+		index = (index + 1) % queries.size();
+		return queries.get(index);
+	}
+
+	@Benchmark
+	public List<ScoredConcept> searchNoFilters() {
+		return fixture.usagiSearchEngine.search(nextQuery(), true, null, null, null, null, false, true);
+	}
+
+	@Benchmark
+	public List<ScoredConcept> searchStandardOnly() {
+		return fixture.usagiSearchEngine.search(nextQuery(), true, null, null, null, null, true, false);
+	}
+
+	@Benchmark
+	public List<ScoredConcept> searchDomainAndVocabularyFilters() {
+		return fixture.usagiSearchEngine.search(nextQuery(), true, null, filterDomains, null, filterVocabularies, true, true);
+	}
+
+	@Benchmark
+	public List<ScoredConcept> searchConceptIdFilter() {
+		return fixture.usagiSearchEngine.search(nextQuery(), true, filterConceptIds, null, null, null, false, true);
+	}
+
+	@Benchmark
+	public List<ScoredConcept> searchKeywords() {
+		return fixture.usagiSearchEngine.search(nextQuery(), false, null, null, null, null, false, true);
+	}
+}
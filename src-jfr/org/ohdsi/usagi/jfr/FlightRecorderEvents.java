@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi.jfr;
+
+import jdk.jfr.Event;
+
+/**
+ * The only class apart from the events themselves that refers to the jdk.jfr package. It is compiled separately for Java 11 and only loaded by
+ * {@link UsagiEvents} when Flight Recorder is available.
+ */
+class FlightRecorderEvents implements EventRecorder {
+
+	public Object beginIndexBuildStage() {
+		return begin(new IndexBuildStageEvent());
+	}
+
+	public Object beginDerivedIndex() {
+		return begin(new DerivedIndexEvent());
+	}
+
+	public Object beginImportChunk() {
+		return begin(new ImportChunkEvent());
+	}
+
+	public Object beginSearch() {
+		return begin(new SearchEvent());
+	}
+
+	public Object beginMappingFile() {
+		return begin(new MappingFileEvent());
+	}
+
+	private Object begin(Event event) {
+		if (!event.isEnabled())
+			return null;
+		event.begin();
+		return event;
+	}
+
+	public void endIndexBuildStage(Object handle, String stage, String vocabFolder) {
+		IndexBuildStageEvent event = (IndexBuildStageEvent) handle;
+		event.end();
+		if (event.shouldCommit()) {
+			event.stage = stage;
+			event.vocabFolder = vocabFolder;
+			event.commit();
+		}
+	}
+
+	public void endDerivedIndex(Object handle, int sourceCodeCount) {
+		DerivedIndexEvent event = (DerivedIndexEvent) handle;
+		event.end();
+		if (event.shouldCommit()) {
+			event.sourceCodeCount = sourceCodeCount;
+			event.commit();
+		}
+	}
+
+	public void endImportChunk(Object handle, int firstIndex, int sourceCodeCount, int matchedCount) {
+		ImportChunkEvent event = (ImportChunkEvent) handle;
+		event.end();
+		if (event.shouldCommit()) {
+			event.firstIndex = firstIndex;
+			event.sourceCodeCount = sourceCodeCount;
+			event.matchedCount = matchedCount;
+			event.commit();
+		}
+	}
+
+	public void endSearch(Object handle, int queryLength, int hitCount, int resultCount, boolean filtered) {
+		SearchEvent event = (SearchEvent) handle;
+		event.end();
+		if (event.shouldCommit()) {
+			event.queryLength = queryLength;
+			event.hitCount = hitCount;
+			event.resultCount = resultCount;
+			event.filtered = filtered;
+			event.commit();
+		}
+	}
+
+	public void endMappingFile(Object handle, String operation, String filename, int codeMappingCount) {
+		MappingFileEvent event = (MappingFileEvent) handle;
+		event.end();
+		if (event.shouldCommit()) {
+			event.operation = operation;
+			event.filename = filename;
+			event.codeMappingCount = codeMappingCount;
+			event.commit();
+		}
+	}
+}
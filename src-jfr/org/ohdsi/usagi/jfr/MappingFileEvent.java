@@ -0,0 +1,37 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.ohdsi.usagi.MappingFile")
+@Label("Mapping File")
+@Category({ "Usagi", "Mapping Files" })
+@Description("Loading or saving a mapping file")
+class MappingFileEvent extends Event {
+	@Label("Operation")
+	String	operation;
+
+	@Label("File")
+	String	filename;
+
+	@Label("Code Mappings")
+	int		codeMappingCount;
+}
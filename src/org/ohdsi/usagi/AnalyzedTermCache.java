@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.ohdsi.usagi.ui.Global;
+
+/**
+ * Bounded (least recently used) cache from input text to the terms produced by an analyzer. In a review session the same source names are searched again
+ * every time a row is reselected or a filter is changed, so they need not be run through the n-gram tokenizer again.<br/>
+ * <br/>
+ * The key is the text with each character converted to lower case. The Usagi analyzer lower cases each n-gram character by character after tokenization, so
+ * this gives exactly the same terms. The analyzer itself already reuses its token stream components per thread.
+ */
+public class AnalyzedTermCache {
+	public static int					DEFAULT_MAX_SIZE	= 10000;
+
+	private Analyzer					analyzer;
+	private String						field;
+	private Map<String, AnalyzedTerms>	cache;
+
+	private static LongAdder			hitCount			= Global.metrics.counter("analysis.cacheHits");
+	private static LongAdder			missCount			= Global.metrics.counter("analysis.cacheMisses");
+
+	/**
+	 * The distinct terms of a text, in order of first occurrence, with the number of times each occurs.
+	 */
+	public static class AnalyzedTerms {
+		public String[]	terms;
+		public int[]	frequencies;
+	}
+
+	public AnalyzedTermCache(Analyzer analyzer, String field, int maxSize) {
+		this.analyzer = analyzer;
+		this.field = field;
+		cache = new LinkedHashMap<String, AnalyzedTerms>(16, 0.75f, true) {
+			private static final long	serialVersionUID	= 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, AnalyzedTerms> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns the analyzed terms of the text, analyzing it only if it is not in the cache.
+	 */
+	public AnalyzedTerms get(String text) {
+		String key = toKey(text);
+		synchronized (cache) {
+			AnalyzedTerms analyzedTerms = cache.get(key);
+			if (analyzedTerms != null) {
+				Global.metrics.increment(hitCount, 1);
+				return analyzedTerms;
+			}
+		}
+		Global.metrics.increment(missCount, 1);
+		AnalyzedTerms analyzedTerms = analyze(key);
+		synchronized (cache) {
+			cache.put(key, analyzedTerms);
+		}
+		return analyzedTerms;
+	}
+
+	private AnalyzedTerms analyze(String text) {
+		Map<String, Integer> termToIndex = new LinkedHashMap<String, Integer>();
+		List<Integer> frequencies = new ArrayList<Integer>();
+		try (TokenStream tokenStream = analyzer.tokenStream(field, text)) {
+			CharTermAttribute termAttribute = tokenStream.addAttribute(CharTermAttribute.class);
+			tokenStream.reset();
+			while (tokenStream.incrementToken()) {
+				String term = termAttribute.toString();
+				Integer index = termToIndex.get(term);
+				if (index == null) {
+					termToIndex.put(term, frequencies.size());
+					frequencies.add(1);
+				} else
+					frequencies.set(index, frequencies.get(index) + 1);
+			}
+			tokenStream.end();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		AnalyzedTerms analyzedTerms = new AnalyzedTerms();
+		analyzedTerms.terms = termToIndex.keySet().toArray(new String[termToIndex.size()]);
+		analyzedTerms.frequencies = new int[frequencies.size()];
+		for (int i = 0; i < frequencies.size(); i++)
+			analyzedTerms.frequencies[i] = frequencies.get(i);
+		return analyzedTerms;
+	}
+
+	private static String toKey(String text) {
+		char[] chars = text.toCharArray();
+		for (int i = 0; i < chars.length; i++)
+			chars[i] = Character.toLowerCase(chars[i]);
+		return new String(chars);
+	}
+}
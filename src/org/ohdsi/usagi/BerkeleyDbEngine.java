@@ -164,6 +164,17 @@ public class BerkeleyDbEngine {
 		return conceptDataAccessor.primaryIndex.get(conceptId);
 	}
 
+	/**
+	 * Returns the concepts with the given IDs, with null for IDs not in the database. Pass the IDs in ascending order: consecutive lookups then visit the
+	 * B-tree in key order, so each node is read from disk at most once.
+	 */
+	public Concept[] getConcepts(int[] conceptIds) {
+		Concept[] concepts = new Concept[conceptIds.length];
+		for (int i = 0; i < conceptIds.length; i++)
+			concepts[i] = conceptDataAccessor.primaryIndex.get(conceptIds[i]);
+		return concepts;
+	}
+
 	public void shutdown() throws DatabaseException {
 		try {
 			if (isOpenForReading || isOpenForWriting) {
@@ -35,6 +35,11 @@ public class CodeMapping {
 	public List<Concept>	targetConcepts	= new ArrayList<Concept>(1);
 	public String			comment;
 
+	/**
+	 * The top candidate concepts found during automapping, or null if these were not kept
+	 */
+	public MappingCandidates	candidates;
+
 	public CodeMapping(SourceCode sourceCode) {
 		this.sourceCode = sourceCode;
 	}
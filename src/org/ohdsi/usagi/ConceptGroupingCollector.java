@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TopDocs;
+
+/**
+ * Collects the top K distinct concepts, ranked by their best scoring document (term). A concept can be indexed with many terms (its name, synonyms, and
+ * names of source concepts mapping to it), so collecting the top K documents and removing duplicates afterwards would return fewer than K concepts.<br/>
+ * <br/>
+ * Up to a given number of best scoring documents are kept per concept, because the term with the best Lucene score is not necessarily the term with the
+ * best score after rescoring. Duplicate concepts should therefore be removed after rescoring. The groups are kept in a min-heap on their best document.
+ */
+public class ConceptGroupingCollector extends Collector {
+	public static String		CONCEPT_ID_FIELD	= "CONCEPT_ID";
+
+	private int					maxConcepts;
+	private int					docsPerConcept;
+	private Group[]				heap;
+	private int					size				= 0;
+	private Map<Integer, Group>	conceptIdToGroup	= new HashMap<Integer, Group>();
+	private Scorer				scorer;
+	private NumericDocValues	conceptIds;
+	private int					docBase;
+	private int					totalHits			= 0;
+
+	/**
+	 * @param maxConcepts
+	 *            the number of distinct concepts to collect
+	 * @param docsPerConcept
+	 *            the number of best scoring documents to keep per concept
+	 */
+	public ConceptGroupingCollector(int maxConcepts, int docsPerConcept) {
+		this.maxConcepts = maxConcepts;
+		this.docsPerConcept = docsPerConcept;
+		heap = new Group[maxConcepts];
+	}
+
+	@Override
+	public void setScorer(Scorer scorer) throws IOException {
+		this.scorer = scorer;
+	}
+
+	@Override
+	public void setNextReader(AtomicReaderContext context) throws IOException {
+		docBase = context.docBase;
+		conceptIds = DocValues.getNumeric(context.reader(), CONCEPT_ID_FIELD);
+	}
+
+	@Override
+	public void collect(int doc) throws IOException {
+		totalHits++;
+		float score = scorer.score();
+		add((int) conceptIds.get(doc), score, docBase + doc);
+	}
+
+	/**
+	 * Adds the concepts collected by another collector over different segments of the same index. Because each collector keeps the best documents per
+	 * concept, the top K of the merged groups equals the top K of collecting all segments with a single collector.
+	 */
+	public void merge(ConceptGroupingCollector other) {
+		totalHits += other.totalHits;
+		for (int i = 0; i < other.size; i++) {
+			Group group = other.heap[i];
+			for (int j = 0; j < group.count; j++)
+				add(group.conceptId, group.scores[j], group.docs[j]);
+		}
+	}
+
+	private void add(int conceptId, float score, int doc) {
+		Group group = conceptIdToGroup.get(conceptId);
+		if (group != null) {
+			if (group.add(score, doc) == 0)
+				siftDown(group.heapIndex);
+		} else if (size < maxConcepts) {
+			group = new Group(docsPerConcept);
+			group.conceptId = conceptId;
+			group.add(score, doc);
+			group.heapIndex = size;
+			heap[size++] = group;
+			conceptIdToGroup.put(conceptId, group);
+			siftUp(group.heapIndex);
+		} else if (isBetter(score, doc, heap[0])) {
+			// Replace the worst group:
+			group = heap[0];
+			conceptIdToGroup.remove(group.conceptId);
+			group.conceptId = conceptId;
+			group.count = 0;
+			group.add(score, doc);
+			conceptIdToGroup.put(conceptId, group);
+			siftDown(0);
+		}
+	}
+
+	@Override
+	public boolean acceptsDocsOutOfOrder() {
+		// Ties are broken on document ID explicitly, so collection order does not matter
+		return true;
+	}
+
+	/**
+	 * Returns the kept documents of the top K concepts, sorted by descending score. A concept can have more than one document.
+	 */
+	public TopDocs topDocs() {
+		int docCount = 0;
+		for (int i = 0; i < size; i++)
+			docCount += heap[i].count;
+		ScoreDoc[] scoreDocs = new ScoreDoc[docCount];
+		docCount = 0;
+		for (int i = 0; i < size; i++)
+			for (int j = 0; j < heap[i].count; j++)
+				scoreDocs[docCount++] = new ScoreDoc(heap[i].docs[j], heap[i].scores[j]);
+		Arrays.sort(scoreDocs, Comparator.comparingDouble((ScoreDoc scoreDoc) -> -scoreDoc.score).thenComparingInt(scoreDoc -> scoreDoc.doc));
+		return new TopDocs(totalHits, scoreDocs, docCount == 0 ? Float.NaN : scoreDocs[0].score);
+	}
+
+	private static boolean isBetter(float score, int doc, float otherScore, int otherDoc) {
+		return score > otherScore || (score == otherScore && doc < otherDoc);
+	}
+
+	private static boolean isBetter(float score, int doc, Group group) {
+		return isBetter(score, doc, group.scores[0], group.docs[0]);
+	}
+
+	private void siftUp(int index) {
+		Group group = heap[index];
+		while (index > 0) {
+			int parent = (index - 1) >>> 1;
+			if (!isBetter(heap[parent].scores[0], heap[parent].docs[0], group))
+				break;
+			heap[index] = heap[parent];
+			heap[index].heapIndex = index;
+			index = parent;
+		}
+		heap[index] = group;
+		group.heapIndex = index;
+	}
+
+	private void siftDown(int index) {
+		Group group = heap[index];
+		while (true) {
+			int child = 2 * index + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && isBetter(heap[child].scores[0], heap[child].docs[0], heap[child + 1]))
+				child++;
+			if (!isBetter(group.scores[0], group.docs[0], heap[child]))
+				break;
+			heap[index] = heap[child];
+			heap[index].heapIndex = index;
+			index = child;
+		}
+		heap[index] = group;
+		group.heapIndex = index;
+	}
+
+	/**
+	 * The best documents of a concept, sorted from best to worst.
+	 */
+	private static class Group {
+		public int		conceptId;
+		public int[]	docs;
+		public float[]	scores;
+		public int		count	= 0;
+		public int		maxDocs;
+		public int		heapIndex;
+
+		public Group(int maxDocs) {
+			this.maxDocs = maxDocs;
+			docs = new int[Math.min(maxDocs, 4)];
+			scores = new float[docs.length];
+		}
+
+		/**
+		 * Adds the document if it is among the best. Returns its position, or -1 if it was not added.
+		 */
+		public int add(float score, int doc) {
+			int position = count;
+			while (position > 0 && isBetter(score, doc, scores[position - 1], docs[position - 1]))
+				position--;
+			if (position == maxDocs)
+				return -1;
+			if (count == docs.length && count < maxDocs) {
+				docs = Arrays.copyOf(docs, Math.min(count * 2, maxDocs));
+				scores = Arrays.copyOf(scores, docs.length);
+			}
+			int moved = Math.min(count, docs.length - 1) - position;
+			System.arraycopy(docs, position, docs, position + 1, moved);
+			System.arraycopy(scores, position, scores, position + 1, moved);
+			docs[position] = doc;
+			scores[position] = score;
+			if (count < docs.length)
+				count++;
+			return position;
+		}
+	}
+}
@@ -0,0 +1,236 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.packed.PackedInts;
+
+/**
+ * Rescores hits as plain TF*IDF cosine similarity between the query and each hit. Reading term vectors is far too slow to rescore more than a few hundred
+ * hits, so when the index is opened the terms of every document are precomputed from the postings: each document becomes a run of term ordinals in a single
+ * bit-packed array, plus its vector norm. Scoring a hit is then a loop over primitive arrays, cheap enough to rescore a candidate window that is much larger
+ * than the final number of results.<br/>
+ * <br/>
+ * The precomputed vectors stay on the heap for as long as the index is open. They take one term ordinal per distinct term of each document, at
+ * log2(number of distinct terms) bits per ordinal, plus 12 bytes per document for its offset and norm, plus about 150 bytes per distinct term for the
+ * dictionary. The terms are character 2- and 3-grams, so a document has about as many distinct terms as characters. The 20,000-concept benchmark
+ * vocabulary (19,118 documents, 1.3 million postings) takes 2.3 MB. A vocabulary of 10 million terms of 40 characters takes roughly 1 GB. When the
+ * index is reopened, for instance to switch to the derived index, the old and the new vectors are briefly on the heap together, so plan for twice that
+ * amount.<br/>
+ * <br/>
+ * Instances are safe to use from multiple threads.
+ */
+public class CosineRescorer {
+	private Map<BytesRef, Integer>	termToOrdinal	= new HashMap<BytesRef, Integer>();
+	private int						numDocs;
+	private int[]					docFreq;
+	private double[]				idf;
+	private int[]					docStart;
+	private PackedInts.Mutable		docTerms;
+	private double[]				docNorm;
+	private ThreadLocal<double[]>	queryWeights	= new ThreadLocal<double[]>();
+
+	/**
+	 * @param reader
+	 *            The reader of the index
+	 * @param field
+	 *            The field to compute the vectors on
+	 * @param documents
+	 *            The documents that can be rescored. Other documents still count towards the IDF, but their vectors are not kept in memory. Set to null to
+	 *            include all documents
+	 */
+	public CosineRescorer(IndexReader reader, String field, Bits documents) throws IOException {
+		numDocs = reader.numDocs();
+		int maxDoc = reader.maxDoc();
+		Bits liveDocs = MultiFields.getLiveDocs(reader);
+		Terms terms = MultiFields.getTerms(reader, field);
+		int termCount = 0;
+		docFreq = new int[0];
+		idf = new double[0];
+		int[] docTermCount = new int[maxDoc];
+		docNorm = new double[maxDoc];
+		long totalTermCount = 0;
+
+		// First pass over the postings: build the term dictionary and count the terms of each document:
+		DocsEnum docsEnum = null;
+		if (terms != null) {
+			TermsEnum termsEnum = terms.iterator(null);
+			BytesRef term;
+			while ((term = termsEnum.next()) != null) {
+				int ordinal = termCount++;
+				termToOrdinal.put(BytesRef.deepCopyOf(term), ordinal);
+				docFreq = ArrayUtil.grow(docFreq, termCount);
+				idf = ArrayUtil.grow(idf, termCount);
+				docFreq[ordinal] = termsEnum.docFreq();
+				idf[ordinal] = Math.log(numDocs / (double) docFreq[ordinal]);
+				double weight = idf[ordinal] * idf[ordinal];
+				docsEnum = termsEnum.docs(liveDocs, docsEnum, DocsEnum.FLAG_NONE);
+				int doc;
+				while ((doc = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS)
+					if (documents == null || documents.get(doc)) {
+						docTermCount[doc]++;
+						docNorm[doc] += weight;
+						totalTermCount++;
+					}
+			}
+		}
+		if (totalTermCount > Integer.MAX_VALUE)
+			throw new RuntimeException("Too many terms in index to precompute document vectors: " + totalTermCount);
+
+		docStart = new int[maxDoc + 1];
+		for (int doc = 0; doc < maxDoc; doc++) {
+			docStart[doc + 1] = docStart[doc] + docTermCount[doc];
+			docNorm[doc] = Math.sqrt(docNorm[doc]);
+			docTermCount[doc] = 0;
+		}
+
+		// Second pass: fill in the term ordinals. Terms are enumerated in order, so the ordinals of each document end up sorted:
+		docTerms = PackedInts.getMutable((int) totalTermCount, PackedInts.bitsRequired(Math.max(1, termCount - 1)), PackedInts.COMPACT);
+		if (terms != null) {
+			TermsEnum termsEnum = terms.iterator(null);
+			int ordinal = 0;
+			while (termsEnum.next() != null) {
+				docsEnum = termsEnum.docs(liveDocs, docsEnum, DocsEnum.FLAG_NONE);
+				int doc;
+				while ((doc = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS)
+					if (documents == null || documents.get(doc))
+						docTerms.set(docStart[doc] + docTermCount[doc]++, ordinal);
+				ordinal++;
+			}
+		}
+	}
+
+	/**
+	 * Replaces the score of each hit with the cosine similarity between the query and the hit.
+	 * 
+	 * @param scoreDocs
+	 *            The hits to rescore
+	 * @param query
+	 *            The query used for retrieval. Must be a TermQuery, or a BooleanQuery of TermQueries
+	 * @return false if the query could not be converted to a vector, in which case the scores are left unchanged
+	 */
+	public boolean rescore(ScoreDoc[] scoreDocs, Query query) {
+		int[] queryOrdinals = getTermOrdinals(query);
+		if (queryOrdinals == null)
+			return false;
+		rescore(scoreDocs, queryOrdinals);
+		return true;
+	}
+
+	/**
+	 * Returns the ordinals of the terms of a TermQuery or a BooleanQuery of TermQueries, with -1 for terms not in the index. Returns null for other queries.
+	 */
+	public int[] getTermOrdinals(Query query) {
+		if (query instanceof TermQuery)
+			return new int[] { getOrdinal(((TermQuery) query).getTerm().bytes()) };
+		else if (query instanceof BooleanQuery) {
+			BooleanClause[] clauses = ((BooleanQuery) query).getClauses();
+			int[] queryOrdinals = new int[clauses.length];
+			for (int i = 0; i < clauses.length; i++) {
+				if (!(clauses[i].getQuery() instanceof TermQuery))
+					return null;
+				queryOrdinals[i] = getOrdinal(((TermQuery) clauses[i].getQuery()).getTerm().bytes());
+			}
+			return queryOrdinals;
+		} else
+			return null;
+	}
+
+	/**
+	 * Replaces the score of each hit with the cosine similarity between the query and the hit.
+	 * 
+	 * @param scoreDocs
+	 *            The hits to rescore
+	 * @param queryOrdinals
+	 *            The ordinals of the query terms. Ordinals of -1 are ignored
+	 */
+	public void rescore(ScoreDoc[] scoreDocs, int[] queryOrdinals) {
+		// Scatter the query vector into a dense array indexed by term ordinal, so each term of a hit costs a single array lookup:
+		double[] weights = queryWeights.get();
+		if (weights == null || weights.length < idf.length) {
+			weights = new double[idf.length];
+			queryWeights.set(weights);
+		}
+		double queryNorm = 0;
+		for (int ordinal : queryOrdinals)
+			if (ordinal != -1 && weights[ordinal] == 0) {
+				weights[ordinal] = idf[ordinal] * idf[ordinal];
+				queryNorm += weights[ordinal];
+			}
+		queryNorm = Math.sqrt(queryNorm);
+
+		try {
+			for (ScoreDoc scoreDoc : scoreDocs) {
+				int doc = scoreDoc.doc;
+				double dotProduct = 0;
+				for (int i = docStart[doc]; i < docStart[doc + 1]; i++)
+					dotProduct += weights[(int) docTerms.get(i)];
+				if (queryNorm == 0 || docNorm[doc] == 0)
+					scoreDoc.score = 0;
+				else
+					scoreDoc.score = (float) (dotProduct / (queryNorm * docNorm[doc]));
+			}
+		} finally {
+			for (int ordinal : queryOrdinals)
+				if (ordinal != -1)
+					weights[ordinal] = 0;
+		}
+	}
+
+	/**
+	 * Returns the ordinal of a term in the dictionary of the field, or -1 if the term does not occur in the index.
+	 */
+	public int getOrdinal(String term) {
+		return getOrdinal(new BytesRef(term));
+	}
+
+	public int getDocFreq(int ordinal) {
+		return docFreq[ordinal];
+	}
+
+	public int getNumDocs() {
+		return numDocs;
+	}
+
+	/**
+	 * Returns the approximate number of bytes used by the precomputed vectors.
+	 */
+	public long ramBytesUsed() {
+		return docTerms.ramBytesUsed() + 4L * docStart.length + 8L * docNorm.length + 4L * docFreq.length + 8L * idf.length;
+	}
+
+	private int getOrdinal(BytesRef term) {
+		Integer ordinal = termToOrdinal.get(term);
+		return ordinal == null ? -1 : ordinal;
+	}
+}
@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Hash table from normalized term (lower case, with runs of whitespace collapsed to a single space) to the concepts having that term as name or synonym.
+ * Many source names match a concept term exactly, and can be resolved with a single lookup instead of a full search.<br/>
+ * <br/>
+ * The table is an open-addressing array of 16-byte slots, each holding the 64-bit hash of a term, a concept ID, and flags. Terms themselves are not kept, so
+ * the table stays compact; with a 64-bit hash the odds of a collision are negligible. The table is loaded into a direct (off-heap) buffer, and lookups are
+ * safe from multiple threads.
+ */
+public class ExactMatchIndex {
+	public static int			FILE_MAGIC		= 0x55534D58;
+	public static int			FILE_VERSION	= 1;
+
+	private static int			HEADER_SIZE		= 16;
+	private static int			SLOT_SIZE		= 16;
+	private static int			SOURCE_TERM		= 1;
+
+	private ByteBuffer			table;
+	private int					slotMask;
+
+	public static class Match {
+		public int		conceptId;
+		public boolean	sourceTerm;
+
+		public Match(int conceptId, boolean sourceTerm) {
+			this.conceptId = conceptId;
+			this.sourceTerm = sourceTerm;
+		}
+	}
+
+	/**
+	 * Loads the table from file.
+	 * 
+	 * @return null if the file does not exist
+	 */
+	public static ExactMatchIndex open(String filename) {
+		File file = new File(filename);
+		if (!file.exists())
+			return null;
+		try (FileInputStream in = new FileInputStream(file)) {
+			FileChannel channel = in.getChannel();
+			long fileSize = channel.size();
+			if (fileSize < HEADER_SIZE)
+				throw new IOException("Not an exact match index: " + filename);
+			if (fileSize > Integer.MAX_VALUE)
+				throw new IOException("Exact match index larger than 2GB: " + filename);
+			ByteBuffer buffer = ByteBuffer.allocateDirect((int) fileSize);
+			while (buffer.hasRemaining())
+				if (channel.read(buffer) == -1)
+					throw new IOException("Unexpected end of file: " + filename);
+			if (buffer.getInt(0) != FILE_MAGIC)
+				throw new IOException("Not an exact match index: " + filename);
+			if (buffer.getInt(4) != FILE_VERSION)
+				throw new IOException("Unsupported exact match index version " + buffer.getInt(4) + ": " + filename);
+			long slotCount = buffer.getInt(8);
+			if (Long.bitCount(slotCount) != 1 || HEADER_SIZE + slotCount * SLOT_SIZE != fileSize)
+				throw new IOException("Corrupt exact match index: " + filename);
+			ExactMatchIndex index = new ExactMatchIndex();
+			index.slotMask = buffer.getInt(8) - 1;
+			index.table = buffer;
+			return index;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns all concepts having the term as name or synonym, after normalization.
+	 */
+	public List<Match> lookup(String term) {
+		List<Match> matches = new ArrayList<Match>(1);
+		long hash = hash(normalize(term));
+		int slot = (int) hash & slotMask;
+		while (true) {
+			int offset = HEADER_SIZE + slot * SLOT_SIZE;
+			long slotHash = table.getLong(offset);
+			if (slotHash == 0)
+				return matches;
+			if (slotHash == hash)
+				matches.add(new Match(table.getInt(offset + 8), (table.getInt(offset + 12) & SOURCE_TERM) != 0));
+			slot = (slot + 1) & slotMask;
+		}
+	}
+
+	/**
+	 * Converts to lower case, trims, and collapses runs of whitespace to a single space.
+	 */
+	public static String normalize(String term) {
+		StringBuilder normalized = new StringBuilder(term.length());
+		boolean pendingSpace = false;
+		for (int i = 0; i < term.length(); i++) {
+			char ch = term.charAt(i);
+			if (Character.isWhitespace(ch))
+				pendingSpace = normalized.length() != 0;
+			else {
+				if (pendingSpace) {
+					normalized.append(' ');
+					pendingSpace = false;
+				}
+				normalized.append(Character.toLowerCase(ch));
+			}
+		}
+		return normalized.toString();
+	}
+
+	/**
+	 * 64-bit FNV-1a hash with a final avalanche step, so the low bits can be used directly as slot index. Never returns 0, which marks an empty slot.
+	 */
+	private static long hash(String term) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < term.length(); i++) {
+			hash ^= term.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash == 0 ? 1 : hash;
+	}
+
+	/**
+	 * Collects terms while the main index is built, and writes the table when done.
+	 */
+	public static class Builder {
+		private long[]	hashes		= new long[1024];
+		private int[]	conceptIds	= new int[1024];
+		private int[]	flags		= new int[1024];
+		private int		size		= 0;
+
+		public void add(String term, int conceptId, boolean sourceTerm) {
+			if (size == hashes.length) {
+				hashes = Arrays.copyOf(hashes, size * 2);
+				conceptIds = Arrays.copyOf(conceptIds, size * 2);
+				flags = Arrays.copyOf(flags, size * 2);
+			}
+			hashes[size] = hash(normalize(term));
+			conceptIds[size] = conceptId;
+			flags[size] = sourceTerm ? SOURCE_TERM : 0;
+			size++;
+		}
+
+		public void write(String filename) {
+			// Keep the load factor at or below 0.5, so probe sequences stay short:
+			long slotCount = Long.highestOneBit(Math.max(16, size * 2L - 1)) << 1;
+			// The table is addressed with int offsets, and loaded into a single buffer:
+			long fileSize = HEADER_SIZE + slotCount * SLOT_SIZE;
+			if (fileSize > Integer.MAX_VALUE)
+				throw new RuntimeException("Too many terms for the exact match index: " + size + " terms would need " + fileSize + " bytes, the maximum is 2GB");
+			int slotMask = (int) slotCount - 1;
+			ByteBuffer buffer = ByteBuffer.allocate((int) fileSize);
+			buffer.putInt(0, FILE_MAGIC);
+			buffer.putInt(4, FILE_VERSION);
+			buffer.putInt(8, (int) slotCount);
+			buffer.putInt(12, size);
+			for (int i = 0; i < size; i++) {
+				int slot = (int) hashes[i] & slotMask;
+				while (buffer.getLong(HEADER_SIZE + slot * SLOT_SIZE) != 0)
+					slot = (slot + 1) & slotMask;
+				int offset = HEADER_SIZE + slot * SLOT_SIZE;
+				buffer.putLong(offset, hashes[i]);
+				buffer.putInt(offset + 8, conceptIds[i]);
+				buffer.putInt(offset + 12, flags[i]);
+			}
+			try (FileOutputStream out = new FileOutputStream(filename)) {
+				FileChannel channel = out.getChannel();
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
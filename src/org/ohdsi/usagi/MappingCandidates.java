@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.ohdsi.usagi.UsagiSearchEngine.ScoredConcept;
+import org.ohdsi.usagi.ui.Global;
+import org.ohdsi.utilities.StringUtilities;
+
+/**
+ * Holds the top scoring candidate concepts that were found for a source code during automapping, so they can be shown again without repeating the search.
+ * Concepts are stored by ID and only resolved when needed.
+ */
+public class MappingCandidates {
+	public static int	DEFAULT_COUNT	= 10;
+
+	public int[]		conceptIds;
+	public float[]		scores;
+	public String[]		terms;
+
+	/**
+	 * Describes the filters that were used in the search that produced these candidates. See {@link #filterSignature}.
+	 */
+	public String		filterSignature;
+
+	/**
+	 * True if these are all the concepts the search found, false if the search results were cut off. Incomplete candidates can only stand in for a search
+	 * that needs no more results than there are candidates.
+	 */
+	public boolean		complete;
+
+	public MappingCandidates(int size, String filterSignature) {
+		conceptIds = new int[size];
+		scores = new float[size];
+		terms = new String[size];
+		this.filterSignature = filterSignature;
+	}
+
+	/**
+	 * Creates candidates from the search results.
+	 * 
+	 * @param scoredConcepts
+	 *            the search results, ordered by descending score
+	 * @param maxCount
+	 *            the maximum number of candidates to keep. The search must have been allowed to return at least this many results
+	 * @param filterSignature
+	 *            the signature of the filters used in the search
+	 * @param termPool
+	 *            used to share identical term strings between source codes. Must be thread safe if used from multiple threads. Can be null
+	 */
+	public static MappingCandidates fromScoredConcepts(List<ScoredConcept> scoredConcepts, int maxCount, String filterSignature, Map<String, String> termPool) {
+		MappingCandidates candidates = new MappingCandidates(Math.min(maxCount, scoredConcepts.size()), filterSignature);
+		// Fewer results than allowed means the search found nothing more:
+		candidates.complete = scoredConcepts.size() < maxCount;
+		for (int i = 0; i < candidates.size(); i++) {
+			ScoredConcept scoredConcept = scoredConcepts.get(i);
+			candidates.conceptIds[i] = scoredConcept.concept.conceptId;
+			candidates.scores[i] = scoredConcept.matchScore;
+			String term = scoredConcept.term;
+			if (termPool != null) {
+				String pooled = termPool.putIfAbsent(term, term);
+				if (pooled != null)
+					term = pooled;
+			}
+			candidates.terms[i] = term;
+		}
+		return candidates;
+	}
+
+	public int size() {
+		return conceptIds.length;
+	}
+
+	/**
+	 * Resolves the candidate concepts in the database. Concepts that no longer exist are skipped.
+	 */
+	public List<ScoredConcept> toScoredConcepts() {
+		List<ScoredConcept> scoredConcepts = new ArrayList<ScoredConcept>(size());
+		for (int i = 0; i < size(); i++) {
+			Concept concept = Global.dbEngine.getConcept(conceptIds[i]);
+			if (concept != null)
+				scoredConcepts.add(new ScoredConcept(scores[i], terms[i], concept));
+		}
+		return scoredConcepts;
+	}
+
+	/**
+	 * Creates a string that uniquely identifies a combination of search filters. Candidates can only be reused if the current filters have the same
+	 * signature as the ones used to find them.
+	 * 
+	 * @param filterByAuto
+	 *            whether the search was actually restricted to automatically assigned concept IDs, so false if the source code has none
+	 */
+	public static String filterSignature(boolean filterByAuto, Collection<String> filterDomains, Collection<String> filterConceptClasses,
+			Collection<String> filterVocabularies, boolean filterStandard, boolean includeSourceConcepts) {
+		StringBuilder signature = new StringBuilder();
+		signature.append("auto=").append(filterByAuto);
+		signature.append("|domains=").append(filterDomains == null ? "" : StringUtilities.join(filterDomains, ","));
+		signature.append("|classes=").append(filterConceptClasses == null ? "" : StringUtilities.join(filterConceptClasses, ","));
+		signature.append("|vocabularies=").append(filterVocabularies == null ? "" : StringUtilities.join(filterVocabularies, ","));
+		signature.append("|standard=").append(filterStandard);
+		signature.append("|source=").append(includeSourceConcepts);
+		return signature.toString();
+	}
+}
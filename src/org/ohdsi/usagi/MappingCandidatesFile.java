@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads and writes the candidate concepts of code mappings to a compact binary file that sits next to the mapping file. All strings are stored once in a
+ * string table and referred to by index. Candidates are matched to code mappings on source code and source name.
+ */
+public class MappingCandidatesFile {
+	public static String	EXTENSION	= ".candidates";
+	private static int		MAGIC		= 0x55534743;	// "USGC"
+	private static int		VERSION		= 2;
+
+	/**
+	 * Returns the name of the candidates file belonging to a mapping file.
+	 */
+	public static String getFilename(String mappingFilename) {
+		return mappingFilename + EXTENSION;
+	}
+
+	/**
+	 * Writes the candidates of all code mappings that have them. If none of the code mappings has candidates, any existing file is removed so stale
+	 * candidates are not picked up later.
+	 */
+	public static void write(String filename, List<CodeMapping> codeMappings) {
+		List<CodeMapping> withCandidates = new ArrayList<CodeMapping>();
+		for (CodeMapping codeMapping : codeMappings)
+			if (codeMapping.candidates != null)
+				withCandidates.add(codeMapping);
+		File file = new File(filename);
+		if (withCandidates.size() == 0) {
+			if (file.exists())
+				file.delete();
+			return;
+		}
+		Map<String, Integer> string2Index = new HashMap<String, Integer>();
+		List<String> strings = new ArrayList<String>();
+		for (CodeMapping codeMapping : withCandidates) {
+			addString(codeMapping.candidates.filterSignature, string2Index, strings);
+			for (String term : codeMapping.candidates.terms)
+				addString(term, string2Index, strings);
+		}
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file), 65536)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(strings.size());
+			for (String string : strings)
+				out.writeUTF(string);
+			out.writeInt(withCandidates.size());
+			for (CodeMapping codeMapping : withCandidates) {
+				MappingCandidates candidates = codeMapping.candidates;
+				out.writeUTF(codeMapping.sourceCode.sourceCode);
+				out.writeUTF(codeMapping.sourceCode.sourceName);
+				out.writeInt(string2Index.get(candidates.filterSignature));
+				out.writeInt(candidates.size());
+				out.writeBoolean(candidates.complete);
+				for (int i = 0; i < candidates.size(); i++) {
+					out.writeInt(candidates.conceptIds[i]);
+					out.writeFloat(candidates.scores[i]);
+					out.writeInt(string2Index.get(candidates.terms[i]));
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void addString(String string, Map<String, Integer> string2Index, List<String> strings) {
+		if (!string2Index.containsKey(string)) {
+			string2Index.put(string, strings.size());
+			strings.add(string);
+		}
+	}
+
+	/**
+	 * Reads the candidates from file and attaches them to the matching code mappings.
+	 * 
+	 * @return the number of code mappings that received candidates
+	 */
+	public static int read(String filename, List<CodeMapping> codeMappings) {
+		Map<String, MappingCandidates> key2Candidates = new HashMap<String, MappingCandidates>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(filename), 65536)))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a candidates file: " + filename);
+			int version = in.readInt();
+			if (version != 1 && version != VERSION)
+				throw new IOException("Unsupported candidates file version " + version + ": " + filename);
+			String[] strings = new String[in.readInt()];
+			for (int i = 0; i < strings.length; i++)
+				strings[i] = in.readUTF();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String sourceCode = in.readUTF();
+				String sourceName = in.readUTF();
+				String filterSignature = strings[in.readInt()];
+				MappingCandidates candidates = new MappingCandidates(in.readInt(), filterSignature);
+				// Version 1 did not record whether the candidates were cut off:
+				candidates.complete = version == 1 ? false : in.readBoolean();
+				for (int j = 0; j < candidates.size(); j++) {
+					candidates.conceptIds[j] = in.readInt();
+					candidates.scores[j] = in.readFloat();
+					candidates.terms[j] = strings[in.readInt()];
+				}
+				key2Candidates.put(createKey(sourceCode, sourceName), candidates);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		int attached = 0;
+		for (CodeMapping codeMapping : codeMappings) {
+			MappingCandidates candidates = key2Candidates.get(createKey(codeMapping.sourceCode.sourceCode, codeMapping.sourceCode.sourceName));
+			if (candidates != null) {
+				codeMapping.candidates = candidates;
+				attached++;
+			}
+		}
+		return attached;
+	}
+
+	private static String createKey(String sourceCode, String sourceName) {
+		return sourceCode + "\t" + sourceName;
+	}
+}
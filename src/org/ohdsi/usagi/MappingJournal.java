@@ -0,0 +1,493 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.ohdsi.usagi.CodeMapping.MappingStatus;
+import org.ohdsi.utilities.collections.Pair;
+
+/**
+ * Append-only journal of the changes made to a mapping since it was last saved, so edits survive a crash without rewriting the whole mapping file on every
+ * change. The journal sits next to the mapping file, and each record holds the complete state of one changed code mapping, so replaying the records in
+ * order restores the latest state. Records are length-prefixed and checksummed; replay stops at the first damaged record, which can only be the last one
+ * written before a crash.<br/>
+ * <br/>
+ * Records are created on the calling thread, but written and flushed by a writer thread, so editing does not wait for the disk. As the same code mapping
+ * is often changed many times (for instance once per keystroke in the comment), the journal is compacted in a background thread to the latest record per
+ * code mapping once it holds many superseded records. Saving the mapping file deletes the journal.
+ */
+public class MappingJournal {
+	public static String			EXTENSION				= ".journal";
+	public static int				COMPACTION_THRESHOLD	= 1000;
+	private static int				MAGIC					= 0x5553474A;	// "USGJ"
+	private static int				VERSION					= 1;
+	private static int				HEADER_SIZE				= 24;
+	private static int				RECORD_HEADER_SIZE		= 12;
+	private static int				MAX_RECORD_SIZE			= 16 * 1024 * 1024;
+
+	private File					file;
+	private File					mappingFile;
+	private List<CodeMapping>		codeMappings;
+	private Map<CodeMapping, Integer>	codeMappingToIndex	= new IdentityHashMap<CodeMapping, Integer>();
+	private DataOutputStream		out;
+	private Object					outLock					= new Object();
+	private List<byte[]>			pendingRecords			= new ArrayList<byte[]>();
+	private boolean					closing					= false;
+	private WriterThread			writerThread;
+	private TreeMap<Integer, byte[]>	latestRecords		= new TreeMap<Integer, byte[]>();
+	private int						recordCount				= 0;
+	private int						restoredCount			= 0;
+	private List<byte[]>			recordsDuringCompaction	= null;
+	private CompactionThread		compactionThread		= null;
+
+	/**
+	 * Returns the name of the journal file belonging to a mapping file.
+	 */
+	public static String getFilename(String mappingFilename) {
+		return mappingFilename + EXTENSION;
+	}
+
+	/**
+	 * Replays the journal of the mapping file onto the code mappings as read from the mapping file, and opens the journal for appending. A journal that was
+	 * written for a different version of the mapping file (for instance because the file was changed outside of Usagi) is discarded.
+	 * 
+	 * @param mappingFilename
+	 *            the name of the mapping file
+	 * @param codeMappings
+	 *            the code mappings read from the mapping file. Replayed code mappings are replaced or added in this list, which is also used to look up the
+	 *            index of changed code mappings when appending
+	 */
+	public MappingJournal(String mappingFilename, List<CodeMapping> codeMappings) {
+		this.codeMappings = codeMappings;
+		file = new File(getFilename(mappingFilename));
+		mappingFile = new File(mappingFilename);
+		try {
+			if (file.exists() && replay()) {
+				restoredCount = latestRecords.size();
+				// Start from the compacted records, dropping a damaged record at the end:
+				File tempFile = new File(file.getAbsolutePath() + ".tmp");
+				try (DataOutputStream tempOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+					writeHeader(tempOut);
+					for (byte[] record : latestRecords.values())
+						writeRecord(tempOut, record);
+				}
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				recordCount = latestRecords.size();
+				out = openForAppending();
+			} else {
+				out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+				writeHeader(out);
+				out.flush();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		writerThread = new WriterThread();
+		writerThread.start();
+	}
+
+	private DataOutputStream openForAppending() throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+	}
+
+	/**
+	 * Returns the number of code mappings restored from the journal when it was opened.
+	 */
+	public int getRestoredCount() {
+		return restoredCount;
+	}
+
+	private void writeHeader(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(mappingFile.length());
+		out.writeLong(mappingFile.lastModified());
+	}
+
+	/**
+	 * Applies the records in the journal file to the code mappings. Returns false if the journal does not belong to the current version of the mapping file.
+	 * Replay stops at a record that is truncated, has an impossible length or fails its checksum.
+	 */
+	private boolean replay() throws IOException {
+		List<CodeMapping> replayed = new ArrayList<CodeMapping>();
+		List<Integer> indexes = new ArrayList<Integer>();
+		int[] targetConceptIds = new int[16];
+		int[] targetMappingIndexes = new int[16];
+		int targetCount = 0;
+		long remaining = file.length() - HEADER_SIZE;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != mappingFile.length() || in.readLong() != mappingFile.lastModified())
+				return false;
+			while (true) {
+				byte[] record;
+				try {
+					int length = in.readInt();
+					long checksum = in.readLong();
+					remaining -= RECORD_HEADER_SIZE;
+					if (length < 0 || length > remaining || length > MAX_RECORD_SIZE)
+						break;
+					record = new byte[length];
+					in.readFully(record);
+					remaining -= length;
+					if (checksum(record) != checksum)
+						break;
+				} catch (EOFException e) {
+					break;
+				}
+				DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+				int index = recordIn.readInt();
+				CodeMapping codeMapping = readCodeMapping(recordIn);
+				int count = recordIn.readInt();
+				for (int i = 0; i < count; i++) {
+					if (targetCount == targetConceptIds.length) {
+						targetConceptIds = Arrays.copyOf(targetConceptIds, targetCount * 2);
+						targetMappingIndexes = Arrays.copyOf(targetMappingIndexes, targetCount * 2);
+					}
+					targetConceptIds[targetCount] = recordIn.readInt();
+					targetMappingIndexes[targetCount] = replayed.size();
+					targetCount++;
+				}
+				replayed.add(codeMapping);
+				indexes.add(index);
+				latestRecords.put(index, record);
+			}
+		} catch (EOFException e) {
+			return false;
+		}
+		ReadCodeMappingsFromFile.addTargetConcepts(replayed, targetConceptIds, targetMappingIndexes, targetCount);
+		for (int i = 0; i < replayed.size(); i++) {
+			int index = indexes.get(i);
+			CodeMapping codeMapping = replayed.get(i);
+			if (index == codeMappings.size())
+				codeMappings.add(codeMapping);
+			else if (index < codeMappings.size() && codeMappings.get(index).sourceCode.sourceCode.equals(codeMapping.sourceCode.sourceCode)) {
+				// Candidates are not journaled, since they do not change while reviewing:
+				codeMapping.candidates = codeMappings.get(index).candidates;
+				codeMappings.set(index, codeMapping);
+			} else
+				System.err.println("Ignoring journal record for source code " + codeMapping.sourceCode.sourceCode + " that does not match the mapping file");
+		}
+		return true;
+	}
+
+	/**
+	 * Appends the current state of the code mappings to the journal. The records are written by the writer thread.
+	 */
+	public synchronized void append(CodeMapping... changedCodeMappings) {
+		try {
+			for (CodeMapping codeMapping : changedCodeMappings) {
+				int index = getIndex(codeMapping);
+				if (index == -1)
+					continue;
+				byte[] record = createRecord(index, codeMapping);
+				if (Arrays.equals(record, latestRecords.get(index)))
+					continue;
+				pendingRecords.add(record);
+				latestRecords.put(index, record);
+				recordCount++;
+				if (recordsDuringCompaction != null)
+					recordsDuringCompaction.add(record);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		notifyAll();
+		if (compactionThread == null && recordCount > COMPACTION_THRESHOLD && recordCount > 2 * latestRecords.size()) {
+			compactionThread = new CompactionThread();
+			compactionThread.start();
+		}
+	}
+
+	private int getIndex(CodeMapping codeMapping) {
+		Integer index = codeMappingToIndex.get(codeMapping);
+		if (index == null || index >= codeMappings.size() || codeMappings.get(index) != codeMapping) {
+			// Code mappings were added or replaced since the index was built:
+			codeMappingToIndex.clear();
+			for (int i = 0; i < codeMappings.size(); i++)
+				codeMappingToIndex.put(codeMappings.get(i), i);
+			index = codeMappingToIndex.get(codeMapping);
+		}
+		return index == null ? -1 : index;
+	}
+
+	private static byte[] createRecord(int index, CodeMapping codeMapping) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream recordOut = new DataOutputStream(bytes);
+		recordOut.writeInt(index);
+		SourceCode sourceCode = codeMapping.sourceCode;
+		recordOut.writeUTF(sourceCode.sourceCode);
+		recordOut.writeUTF(sourceCode.sourceName);
+		recordOut.writeInt(sourceCode.sourceFrequency);
+		recordOut.writeInt(sourceCode.sourceAutoAssignedConceptIds.size());
+		for (int conceptId : sourceCode.sourceAutoAssignedConceptIds)
+			recordOut.writeInt(conceptId);
+		recordOut.writeInt(sourceCode.sourceAdditionalInfo.size());
+		for (Pair<String, String> pair : sourceCode.sourceAdditionalInfo) {
+			recordOut.writeUTF(pair.getItem1());
+			recordOut.writeUTF(pair.getItem2());
+		}
+		recordOut.writeDouble(codeMapping.matchScore);
+		recordOut.writeUTF(codeMapping.mappingStatus.name());
+		recordOut.writeUTF(codeMapping.comment == null ? "" : codeMapping.comment);
+		recordOut.writeInt(codeMapping.targetConcepts.size());
+		for (Concept concept : codeMapping.targetConcepts)
+			recordOut.writeInt(concept.conceptId);
+		return bytes.toByteArray();
+	}
+
+	private static CodeMapping readCodeMapping(DataInputStream in) throws IOException {
+		SourceCode sourceCode = new SourceCode();
+		sourceCode.sourceCode = in.readUTF();
+		sourceCode.sourceName = in.readUTF();
+		sourceCode.sourceFrequency = in.readInt();
+		int count = in.readInt();
+		for (int i = 0; i < count; i++)
+			sourceCode.sourceAutoAssignedConceptIds.add(in.readInt());
+		count = in.readInt();
+		for (int i = 0; i < count; i++)
+			sourceCode.sourceAdditionalInfo.add(new Pair<String, String>(in.readUTF(), in.readUTF()));
+		CodeMapping codeMapping = new CodeMapping(sourceCode);
+		codeMapping.matchScore = in.readDouble();
+		codeMapping.mappingStatus = MappingStatus.valueOf(in.readUTF());
+		codeMapping.comment = in.readUTF();
+		return codeMapping;
+	}
+
+	private static void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+		out.writeInt(record.length);
+		out.writeLong(checksum(record));
+		out.write(record);
+	}
+
+	private static long checksum(byte[] record) {
+		CRC32 crc32 = new CRC32();
+		crc32.update(record, 0, record.length);
+		return crc32.getValue();
+	}
+
+	/**
+	 * Waits for a running compaction and the pending records to be written, and closes the journal file. The file is kept, so the changes are restored when
+	 * the mapping file is opened again.
+	 */
+	public void close() {
+		waitForCompaction();
+		synchronized (this) {
+			closing = true;
+			notifyAll();
+		}
+		try {
+			writerThread.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		synchronized (outLock) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Makes this the journal of a newly written mapping file. The journal is rewritten next to the new mapping file, with a header matching that file, and
+	 * the old journal file is removed. Call right after the mapping file has been written, so changes made while it was being written are still restored
+	 * after a crash. Records of changes that are already in the new mapping file are kept, since replaying these does no harm. Does nothing if the journal
+	 * has been closed. Can be called from any thread.
+	 */
+	public void moveTo(String mappingFilename) {
+		while (true) {
+			waitForCompaction();
+			synchronized (this) {
+				if (compactionThread != null)
+					continue; // A new compaction was started in the meantime
+				if (closing)
+					return;
+				synchronized (outLock) {
+					File oldFile = file;
+					File oldMappingFile = mappingFile;
+					file = new File(getFilename(mappingFilename));
+					mappingFile = new File(mappingFilename);
+					File tempFile = new File(file.getAbsolutePath() + ".tmp");
+					try {
+						try (DataOutputStream tempOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+							writeHeader(tempOut);
+							for (byte[] record : latestRecords.values())
+								writeRecord(tempOut, record);
+						}
+						// Records still pending are in the new file, and will be written again after it. Replaying them twice does no harm.
+						out.close();
+						try {
+							Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+						} catch (IOException e) {
+							file = oldFile;
+							mappingFile = oldMappingFile;
+							throw e;
+						} finally {
+							out = openForAppending();
+						}
+						if (!oldFile.equals(file))
+							oldFile.delete();
+						recordCount = latestRecords.size();
+					} catch (IOException e) {
+						file = oldFile;
+						mappingFile = oldMappingFile;
+						tempFile.delete();
+						throw new RuntimeException(e);
+					}
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Closes and removes the journal file, for instance because all changes have been saved to the mapping file.
+	 */
+	public void delete() {
+		close();
+		file.delete();
+	}
+
+	private void waitForCompaction() {
+		CompactionThread thread;
+		synchronized (this) {
+			thread = compactionThread;
+		}
+		if (thread != null)
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+	}
+
+	/**
+	 * Writes the pending records in batches, flushing after each batch.
+	 */
+	private class WriterThread extends Thread {
+
+		public WriterThread() {
+			super("Usagi journal writer");
+			setDaemon(true);
+		}
+
+		public void run() {
+			while (true) {
+				List<byte[]> records;
+				synchronized (MappingJournal.this) {
+					while (pendingRecords.size() == 0 && !closing)
+						try {
+							MappingJournal.this.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					if (pendingRecords.size() == 0)
+						return;
+					records = pendingRecords;
+					pendingRecords = new ArrayList<byte[]>();
+				}
+				synchronized (outLock) {
+					try {
+						for (byte[] record : records)
+							writeRecord(out, record);
+						out.flush();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rewrites the journal to the latest record per code mapping. The records are written to a temporary file without holding the lock, so appending is not
+	 * blocked. Records appended in the meantime are copied over before the temporary file replaces the journal.
+	 */
+	private class CompactionThread extends Thread {
+
+		public CompactionThread() {
+			setDaemon(true);
+		}
+
+		public void run() {
+			File tempFile = new File(file.getAbsolutePath() + ".tmp");
+			List<byte[]> records;
+			synchronized (MappingJournal.this) {
+				records = new ArrayList<byte[]>(latestRecords.values());
+				recordsDuringCompaction = new ArrayList<byte[]>();
+			}
+			try {
+				DataOutputStream tempOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+				try {
+					writeHeader(tempOut);
+					for (byte[] record : records)
+						writeRecord(tempOut, record);
+				} catch (IOException e) {
+					tempOut.close();
+					throw e;
+				}
+				synchronized (MappingJournal.this) {
+					synchronized (outLock) {
+						try {
+							for (byte[] record : recordsDuringCompaction)
+								writeRecord(tempOut, record);
+						} finally {
+							tempOut.close();
+						}
+						// Records still pending are in the compacted file, and will be written again after it. Replaying them twice does no harm.
+						out.close();
+						try {
+							Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+						} finally {
+							out = openForAppending();
+						}
+					}
+					recordCount = records.size() + recordsDuringCompaction.size();
+				}
+			} catch (IOException e) {
+				// The uncompacted journal is still complete
+				e.printStackTrace();
+				tempFile.delete();
+			} finally {
+				synchronized (MappingJournal.this) {
+					recordsDuringCompaction = null;
+					compactionThread = null;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,287 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ohdsi.usagi.CodeMapping.MappingStatus;
+import org.ohdsi.utilities.collections.Pair;
+
+/**
+ * Reads and writes code mappings to a compact binary session file that sits next to the mapping file, so a mapping can be reopened without parsing the
+ * CSV file. The CSV file remains the file users exchange; the session file is only used if it was written together with the current version of the CSV
+ * file.<br/>
+ * <br/>
+ * The file is stored by column: all strings are stored once in a string table and referred to by index, the other fields are stored as int and double
+ * arrays, and the variable length fields (auto-assigned concept IDs, additional information and target concept IDs) as an array of offsets into a shared
+ * value array. When reading, the whole file is read into a single buffer with one read call.
+ */
+public class MappingSessionFile {
+	public static String	EXTENSION	= ".session";
+	private static int		MAGIC		= 0x55534753;	// "USGS"
+	private static int		VERSION		= 1;
+
+	/**
+	 * Returns the name of the session file belonging to a mapping file.
+	 */
+	public static String getFilename(String mappingFilename) {
+		return mappingFilename + EXTENSION;
+	}
+
+	/**
+	 * Writes the code mappings. The size and modification time of the mapping file are recorded, so it should be called right after writing the mapping file.
+	 * The file is written under a temporary name first, so an interrupted write never leaves a damaged session file.
+	 */
+	public static void write(String filename, List<CodeMapping> codeMappings, String mappingFilename) {
+		int count = codeMappings.size();
+		Map<String, Integer> string2Index = new HashMap<String, Integer>();
+		List<String> strings = new ArrayList<String>();
+		int[] sourceCodes = new int[count];
+		int[] sourceNames = new int[count];
+		int[] sourceFrequencies = new int[count];
+		int[] mappingStatuses = new int[count];
+		int[] comments = new int[count];
+		double[] matchScores = new double[count];
+		IntArray autoConceptIds = new IntArray(count);
+		IntArray additionalInfo = new IntArray(count);
+		IntArray targetConceptIds = new IntArray(count);
+		for (int i = 0; i < count; i++) {
+			CodeMapping codeMapping = codeMappings.get(i);
+			sourceCodes[i] = addString(codeMapping.sourceCode.sourceCode, string2Index, strings);
+			sourceNames[i] = addString(codeMapping.sourceCode.sourceName, string2Index, strings);
+			sourceFrequencies[i] = codeMapping.sourceCode.sourceFrequency;
+			mappingStatuses[i] = addString(codeMapping.mappingStatus.name(), string2Index, strings);
+			comments[i] = addString(codeMapping.comment == null ? "" : codeMapping.comment, string2Index, strings);
+			matchScores[i] = codeMapping.matchScore;
+			for (int conceptId : codeMapping.sourceCode.sourceAutoAssignedConceptIds)
+				autoConceptIds.add(conceptId);
+			autoConceptIds.endRow();
+			for (Pair<String, String> pair : codeMapping.sourceCode.sourceAdditionalInfo) {
+				additionalInfo.add(addString(pair.getItem1(), string2Index, strings));
+				additionalInfo.add(addString(pair.getItem2(), string2Index, strings));
+			}
+			additionalInfo.endRow();
+			for (Concept concept : codeMapping.targetConcepts)
+				targetConceptIds.add(concept.conceptId);
+			targetConceptIds.endRow();
+		}
+
+		File file = new File(filename);
+		File tempFile = new File(filename + ".tmp");
+		File mappingFile = new File(mappingFilename);
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 65536))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(mappingFile.length());
+				out.writeLong(mappingFile.lastModified());
+				out.writeInt(count);
+				byte[][] encoded = new byte[strings.size()][];
+				int offset = 0;
+				out.writeInt(strings.size());
+				for (int i = 0; i < encoded.length; i++) {
+					encoded[i] = strings.get(i).getBytes(StandardCharsets.UTF_8);
+					out.writeInt(offset);
+					offset += encoded[i].length;
+				}
+				out.writeInt(offset);
+				for (byte[] bytes : encoded)
+					out.write(bytes);
+				writeInts(out, sourceCodes, count);
+				writeInts(out, sourceNames, count);
+				writeInts(out, sourceFrequencies, count);
+				writeInts(out, mappingStatuses, count);
+				writeInts(out, comments, count);
+				for (double matchScore : matchScores)
+					out.writeDouble(matchScore);
+				autoConceptIds.write(out);
+				additionalInfo.write(out);
+				targetConceptIds.write(out);
+			}
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			tempFile.delete();
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static int addString(String string, Map<String, Integer> string2Index, List<String> strings) {
+		Integer index = string2Index.get(string);
+		if (index == null) {
+			index = strings.size();
+			string2Index.put(string, index);
+			strings.add(string);
+		}
+		return index;
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values, int count) throws IOException {
+		for (int i = 0; i < count; i++)
+			out.writeInt(values[i]);
+	}
+
+	/**
+	 * Returns true if the session file exists and was written together with the current version of the mapping file.
+	 */
+	public static boolean isCurrent(String filename, String mappingFilename) {
+		File file = new File(filename);
+		File mappingFile = new File(mappingFilename);
+		if (!file.exists() || !mappingFile.exists())
+			return false;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(24);
+			if (channel.read(header) != header.capacity())
+				return false;
+			header.flip();
+			return header.getInt() == MAGIC && header.getInt() == VERSION && header.getLong() == mappingFile.length()
+					&& header.getLong() == mappingFile.lastModified();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the code mappings. Target concepts are fetched from the database in a single batch sorted by concept ID. The file is read into memory instead
+	 * of being mapped, because on Windows a mapped file stays locked until the mapping is garbage collected, which would make the next save fail.
+	 */
+	public static List<CodeMapping> read(String filename) {
+		try {
+			ByteBuffer buffer = readFully(filename);
+			if (buffer.getInt() != MAGIC)
+				throw new IOException("Not a session file: " + filename);
+			int version = buffer.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported session file version " + version + ": " + filename);
+			buffer.getLong(); // Mapping file length
+			buffer.getLong(); // Mapping file modification time
+			int count = buffer.getInt();
+
+			int[] stringOffsets = readInts(buffer, buffer.getInt() + 1);
+			byte[] stringBytes = new byte[stringOffsets[stringOffsets.length - 1]];
+			buffer.get(stringBytes);
+			String[] strings = new String[stringOffsets.length - 1];
+			for (int i = 0; i < strings.length; i++)
+				strings[i] = new String(stringBytes, stringOffsets[i], stringOffsets[i + 1] - stringOffsets[i], StandardCharsets.UTF_8);
+
+			int[] sourceCodes = readInts(buffer, count);
+			int[] sourceNames = readInts(buffer, count);
+			int[] sourceFrequencies = readInts(buffer, count);
+			int[] mappingStatuses = readInts(buffer, count);
+			int[] comments = readInts(buffer, count);
+			double[] matchScores = new double[count];
+			buffer.asDoubleBuffer().get(matchScores);
+			buffer.position(buffer.position() + count * 8);
+			int[] autoConceptIdOffsets = readInts(buffer, count + 1);
+			int[] autoConceptIds = readInts(buffer, autoConceptIdOffsets[count]);
+			int[] additionalInfoOffsets = readInts(buffer, count + 1);
+			int[] additionalInfo = readInts(buffer, additionalInfoOffsets[count]);
+			int[] targetOffsets = readInts(buffer, count + 1);
+			int[] targetConceptIds = readInts(buffer, targetOffsets[count]);
+
+			MappingStatus[] statuses = new MappingStatus[strings.length];
+			List<CodeMapping> codeMappings = new ArrayList<CodeMapping>(count);
+			int[] targetMappingIndexes = new int[targetConceptIds.length];
+			for (int i = 0; i < count; i++) {
+				SourceCode sourceCode = new SourceCode();
+				sourceCode.sourceCode = strings[sourceCodes[i]];
+				sourceCode.sourceName = strings[sourceNames[i]];
+				sourceCode.sourceFrequency = sourceFrequencies[i];
+				for (int j = autoConceptIdOffsets[i]; j < autoConceptIdOffsets[i + 1]; j++)
+					sourceCode.sourceAutoAssignedConceptIds.add(autoConceptIds[j]);
+				for (int j = additionalInfoOffsets[i]; j < additionalInfoOffsets[i + 1]; j += 2)
+					sourceCode.sourceAdditionalInfo.add(new Pair<String, String>(strings[additionalInfo[j]], strings[additionalInfo[j + 1]]));
+				CodeMapping codeMapping = new CodeMapping(sourceCode);
+				if (statuses[mappingStatuses[i]] == null)
+					statuses[mappingStatuses[i]] = MappingStatus.valueOf(strings[mappingStatuses[i]]);
+				codeMapping.mappingStatus = statuses[mappingStatuses[i]];
+				codeMapping.comment = strings[comments[i]];
+				codeMapping.matchScore = matchScores[i];
+				for (int j = targetOffsets[i]; j < targetOffsets[i + 1]; j++)
+					targetMappingIndexes[j] = i;
+				codeMappings.add(codeMapping);
+			}
+			ReadCodeMappingsFromFile.addTargetConcepts(codeMappings, targetConceptIds, targetMappingIndexes, targetConceptIds.length);
+			return codeMappings;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static ByteBuffer readFully(String filename) throws IOException {
+		try (FileChannel channel = FileChannel.open(new File(filename).toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("Session file too large: " + filename);
+			ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+			while (buffer.hasRemaining())
+				if (channel.read(buffer) == -1)
+					throw new IOException("Unexpected end of file: " + filename);
+			buffer.flip();
+			return buffer;
+		}
+	}
+
+	private static int[] readInts(ByteBuffer buffer, int count) {
+		int[] values = new int[count];
+		buffer.asIntBuffer().get(values);
+		buffer.position(buffer.position() + count * 4);
+		return values;
+	}
+
+	/**
+	 * A growable array of ints divided into rows, written as the row offsets followed by the values.
+	 */
+	private static class IntArray {
+		private int[]	offsets;
+		private int		rowCount	= 0;
+		private int[]	values		= new int[1024];
+		private int		size		= 0;
+
+		public IntArray(int rowCount) {
+			offsets = new int[rowCount + 1];
+		}
+
+		public void add(int value) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+
+		public void endRow() {
+			offsets[++rowCount] = size;
+		}
+
+		public void write(DataOutputStream out) throws IOException {
+			writeInts(out, offsets, rowCount + 1);
+			writeInts(out, values, size);
+		}
+	}
+}
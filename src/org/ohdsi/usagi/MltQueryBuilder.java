@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.similarities.DefaultSimilarity;
+import org.apache.lucene.search.similarities.TFIDFSimilarity;
+import org.ohdsi.usagi.AnalyzedTermCache.AnalyzedTerms;
+
+/**
+ * Builds the same query as Lucene's MoreLikeThis with the permissive settings Usagi uses (every term of the search text that occurs in the index, ordered
+ * by TF*IDF), but in a single pass: the text is analyzed through the term cache, and the document frequency of each term is taken from the term dictionary
+ * of the rescorer instead of being looked up in the index. The ordinals of the query terms are returned as well, so rescoring does not need to look them up
+ * again.
+ */
+public class MltQueryBuilder {
+	public static int			MAX_QUERY_TERMS	= 9999;
+
+	private String				field;
+	private AnalyzedTermCache	termCache;
+	private CosineRescorer		rescorer;
+	private TFIDFSimilarity		similarity		= new DefaultSimilarity();
+
+	public static class MltQuery {
+		public BooleanQuery	query;
+		public int[]		termOrdinals;
+	}
+
+	public MltQueryBuilder(String field, AnalyzedTermCache termCache, CosineRescorer rescorer) {
+		this.field = field;
+		this.termCache = termCache;
+		this.rescorer = rescorer;
+	}
+
+	public MltQuery build(String text) {
+		AnalyzedTerms analyzedTerms = termCache.get(text);
+		int termCount = analyzedTerms.terms.length;
+		int[] ordinals = new int[termCount];
+		float[] scores = new float[termCount];
+		Integer[] order = new Integer[termCount];
+		int count = 0;
+		for (int i = 0; i < termCount; i++) {
+			ordinals[i] = rescorer.getOrdinal(analyzedTerms.terms[i]);
+			if (ordinals[i] != -1) {
+				scores[i] = analyzedTerms.frequencies[i] * similarity.idf(rescorer.getDocFreq(ordinals[i]), rescorer.getNumDocs());
+				order[count++] = i;
+			}
+		}
+		order = Arrays.copyOf(order, count);
+		Arrays.sort(order, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return -Float.compare(scores[o1], scores[o2]);
+			}
+		});
+
+		MltQuery mltQuery = new MltQuery();
+		mltQuery.query = new BooleanQuery();
+		mltQuery.termOrdinals = new int[Math.min(count, MAX_QUERY_TERMS)];
+		for (int i = 0; i < mltQuery.termOrdinals.length; i++) {
+			mltQuery.query.add(new TermQuery(new Term(field, analyzedTerms.terms[order[i]])), Occur.SHOULD);
+			mltQuery.termOrdinals[i] = ordinals[order[i]];
+		}
+		return mltQuery;
+	}
+}
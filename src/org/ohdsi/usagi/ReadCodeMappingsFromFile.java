@@ -15,13 +15,23 @@
  ******************************************************************************/
 package org.ohdsi.usagi;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 
 import org.ohdsi.usagi.CodeMapping.MappingStatus;
 import org.ohdsi.usagi.ui.Global;
-import org.ohdsi.utilities.files.ReadCSVFileWithHeader;
-import org.ohdsi.utilities.files.Row;
+import org.ohdsi.utilities.collections.Pair;
+import org.ohdsi.utilities.files.ReadCSVFile;
 
+/**
+ * Reads code mappings from a CSV file written by {@link WriteCodeMappingsToFile}, where a code mapping with several target concepts spans several rows.<br/>
+ * <br/>
+ * The column indexes are resolved once from the header, and rows are grouped by comparing the source code and name cells directly. Other cells of rows
+ * with additional target concepts are not converted to strings. The target concepts of
+ * all mappings are collected first and fetched from the database in a single batch sorted by concept ID, instead of one random lookup per row.
+ */
 public class ReadCodeMappingsFromFile implements Iterable<CodeMapping> {
 	private String filename;
 
@@ -31,74 +41,139 @@ public class ReadCodeMappingsFromFile implements Iterable<CodeMapping> {
 
 	@Override
 	public Iterator<CodeMapping> iterator() {
-		return new RowIterator();
+		return load().iterator();
 	}
 
-	public class RowIterator implements Iterator<CodeMapping> {
+	/**
+	 * Reads all code mappings in the file.
+	 */
+	public List<CodeMapping> load() {
+		ReadCSVFile in = new ReadCSVFile(filename);
+		if (!in.nextRow())
+			throw new RuntimeException("File is empty");
+		Columns columns = new Columns(in.getCells());
 
-		private Iterator<Row>	iterator;
-		private CodeMapping		buffer;
-		private Row				row;
-
-		public RowIterator() {
-			iterator = new ReadCSVFileWithHeader(filename).iterator();
-
-			if (iterator.hasNext()) {
-				row = iterator.next();
-				readNext();
-			} else {
-				buffer = null;
+		List<CodeMapping> codeMappings = new ArrayList<CodeMapping>();
+		int[] targetConceptIds = new int[1024];
+		int[] targetMappingIndexes = new int[1024];
+		int targetCount = 0;
+		CodeMapping codeMapping = null;
+		String sourceCode = null;
+		String sourceName = null;
+		while (in.nextRow()) {
+			String rowSourceCode = in.getCell(columns.sourceCode);
+			String rowSourceName = in.getCell(columns.sourceName);
+			if (codeMapping == null || !rowSourceCode.equals(sourceCode) || !rowSourceName.equals(sourceName)) {
+				sourceCode = rowSourceCode;
+				sourceName = rowSourceName;
+				codeMapping = new CodeMapping(columns.toSourceCode(in, rowSourceCode, rowSourceName));
+				codeMapping.matchScore = Double.parseDouble(in.getCell(columns.matchScore));
+				codeMapping.mappingStatus = MappingStatus.valueOf(in.getCell(columns.mappingStatus));
+				codeMapping.comment = columns.comment == -1 ? "" : in.getCell(columns.comment);
+				codeMappings.add(codeMapping);
+			}
+			int conceptId = in.getInt(columns.conceptId);
+			if (conceptId != 0) {
+				if (targetCount == targetConceptIds.length) {
+					targetConceptIds = Arrays.copyOf(targetConceptIds, targetCount * 2);
+					targetMappingIndexes = Arrays.copyOf(targetMappingIndexes, targetCount * 2);
+				}
+				targetConceptIds[targetCount] = conceptId;
+				targetMappingIndexes[targetCount] = codeMappings.size() - 1;
+				targetCount++;
 			}
 		}
 
-		private void readNext() {
-			if (row == null) {
-				buffer = null;
+		addTargetConcepts(codeMappings, targetConceptIds, targetMappingIndexes, targetCount);
+		return codeMappings;
+	}
+
+	/**
+	 * Fetches each distinct target concept once, in key order, and adds them to the code mappings in the given order. Code mappings with a target concept
+	 * that is not in the database are marked as having an invalid target.
+	 * 
+	 * @param targetConceptIds
+	 *            the concept IDs of the targets
+	 * @param targetMappingIndexes
+	 *            for each target, the index of its code mapping
+	 * @param targetCount
+	 *            the number of targets in the arrays
+	 */
+	static void addTargetConcepts(List<CodeMapping> codeMappings, int[] targetConceptIds, int[] targetMappingIndexes, int targetCount) {
+		int[] conceptIds = Arrays.copyOf(targetConceptIds, targetCount);
+		Arrays.sort(conceptIds);
+		int distinctCount = 0;
+		for (int i = 0; i < conceptIds.length; i++)
+			if (i == 0 || conceptIds[i] != conceptIds[i - 1])
+				conceptIds[distinctCount++] = conceptIds[i];
+		conceptIds = Arrays.copyOf(conceptIds, distinctCount);
+		Concept[] concepts = Global.dbEngine.getConcepts(conceptIds);
+
+		for (int i = 0; i < targetCount; i++) {
+			CodeMapping codeMapping = codeMappings.get(targetMappingIndexes[i]);
+			Concept concept = concepts[Arrays.binarySearch(conceptIds, targetConceptIds[i])];
+			if (concept == null) {
+				codeMapping.mappingStatus = MappingStatus.INVALID_TARGET;
+				codeMapping.comment = "Invalid existing target: " + targetConceptIds[i];
 			} else {
-				buffer = new CodeMapping(new SourceCode(row));
-				buffer.matchScore = row.getDouble("matchScore");
-				buffer.mappingStatus = MappingStatus.valueOf(row.get("mappingStatus"));
-				try {
-					buffer.comment = row.get("comment");
-				} catch (Exception e) {
-					buffer.comment = "";
-				}
-				while (row != null && new SourceCode(row).sourceCode.equals(buffer.sourceCode.sourceCode)
-						&& new SourceCode(row).sourceName.equals(buffer.sourceCode.sourceName)) {
-					if (row.getInt("conceptId") != 0) {
-						Concept concept = Global.dbEngine.getConcept(row.getInt("conceptId"));
-						if (concept == null) {
-							buffer.mappingStatus = MappingStatus.INVALID_TARGET;
-							buffer.comment = "Invalid existing target: " + row.get("conceptId");
-						} else {
-							buffer.targetConcepts.add(concept);
-						}
-					}
-					if (iterator.hasNext())
-						row = iterator.next();
-					else
-						row = null;
-				}
+				codeMapping.targetConcepts.add(concept);
 			}
 		}
+	}
 
-		@Override
-		public boolean hasNext() {
-			return buffer != null;
-		}
+	/**
+	 * Indexes of the columns in the file. The additional information columns are those prefixed with ADD_INFO:.
+	 */
+	private static class Columns {
+		public int			sourceCode;
+		public int			sourceName;
+		public int			sourceFrequency;
+		public int			sourceAutoAssignedConceptIds;
+		public int			matchScore;
+		public int			mappingStatus;
+		public int			conceptId;
+		public int			comment;
+		public int[]		additionalInfo;
+		public String[]		additionalInfoNames;
 
-		@Override
-		public CodeMapping next() {
-			CodeMapping next = buffer;
-			readNext();
-			return next;
+		public Columns(List<String> header) {
+			sourceCode = getIndex(header, "sourceCode", true);
+			sourceName = getIndex(header, "sourceName", true);
+			sourceFrequency = getIndex(header, "sourceFrequency", true);
+			sourceAutoAssignedConceptIds = getIndex(header, "sourceAutoAssignedConceptIds", true);
+			matchScore = getIndex(header, "matchScore", true);
+			mappingStatus = getIndex(header, "mappingStatus", true);
+			conceptId = getIndex(header, "conceptId", true);
+			comment = getIndex(header, "comment", false);
+			List<Pair<Integer, String>> columns = new ArrayList<Pair<Integer, String>>();
+			for (int i = 0; i < header.size(); i++)
+				if (header.get(i).startsWith(SourceCode.ADDITIONAL_INFO_PREFIX) && getIndex(header, header.get(i), true) == i)
+					columns.add(new Pair<Integer, String>(i, header.get(i).substring(SourceCode.ADDITIONAL_INFO_PREFIX.length())));
+			additionalInfo = new int[columns.size()];
+			additionalInfoNames = new String[columns.size()];
+			for (int i = 0; i < columns.size(); i++) {
+				additionalInfo[i] = columns.get(i).getItem1();
+				additionalInfoNames[i] = columns.get(i).getItem2();
+			}
 		}
 
-		@Override
-		public void remove() {
-			throw new RuntimeException("Remove not supported");
+		private static int getIndex(List<String> header, String fieldName, boolean required) {
+			// If a field name occurs more than once, the last occurrence is used:
+			int index = header.lastIndexOf(fieldName);
+			if (index == -1 && required)
+				throw new RuntimeException("Field \"" + fieldName + "\" not found");
+			return index;
 		}
 
+		public SourceCode toSourceCode(ReadCSVFile in, String code, String name) {
+			SourceCode sourceCode = new SourceCode();
+			sourceCode.sourceCode = code;
+			sourceCode.sourceName = name;
+			sourceCode.sourceFrequency = in.getInt(sourceFrequency);
+			sourceCode.sourceAutoAssignedConceptIds = SourceCode.parseConceptIds(in.getCell(sourceAutoAssignedConceptIds));
+			for (int i = 0; i < additionalInfo.length; i++)
+				sourceCode.sourceAdditionalInfo.add(new Pair<String, String>(additionalInfoNames[i], in.getCell(additionalInfo[i])));
+			return sourceCode;
+		}
 	}
-
 }
@@ -24,6 +24,7 @@ import java.util.Set;
 import org.ohdsi.utilities.StringUtilities;
 import org.ohdsi.utilities.collections.Pair;
 import org.ohdsi.utilities.files.Row;
+import org.ohdsi.utilities.files.WriteCSVFileWithHeader;
 
 /**
  * Data structure for containing information about a source code
@@ -36,7 +37,7 @@ public class SourceCode {
 	public Set<Integer>					sourceAutoAssignedConceptIds	= new HashSet<Integer>();
 	public List<Pair<String, String>>	sourceAdditionalInfo			= new ArrayList<Pair<String, String>>();
 
-	private static String				ADDITIONAL_INFO_PREFIX			= "ADD_INFO:";
+	static String						ADDITIONAL_INFO_PREFIX			= "ADD_INFO:";
 
 	public Row toRow() {
 		Row row = new Row();
@@ -50,6 +51,18 @@ public class SourceCode {
 		return row;
 	}
 
+	/**
+	 * Adds the cells of {@link #toRow()} to the current row, without creating a Row.
+	 */
+	public void addCells(WriteCSVFileWithHeader out) {
+		out.add(sourceCode);
+		out.add(sourceName);
+		out.add(sourceFrequency);
+		out.add(StringUtilities.join(sourceAutoAssignedConceptIds, ";"));
+		for (Pair<String, String> pair : sourceAdditionalInfo)
+			out.add(pair.getItem2());
+	}
+
 	public SourceCode() {
 	}
 
@@ -57,7 +70,7 @@ public class SourceCode {
 		sourceCode = row.get("sourceCode");
 		sourceName = row.get("sourceName");
 		sourceFrequency = row.getInt("sourceFrequency");
-		sourceAutoAssignedConceptIds = parse(row.get("sourceAutoAssignedConceptIds"));
+		sourceAutoAssignedConceptIds = parseConceptIds(row.get("sourceAutoAssignedConceptIds"));
 		for (String field : row.getFieldNames())
 			if (field.startsWith(ADDITIONAL_INFO_PREFIX)) {
 				String name = field.substring(ADDITIONAL_INFO_PREFIX.length(), field.length());
@@ -65,7 +78,7 @@ public class SourceCode {
 			}
 	}
 
-	private Set<Integer> parse(String string) {
+	static Set<Integer> parseConceptIds(String string) {
 		if (string.length() == 0)
 			return Collections.emptySet();
 		else {
@@ -16,19 +16,27 @@
 package org.ohdsi.usagi;
 
 import java.awt.BorderLayout;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.swing.BorderFactory;
 import javax.swing.JDialog;
@@ -38,37 +46,50 @@ import javax.swing.JPanel;
 import javax.swing.JProgressBar;
 
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
 import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.BinaryDocValues;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
-import org.apache.lucene.index.Term;
-import org.apache.lucene.index.Terms;
-import org.apache.lucene.index.TermsEnum;
-import org.apache.lucene.queries.mlt.MoreLikeThis;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
-import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.FieldCacheTermsFilter;
+import org.apache.lucene.search.FilteredQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.Weight;
 import org.apache.lucene.search.similarities.DefaultSimilarity;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
 import org.apache.lucene.util.Version;
+import org.ohdsi.usagi.MltQueryBuilder.MltQuery;
+import org.ohdsi.usagi.jfr.UsagiEvents;
 import org.ohdsi.usagi.ui.Global;
 import org.ohdsi.utilities.DirectoryUtilities;
+import org.ohdsi.utilities.LatencyHistogram;
 import org.ohdsi.utilities.StringUtilities;
 
 /**
@@ -82,16 +103,52 @@ public class UsagiSearchEngine {
 	public static String	CONCEPT_TYPE_STRING		= "C";
 	public static String	CONCEPT_TERM			= "C";
 	public static String	SOURCE_TERM				= "S";
+	public static String	EXACT_MATCH_INDEX_FILE	= "exactMatchIndex.bin";
+	/**
+	 * Version of the layout of the documents in the main index. Increase this when changing the fields written by {@link #addTermToIndex}, so indexes built
+	 * by older versions of Usagi are rebuilt instead of silently returning wrong results.
+	 */
+	public static int		INDEX_FORMAT_VERSION	= 3;
+	public static String	INDEX_FORMAT_KEY		= "usagiIndexFormatVersion";
+	/**
+	 * Default number of distinct concepts retrieved by Lucene and rescored by cosine similarity. Can be changed per engine with
+	 * {@link #setCandidateWindow(int)}.
+	 */
+	public static int		CANDIDATE_WINDOW		= 2000;
+	/**
+	 * Number of best scoring terms per candidate concept that are rescored. The concept is scored by its best term after rescoring, which need not be the
+	 * term with the best Lucene score.
+	 */
+	public static int		TERMS_PER_CONCEPT		= 16;
+	public static int		MAX_RESULTS				= 100;
 
 	private String			folder;
 	private IndexWriter		writer;
-	private IndexReader		reader					= null;
-	private IndexSearcher	searcher;
 	private UsagiAnalyzer	analyzer				= new UsagiAnalyzer();
-	private Query			conceptQuery;
-	private int				numDocs;
+	private AnalyzedTermCache	termCache			= new AnalyzedTermCache(analyzer, "TERM", AnalyzedTermCache.DEFAULT_MAX_SIZE);
+	private AtomicReference<SearchState>	searchState	= new AtomicReference<SearchState>();
+	private ExactMatchIndex.Builder	exactMatchIndexBuilder;
+	private int				searchThreads			= 1;
+	private int				candidateWindow			= CANDIDATE_WINDOW;
+	private ExecutorService	searchExecutor;
+	private MergeDerivedIndexThread	mergeThread;
 	private FieldType		textVectorField			= getTextVectorFieldType();
 
+	private static LatencyHistogram	searchTime				= Global.metrics.histogram("search.total");
+	private static LatencyHistogram	exactMatchTime			= Global.metrics.histogram("search.0.exactMatch");
+	private static LatencyHistogram	mltTime					= Global.metrics.histogram("search.1.queryConstruction");
+	private static LatencyHistogram	filterTime				= Global.metrics.histogram("search.2.filters");
+	private static LatencyHistogram	luceneTime				= Global.metrics.histogram("search.3.luceneSearch");
+	private static LatencyHistogram	recomputeScoresTime		= Global.metrics.histogram("search.4.recomputeScores");
+	// Reading the terms and looking up the concepts of the hits is timed once per query, not per hit:
+	private static LatencyHistogram	collectResultsTime		= Global.metrics.histogram("search.5.collectResults");
+	private static LatencyHistogram	reorderTiesTime			= Global.metrics.histogram("search.6.reorderTies");
+	private static LatencyHistogram	mergeTime				= Global.metrics.histogram("import.derivedIndexMerge");
+	private static LongAdder		queryCount				= Global.metrics.counter("search.queries");
+	private static LongAdder		hitCount				= Global.metrics.counter("search.hits");
+	private static LongAdder		resultCount				= Global.metrics.counter("search.results");
+	private static LongAdder		exactMatchCount			= Global.metrics.counter("search.exactMatches");
+
 	public UsagiSearchEngine(String folder) {
 		this.folder = folder;
 	}
@@ -104,7 +161,7 @@ public class UsagiSearchEngine {
 		textVectorField.setStoreTermVectorPositions(false);
 		textVectorField.setStoreTermVectorPayloads(false);
 		textVectorField.setStoreTermVectorOffsets(false);
-		textVectorField.setStored(true);
+		textVectorField.setStored(false);
 		textVectorField.freeze();
 		return textVectorField;
 	}
@@ -114,6 +171,8 @@ public class UsagiSearchEngine {
 			File indexFolder = new File(folder + "/" + MAIN_INDEX_FOLDER);
 			if (indexFolder.exists())
 				DirectoryUtilities.deleteDir(indexFolder);
+			new File(folder + "/" + EXACT_MATCH_INDEX_FILE).delete();
+			exactMatchIndexBuilder = new ExactMatchIndex.Builder();
 
 			Directory dir = FSDirectory.open(indexFolder);
 
@@ -121,6 +180,9 @@ public class UsagiSearchEngine {
 			iwc.setOpenMode(OpenMode.CREATE);
 			iwc.setRAMBufferSizeMB(128.0);
 			writer = new IndexWriter(dir, iwc);
+			Map<String, String> commitData = new HashMap<String, String>();
+			commitData.put(INDEX_FORMAT_KEY, Integer.toString(INDEX_FORMAT_VERSION));
+			writer.setCommitData(commitData);
 
 		} catch (Exception e) {
 			throw new RuntimeException(e);
@@ -131,20 +193,45 @@ public class UsagiSearchEngine {
 		return new File(folder + "/" + MAIN_INDEX_FOLDER).exists();
 	}
 
+	/**
+	 * Returns the format version recorded in the main index. Indexes built before the version was recorded are reported as version 1.
+	 */
+	public int getMainIndexFormatVersion() {
+		try {
+			SegmentInfos segmentInfos = new SegmentInfos();
+			segmentInfos.read(FSDirectory.open(new File(folder + "/" + MAIN_INDEX_FOLDER)));
+			String version = segmentInfos.getUserData().get(INDEX_FORMAT_KEY);
+			return version == null ? 1 : Integer.parseInt(version);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns true if the main index exists and was built with the index format of this version of Usagi.
+	 */
+	public boolean mainIndexIsCurrent() {
+		return mainIndexExists() && getMainIndexFormatVersion() == INDEX_FORMAT_VERSION;
+	}
+
 	public void addTermToIndex(String term, String termType, Concept concept) {
 		if (writer == null)
 			throw new RuntimeException("Indexed not open for writing");
 		try {
+			// Nothing is stored: hits are materialized and filtered using doc values only
 			Document document = new Document();
-			document.add(new StringField("TYPE", CONCEPT_TYPE_STRING, Store.YES));
+			document.add(new StringField("TYPE", CONCEPT_TYPE_STRING, Store.NO));
 			document.add(new Field("TERM", term, textVectorField));
-			document.add(new StringField("CONCEPT_ID", Integer.toString(concept.conceptId), Store.YES));
-			document.add(new StringField("DOMAIN_ID", concept.domainId, Store.YES));
-			document.add(new StringField("VOCABULARY_ID", concept.vocabularyId, Store.YES));
-			document.add(new StringField("CONCEPT_CLASS_ID", concept.conceptClassId, Store.YES));
-			document.add(new StringField("STANDARD_CONCEPT", concept.standardConcept, Store.YES));
-			document.add(new StringField("TERM_TYPE", termType, Store.YES));
+			document.add(new BinaryDocValuesField("TERM", new BytesRef(term)));
+			document.add(new StringField("CONCEPT_ID", Integer.toString(concept.conceptId), Store.NO));
+			document.add(new NumericDocValuesField("CONCEPT_ID", concept.conceptId));
+			document.add(new SortedDocValuesField("DOMAIN_ID", new BytesRef(concept.domainId)));
+			document.add(new SortedDocValuesField("VOCABULARY_ID", new BytesRef(concept.vocabularyId)));
+			document.add(new SortedDocValuesField("CONCEPT_CLASS_ID", new BytesRef(concept.conceptClassId)));
+			document.add(new SortedDocValuesField("STANDARD_CONCEPT", new BytesRef(concept.standardConcept)));
+			document.add(new SortedDocValuesField("TERM_TYPE", new BytesRef(termType)));
 			writer.addDocument(document);
+			exactMatchIndexBuilder.add(term, concept.conceptId, termType.equals(SOURCE_TERM));
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
@@ -191,6 +278,56 @@ public class UsagiSearchEngine {
 		}
 	}
 
+	/**
+	 * Same as {@link #createDerivedIndex(List, JFrame)}, but runs on the calling thread and never touches Swing. Use this when running without a display.
+	 * 
+	 * @param sourceCodes
+	 *            the list of source codes to add to the index
+	 */
+	public void createDerivedIndex(List<SourceCode> sourceCodes) {
+		buildDerivedIndex(sourceCodes, null);
+	}
+
+	private void buildDerivedIndex(List<SourceCode> sourceCodes, JProgressBar progressBar) {
+		waitForDerivedIndexMerge();
+		Object event = UsagiEvents.beginDerivedIndex();
+		try {
+			// Each derived index is written to a new generation folder, so a derived index that is still being searched is never modified:
+			File derivedIndexRoot = new File(folder + "/" + DERIVED_INDEX_FOLDER);
+			if (derivedIndexRoot.exists() && getDerivedIndexFolder() == null) // Derived index written by an older version of Usagi
+				if (!DirectoryUtilities.deleteDir(derivedIndexRoot))
+					System.out.println("Unable to delete derived index folder");
+			derivedIndexRoot.mkdirs();
+			File derivedIndexFolder = new File(derivedIndexRoot, Long.toString(System.currentTimeMillis()));
+			while (derivedIndexFolder.exists())
+				derivedIndexFolder = new File(derivedIndexRoot, Long.toString(Long.parseLong(derivedIndexFolder.getName()) + 1));
+
+			File indexFolder = new File(folder + "/" + MAIN_INDEX_FOLDER);
+			DirectoryUtilities.copyDirectory(indexFolder, derivedIndexFolder);
+
+			Directory dir = FSDirectory.open(derivedIndexFolder);
+			IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_4_9, new UsagiAnalyzer());
+			iwc.setOpenMode(OpenMode.APPEND);
+			iwc.setRAMBufferSizeMB(256.0);
+			IndexWriter writer = new IndexWriter(dir, iwc);
+
+			for (int i = 0; i < sourceCodes.size(); i++) {
+				Document document = new Document();
+				document.add(new StringField("TYPE", SOURCE_CODE_TYPE_STRING, Store.NO));
+				document.add(new Field("TERM", sourceCodes.get(i).sourceName, textVectorField));
+				writer.addDocument(document);
+				if (progressBar != null)
+					progressBar.setValue(5 + (90 * i) / sourceCodes.size());
+
+			}
+			// writer.forceMerge(1);
+			writer.close();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		UsagiEvents.endDerivedIndex(event, sourceCodes.size());
+	}
+
 	private class AddSourceCodesThread extends Thread {
 		private JProgressBar		progressBar;
 		private List<SourceCode>	sourceCodes;
@@ -203,70 +340,225 @@ public class UsagiSearchEngine {
 		}
 
 		public void run() {
+			buildDerivedIndex(sourceCodes, progressBar);
+			if (dialog != null)
+				dialog.setVisible(false);
+			openIndexForSearching(true);
+		}
+	}
+
+	/**
+	 * Merges the segments of the derived index into one in a background thread, and switches searching over to the merged index once done. Searches continue
+	 * on the unmerged index in the meantime. A single segment is searched faster by a single thread, so this favors throughput when many searches run in
+	 * parallel, as during a batch import. The derived index must be open for searching.
+	 */
+	public void mergeDerivedIndexInBackground() {
+		waitForDerivedIndexMerge();
+		mergeThread = new MergeDerivedIndexThread(getDerivedIndexFolder());
+		mergeThread.start();
+	}
+
+	/**
+	 * Blocks until a merge started by {@link #mergeDerivedIndexInBackground()} has finished and searching has switched to the merged index.
+	 */
+	public void waitForDerivedIndexMerge() {
+		if (mergeThread != null) {
 			try {
-				File derivedIndexFolder = new File(folder + "/" + DERIVED_INDEX_FOLDER);
-				if (derivedIndexFolder.exists())
-					if (!DirectoryUtilities.deleteDir(derivedIndexFolder))
-						System.out.println("Unable to delete derived index folder");
+				mergeThread.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			mergeThread = null;
+		}
+	}
+
+	private class MergeDerivedIndexThread extends Thread {
+		private File	derivedIndexFolder;
 
-				File indexFolder = new File(folder + "/" + MAIN_INDEX_FOLDER);
-				DirectoryUtilities.copyDirectory(indexFolder, derivedIndexFolder);
+		public MergeDerivedIndexThread(File derivedIndexFolder) {
+			this.derivedIndexFolder = derivedIndexFolder;
+			setDaemon(true);
+		}
 
-				Directory dir = FSDirectory.open(derivedIndexFolder);
+		public void run() {
+			long start = Global.metrics.start();
+			try {
 				IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_4_9, new UsagiAnalyzer());
 				iwc.setOpenMode(OpenMode.APPEND);
-				iwc.setRAMBufferSizeMB(256.0);
-				IndexWriter writer = new IndexWriter(dir, iwc);
-
-				for (int i = 0; i < sourceCodes.size(); i++) {
-					Document document = new Document();
-					document.add(new StringField("TYPE", SOURCE_CODE_TYPE_STRING, Store.YES));
-					document.add(new Field("TERM", sourceCodes.get(i).sourceName, textVectorField));
-					writer.addDocument(document);
-					if (progressBar != null)
-						progressBar.setValue(5 + (90 * i) / sourceCodes.size());
-
-				}
-				// writer.forceMerge(1);
+				IndexWriter writer = new IndexWriter(FSDirectory.open(derivedIndexFolder), iwc);
+				writer.forceMerge(1);
 				writer.close();
-				System.gc();
-				if (dialog != null)
-					dialog.setVisible(false);
-				openIndexForSearching(true);
+				if (searchState.get() != null)
+					openIndexForSearching(true);
+				mergeTime.recordSince(start);
 			} catch (Exception e) {
-				throw new RuntimeException(e);
+				// Searching continues on the unmerged index
+				e.printStackTrace();
 			}
 		}
 	}
 
+	/**
+	 * Everything needed to search one version of the index. It is never modified after construction, so searches use it without locking. The reader is
+	 * reference counted: it is closed once the state has been replaced and the last search using it has finished.
+	 */
+	private static class SearchState {
+		public final DirectoryReader	reader;
+		public final ExecutorService	executor;
+		public final IndexSearcher		searcher;
+		public final Query				conceptQuery;
+		public final CosineRescorer		rescorer;
+		public final MltQueryBuilder	mltQueryBuilder;
+		public final ExactMatchIndex	exactMatchIndex;
+
+		public SearchState(DirectoryReader reader, ExecutorService executor, Query conceptQuery, CosineRescorer rescorer, MltQueryBuilder mltQueryBuilder,
+				ExactMatchIndex exactMatchIndex) {
+			this.reader = reader;
+			this.executor = executor;
+			this.searcher = new IndexSearcher(reader, executor);
+			this.searcher.setSimilarity(new DefaultSimilarity());
+			this.conceptQuery = conceptQuery;
+			this.rescorer = rescorer;
+			this.mltQueryBuilder = mltQueryBuilder;
+			this.exactMatchIndex = exactMatchIndex;
+		}
+	}
+
+	/**
+	 * Sets the number of threads searching the segments of the index in parallel within a single query. This lowers the latency of a single search in the
+	 * user interface, but only adds overhead when many searches already run in parallel, as during a batch import; such callers should pass false for
+	 * searchInParallel. Must be set before opening the index.
+	 */
+	public synchronized void setSearchThreads(int searchThreads) {
+		this.searchThreads = Math.max(1, searchThreads);
+	}
+
+	/**
+	 * Sets the number of distinct concepts retrieved by Lucene and rescored by cosine similarity in each search of this engine. Set to MAX_RESULTS to only
+	 * rescore the final results.
+	 */
+	public void setCandidateWindow(int candidateWindow) {
+		this.candidateWindow = candidateWindow;
+	}
+
+	/**
+	 * Opens the main or derived index, and makes it the index used by new searches. Searches that are still running on the previously opened index finish
+	 * undisturbed; the previous reader is closed when the last of them is done.
+	 */
 	public void openIndexForSearching(boolean useDerivedIndex) {
+		DirectoryReader reader = null;
 		try {
 			if (useDerivedIndex)
-				reader = DirectoryReader.open(FSDirectory.open(new File(folder + "/" + DERIVED_INDEX_FOLDER)));
+				reader = DirectoryReader.open(FSDirectory.open(getDerivedIndexFolder()));
 			else
 				reader = DirectoryReader.open(FSDirectory.open(new File(folder + "/" + MAIN_INDEX_FOLDER)));
-			searcher = new IndexSearcher(reader);
-			searcher.setSimilarity(new DefaultSimilarity());
 			BooleanQuery.setMaxClauseCount(Integer.MAX_VALUE);
 			QueryParser typeQueryParser = new QueryParser(Version.LUCENE_4_9, "TYPE", new KeywordAnalyzer());
-			conceptQuery = typeQueryParser.parse(CONCEPT_TYPE_STRING);
-			numDocs = reader.numDocs();
+			Query conceptQuery = typeQueryParser.parse(CONCEPT_TYPE_STRING);
+			CosineRescorer rescorer = new CosineRescorer(reader, "TERM", getConceptDocuments(reader));
+			MltQueryBuilder mltQueryBuilder = new MltQueryBuilder("TERM", termCache, rescorer);
+			ExactMatchIndex exactMatchIndex = ExactMatchIndex.open(folder + "/" + EXACT_MATCH_INDEX_FILE);
+			// The executor is created and shut down under the same lock as the state swap, so close() cannot run in between:
+			synchronized (this) {
+				if (searchThreads > 1 && searchExecutor == null)
+					searchExecutor = Executors.newFixedThreadPool(searchThreads, runnable -> {
+						Thread thread = new Thread(runnable, "Usagi search");
+						thread.setDaemon(true);
+						return thread;
+					});
+				swapSearchState(new SearchState(reader, searchExecutor, conceptQuery, rescorer, mltQueryBuilder, exactMatchIndex));
+			}
+			if (useDerivedIndex)
+				deleteOldDerivedIndexes();
 		} catch (Exception e) {
+			if (reader != null)
+				try {
+					reader.close();
+				} catch (IOException e2) {
+					e2.printStackTrace();
+				}
 			throw new RuntimeException(e);
 		}
 	}
 
-	public void close() {
+	/**
+	 * Returns the most recent generation of the derived index, or null if there is none.
+	 */
+	private File getDerivedIndexFolder() {
+		File[] generations = new File(folder + "/" + DERIVED_INDEX_FOLDER).listFiles();
+		File newest = null;
+		if (generations != null)
+			for (File generation : generations)
+				if (generation.isDirectory() && generation.getName().matches("[0-9]+"))
+					if (newest == null || Long.parseLong(generation.getName()) > Long.parseLong(newest.getName()))
+						newest = generation;
+		return newest;
+	}
+
+	/**
+	 * Removes all but the most recent derived index. A generation that is still open by a running search may fail to be deleted on some platforms, in which
+	 * case it is removed after the next rebuild.
+	 */
+	private void deleteOldDerivedIndexes() {
+		File newest = getDerivedIndexFolder();
+		for (File generation : new File(folder + "/" + DERIVED_INDEX_FOLDER).listFiles())
+			if (!generation.equals(newest))
+				DirectoryUtilities.deleteDir(generation);
+	}
+
+	private void swapSearchState(SearchState newState) {
+		SearchState oldState = searchState.getAndSet(newState);
+		if (oldState != null)
+			releaseSearchState(oldState);
+	}
+
+	/**
+	 * Returns the current search state with its reader reference incremented, or null if no index is open. Must be matched by a call to
+	 * releaseSearchState.
+	 */
+	private SearchState acquireSearchState() {
+		while (true) {
+			SearchState state = searchState.get();
+			if (state == null)
+				return null;
+			// Fails only if the state was replaced and its reader closed in the meantime, in which case we retry with the new state:
+			if (state.reader.tryIncRef())
+				return state;
+		}
+	}
+
+	private void releaseSearchState(SearchState state) {
 		try {
-			if (reader != null) {
-				reader.close();
-				reader = null;
-				System.gc();
+			state.reader.decRef();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private Bits getConceptDocuments(IndexReader reader) throws IOException {
+		FixedBitSet conceptDocuments = new FixedBitSet(reader.maxDoc());
+		DocsEnum docsEnum = MultiFields.getTermDocsEnum(reader, MultiFields.getLiveDocs(reader), "TYPE", new BytesRef(CONCEPT_TYPE_STRING));
+		if (docsEnum != null)
+			conceptDocuments.or(docsEnum);
+		return conceptDocuments;
+	}
+
+	public void close() {
+		waitForDerivedIndexMerge();
+		synchronized (this) {
+			swapSearchState(null);
+			if (searchExecutor != null) {
+				searchExecutor.shutdown();
+				searchExecutor = null;
 			}
+		}
+		try {
 			if (writer != null) {
 				// writer.forceMerge(1);
 				writer.close();
 				writer = null;
+				exactMatchIndexBuilder.write(folder + "/" + EXACT_MATCH_INDEX_FILE);
+				exactMatchIndexBuilder = null;
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -274,30 +566,68 @@ public class UsagiSearchEngine {
 	}
 
 	public int getTermCount() {
-		return reader.numDocs();
-
+		SearchState state = acquireSearchState();
+		if (state == null)
+			return 0;
+		try {
+			return state.reader.numDocs();
+		} finally {
+			releaseSearchState(state);
+		}
 	}
 
 	public List<ScoredConcept> search(String searchTerm, boolean useMlt, Collection<Integer> filterConceptIds, Vector<String> filterDomains, Vector<String> filterConceptClasses,
 			Vector<String> filterVocabularies, boolean filterStandard, boolean includeSourceConcepts) {
+		return search(searchTerm, useMlt, filterConceptIds, filterDomains, filterConceptClasses, filterVocabularies, filterStandard, includeSourceConcepts,
+				MAX_RESULTS);
+	}
+
+	/**
+	 * Same as {@link #search(String, boolean, Collection, Vector, Vector, Vector, boolean, boolean)}, but returns at most maxResults concepts instead of
+	 * MAX_RESULTS. Concepts having a term exactly matching the search term (ignoring case and whitespace) are returned first with a score of 1, and the remaining results
+	 * are filled from the Lucene index. If at least maxResults concepts match exactly, the Lucene index is not searched at all.
+	 */
+	public List<ScoredConcept> search(String searchTerm, boolean useMlt, Collection<Integer> filterConceptIds, Vector<String> filterDomains, Vector<String> filterConceptClasses,
+			Vector<String> filterVocabularies, boolean filterStandard, boolean includeSourceConcepts, int maxResults) {
+		return search(searchTerm, useMlt, filterConceptIds, filterDomains, filterConceptClasses, filterVocabularies, filterStandard, includeSourceConcepts,
+				maxResults, true);
+	}
+
+	/**
+	 * Same as {@link #search(String, boolean, Collection, Vector, Vector, Vector, boolean, boolean, int)}. If searchInParallel is false, the segments of the
+	 * index are searched on the calling thread even if search threads were configured. Callers that already run many searches in parallel should pass false.
+	 */
+	public List<ScoredConcept> search(String searchTerm, boolean useMlt, Collection<Integer> filterConceptIds, Vector<String> filterDomains, Vector<String> filterConceptClasses,
+			Vector<String> filterVocabularies, boolean filterStandard, boolean includeSourceConcepts, int maxResults, boolean searchInParallel) {
 		List<ScoredConcept> results = new ArrayList<ScoredConcept>();
+		long searchStart = Global.metrics.start();
+		Object event = UsagiEvents.beginSearch();
+		int hits = 0;
+		SearchState state = acquireSearchState();
 		try {
+			if (state == null)
+				return results;
+			long start = searchStart;
+			List<ScoredConcept> exactMatches = Collections.emptyList();
+			if (useMlt && state.exactMatchIndex != null) {
+				exactMatches = findExactMatches(state.exactMatchIndex, searchTerm, filterConceptIds, filterDomains, filterConceptClasses, filterVocabularies,
+						filterStandard, includeSourceConcepts);
+				exactMatchTime.recordSince(start);
+				if (exactMatches.size() != 0 && exactMatches.size() >= maxResults) {
+					reorderTies(exactMatches);
+					results = new ArrayList<ScoredConcept>(exactMatches.subList(0, maxResults));
+					hits = exactMatches.size();
+					Global.metrics.increment(exactMatchCount, 1);
+					return results;
+				}
+				start = Global.metrics.start();
+			}
 			Query query;
+			int[] queryTermOrdinals = null;
 			if (useMlt) {
-				MoreLikeThis mlt = new MoreLikeThis(searcher.getIndexReader());
-				mlt.setMinTermFreq(1);
-				mlt.setMinDocFreq(1);
-				mlt.setMaxDocFreq(9999);
-				mlt.setMinWordLen(1);
-				mlt.setMaxWordLen(9999);
-				mlt.setMaxDocFreqPct(100);
-				mlt.setMaxNumTokensParsed(9999);
-				mlt.setMaxQueryTerms(9999);
-				mlt.setStopWords(null);
-				mlt.setFieldNames(new String[] { "TERM" });
-				mlt.setAnalyzer(analyzer);
-
-				query = mlt.like("TERM", new StringReader(searchTerm));
+				MltQuery mltQuery = state.mltQueryBuilder.build(searchTerm);
+				query = mltQuery.query;
+				queryTermOrdinals = mltQuery.termOrdinals;
 			} else {
 				try {
 					QueryParser keywordsQueryParser = new QueryParser(Version.LUCENE_4_9, "TERM", analyzer);
@@ -307,9 +637,12 @@ public class UsagiSearchEngine {
 				}
 			}
 
+			mltTime.recordSince(start);
+
+			start = Global.metrics.start();
 			BooleanQuery booleanQuery = new BooleanQuery();
 			booleanQuery.add(query, Occur.SHOULD);
-			booleanQuery.add(conceptQuery, Occur.MUST);
+			booleanQuery.add(state.conceptQuery, Occur.MUST);
 
 			if (filterConceptIds != null && filterConceptIds.size() > 0) {
 				QueryParser conceptIdQueryParser = new QueryParser(Version.LUCENE_4_9, "CONCEPT_ID", new KeywordAnalyzer());
@@ -317,73 +650,221 @@ public class UsagiSearchEngine {
 				booleanQuery.add(conceptIdQuery, Occur.MUST);
 			}
 
-			if (filterDomains != null && filterDomains.size() != 0) {
-				BooleanQuery booleanSubQuery = new BooleanQuery();
-				for (String filterDomain : filterDomains) {
-					QueryParser domainQueryParser = new QueryParser(Version.LUCENE_4_9, "DOMAIN_ID", new KeywordAnalyzer());
-					Query domainQuery = domainQueryParser.parse("\"" + filterDomain + "\"");
-					booleanSubQuery.add(domainQuery, Occur.SHOULD);
-				}
-				booleanQuery.add(booleanSubQuery, Occur.MUST);
-			}
-			if (filterConceptClasses != null && filterConceptClasses.size() != 0) {
-				BooleanQuery booleanSubQuery = new BooleanQuery();
-				for (String filterConceptClass : filterConceptClasses) {
-					QueryParser conceptClassQueryParser = new QueryParser(Version.LUCENE_4_9, "CONCEPT_CLASS_ID", new KeywordAnalyzer());
-					Query conceptClassQuery = conceptClassQueryParser.parse("\"" + filterConceptClass + "\"");
-					booleanSubQuery.add(conceptClassQuery, Occur.SHOULD);
-				}
-				booleanQuery.add(booleanSubQuery, Occur.MUST);
+			// Attribute filters are checked per candidate document against the doc values:
+			Query filteredQuery = booleanQuery;
+			if (filterDomains != null && filterDomains.size() != 0)
+				filteredQuery = addDocValuesFilter(filteredQuery, "DOMAIN_ID", filterDomains);
+			if (filterConceptClasses != null && filterConceptClasses.size() != 0)
+				filteredQuery = addDocValuesFilter(filteredQuery, "CONCEPT_CLASS_ID", filterConceptClasses);
+			if (filterVocabularies != null && filterVocabularies.size() != 0)
+				filteredQuery = addDocValuesFilter(filteredQuery, "VOCABULARY_ID", filterVocabularies);
+			if (filterStandard)
+				filteredQuery = addDocValuesFilter(filteredQuery, "STANDARD_CONCEPT", Collections.singletonList("S"));
+			if (!includeSourceConcepts)
+				filteredQuery = addDocValuesFilter(filteredQuery, "TERM_TYPE", Collections.singletonList(CONCEPT_TERM));
+			filterTime.recordSince(start);
+
+			start = Global.metrics.start();
+			TopDocs topDocs = collectConcepts(state, filteredQuery, Math.max(candidateWindow, maxResults), searchInParallel).topDocs();
+			luceneTime.recordSince(start);
+
+			start = Global.metrics.start();
+			if (queryTermOrdinals == null)
+				queryTermOrdinals = state.rescorer.getTermOrdinals(query);
+			if (queryTermOrdinals != null)
+				recomputeScores(state.rescorer, topDocs.scoreDocs, queryTermOrdinals);
+			recomputeScoresTime.recordSince(start);
+			start = Global.metrics.start();
+			NumericDocValues conceptIds = MultiDocValues.getNumericValues(state.reader, "CONCEPT_ID");
+			BinaryDocValues terms = MultiDocValues.getBinaryValues(state.reader, "TERM");
+			// Keep the best term per concept. Of terms with equal scores, the concept name is preferred, as in reorderTies. Exact matches come first, and are
+			// not replaced by their Lucene hits. The exact match index does not store terms, so an exact match that is not on the concept name takes the
+			// matching term of its Lucene hit:
+			Map<Integer, ScoredConcept> conceptIdToResult = new HashMap<Integer, ScoredConcept>();
+			Set<Integer> exactMatchesWithoutTerm = new HashSet<Integer>();
+			for (ScoredConcept exactMatch : exactMatches) {
+				if (results.size() == maxResults)
+					break;
+				conceptIdToResult.put(exactMatch.concept.conceptId, exactMatch);
+				if (!isConceptName(exactMatch.term, exactMatch.concept))
+					exactMatchesWithoutTerm.add(exactMatch.concept.conceptId);
+				results.add(exactMatch);
 			}
-			if (filterVocabularies != null && filterVocabularies.size() != 0) {
-				BooleanQuery booleanSubQuery = new BooleanQuery();
-				for (String filterVocabulary : filterVocabularies) {
-					QueryParser vocabularyQueryParser = new QueryParser(Version.LUCENE_4_9, "VOCABULARY_ID", new KeywordAnalyzer());
-					Query vocabularyQuery = vocabularyQueryParser.parse("\"" + filterVocabulary + "\"");
-					booleanSubQuery.add(vocabularyQuery, Occur.SHOULD);
-				}
-				booleanQuery.add(booleanSubQuery, Occur.MUST);
-			}
-			if (filterStandard) {
-				QueryParser standardConceptQueryParser = new QueryParser(Version.LUCENE_4_9, "STANDARD_CONCEPT", new KeywordAnalyzer());
-				Query standardQuery = standardConceptQueryParser.parse("S");
-				booleanQuery.add(standardQuery, Occur.MUST);
-			}
-			if (!includeSourceConcepts) {
-				QueryParser termTypeQueryParser = new QueryParser(Version.LUCENE_4_9, "TERM_TYPE", new KeywordAnalyzer());
-				Query termTypeQuery = termTypeQueryParser.parse(CONCEPT_TERM);
-				booleanQuery.add(termTypeQuery, Occur.MUST);
-			}
-			TopDocs topDocs = searcher.search(booleanQuery, 100);
-
-			recomputeScores(topDocs.scoreDocs, query);
 			for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
-				Document document = reader.document(scoreDoc.doc);
-				int conceptId = Integer.parseInt(document.get("CONCEPT_ID"));
+				if (results.size() == maxResults && scoreDoc.score < results.get(maxResults - 1).matchScore)
+					break;
+				int conceptId = (int) conceptIds.get(scoreDoc.doc);
+				ScoredConcept result = conceptIdToResult.get(conceptId);
+				boolean needsTerm = result != null && exactMatchesWithoutTerm.contains(conceptId);
+				if (result != null && !needsTerm && (result.matchScore != scoreDoc.score || isConceptName(result.term, result.concept)))
+					continue;
+				String term = terms.get(scoreDoc.doc).utf8ToString();
+				if (result != null) {
+					if (needsTerm) {
+						if (ExactMatchIndex.normalize(term).equals(ExactMatchIndex.normalize(searchTerm))) {
+							result.term = term;
+							exactMatchesWithoutTerm.remove(conceptId);
+						}
+					} else if (isConceptName(term, result.concept))
+						result.term = term;
+					continue;
+				}
+				if (results.size() == maxResults)
+					continue;
 				Concept targetConcept = Global.dbEngine.getConcept(conceptId);
-				String term = document.get("TERM");
 				// If matchscore = 0 but it was the one concept that was automatically selected, still allow it:
-				if (scoreDoc.score > 0 || (filterConceptIds != null && filterConceptIds.size() == 1 && filterConceptIds.contains(targetConcept.conceptId)))
-					results.add(new ScoredConcept(scoreDoc.score, term, targetConcept));
+				if (scoreDoc.score > 0 || (filterConceptIds != null && filterConceptIds.size() == 1 && filterConceptIds.contains(targetConcept.conceptId))) {
+					result = new ScoredConcept(scoreDoc.score, term, targetConcept);
+					conceptIdToResult.put(conceptId, result);
+					results.add(result);
+				}
 			}
+			collectResultsTime.recordSince(start);
+			start = Global.metrics.start();
 			reorderTies(results);
-			removeDuplicateConcepts(results);
+			reorderTiesTime.recordSince(start);
+			hits = topDocs.scoreDocs.length;
+			Global.metrics.increment(hitCount, hits);
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
 			e.printStackTrace();
+		} finally {
+			if (state != null)
+				releaseSearchState(state);
+			searchTime.recordSince(searchStart);
+			Global.metrics.increment(queryCount, 1);
+			Global.metrics.increment(resultCount, results.size());
+			boolean filtered = (filterConceptIds != null && filterConceptIds.size() != 0) || (filterDomains != null && filterDomains.size() != 0)
+					|| (filterConceptClasses != null && filterConceptClasses.size() != 0) || (filterVocabularies != null && filterVocabularies.size() != 0)
+					|| filterStandard || !includeSourceConcepts;
+			UsagiEvents.endSearch(event, searchTerm.length(), hits, results.size(), filtered);
 		}
-
 		return results;
 	}
 
-	private void removeDuplicateConcepts(List<ScoredConcept> results) {
+	/**
+	 * Collects the top concepts for the query. If searching in parallel and a search executor is available, each segment is searched in its own task, and
+	 * the results are merged. The weight is created once for the whole index, so scores are the same as when searching the segments sequentially.
+	 */
+	private ConceptGroupingCollector collectConcepts(SearchState state, Query query, int maxConcepts, boolean searchInParallel) throws Exception {
+		List<AtomicReaderContext> leaves = state.reader.leaves();
+		if (!searchInParallel || state.executor == null || leaves.size() < 2) {
+			ConceptGroupingCollector collector = new ConceptGroupingCollector(maxConcepts, TERMS_PER_CONCEPT);
+			state.searcher.search(query, collector);
+			return collector;
+		}
+		Weight weight = state.searcher.createNormalizedWeight(query);
+		List<Future<ConceptGroupingCollector>> futures = new ArrayList<Future<ConceptGroupingCollector>>(leaves.size());
+		for (AtomicReaderContext leaf : leaves) {
+			FutureTask<ConceptGroupingCollector> task = new FutureTask<ConceptGroupingCollector>(() -> {
+				ConceptGroupingCollector collector = new ConceptGroupingCollector(maxConcepts, TERMS_PER_CONCEPT);
+				collector.setNextReader(leaf);
+				BulkScorer scorer = weight.bulkScorer(leaf, !collector.acceptsDocsOutOfOrder(), leaf.reader().getLiveDocs());
+				if (scorer != null)
+					scorer.score(collector);
+				return collector;
+			});
+			try {
+				state.executor.execute(task);
+			} catch (RejectedExecutionException e) {
+				// The engine was closed during the search. The reader stays open until the search releases it, so search the segment on this thread:
+				task.run();
+			}
+			futures.add(task);
+		}
+		ConceptGroupingCollector collector = futures.get(0).get();
+		for (int i = 1; i < futures.size(); i++)
+			collector.merge(futures.get(i).get());
+		return collector;
+	}
+
+	private List<ScoredConcept> findExactMatches(ExactMatchIndex exactMatchIndex, String searchTerm, Collection<Integer> filterConceptIds,
+			Vector<String> filterDomains, Vector<String> filterConceptClasses, Vector<String> filterVocabularies, boolean filterStandard,
+			boolean includeSourceConcepts) {
+		List<ScoredConcept> exactMatches = new ArrayList<ScoredConcept>();
 		Set<Integer> seenConceptIds = new HashSet<Integer>();
-		Iterator<ScoredConcept> iterator = results.iterator();
-		while (iterator.hasNext()) {
-			ScoredConcept scoredConcept = iterator.next();
-			if (!seenConceptIds.add(scoredConcept.concept.conceptId))
-				iterator.remove();
+		for (ExactMatchIndex.Match match : exactMatchIndex.lookup(searchTerm)) {
+			if (match.sourceTerm && !includeSourceConcepts)
+				continue;
+			if (filterConceptIds != null && filterConceptIds.size() != 0 && !filterConceptIds.contains(match.conceptId))
+				continue;
+			if (!seenConceptIds.add(match.conceptId))
+				continue;
+			Concept concept = Global.dbEngine.getConcept(match.conceptId);
+			if (concept == null)
+				continue;
+			if (filterDomains != null && filterDomains.size() != 0 && !filterDomains.contains(concept.domainId))
+				continue;
+			if (filterConceptClasses != null && filterConceptClasses.size() != 0 && !filterConceptClasses.contains(concept.conceptClassId))
+				continue;
+			if (filterVocabularies != null && filterVocabularies.size() != 0 && !filterVocabularies.contains(concept.vocabularyId))
+				continue;
+			if (filterStandard && !concept.standardConcept.equals("S"))
+				continue;
+			// Only hashes are kept in the exact match index, so the matched term is only known when it is the concept name:
+			String term = ExactMatchIndex.normalize(concept.conceptName).equals(ExactMatchIndex.normalize(searchTerm)) ? concept.conceptName : searchTerm;
+			exactMatches.add(new ScoredConcept(1f, term, concept));
 		}
+		return exactMatches;
+	}
+
+	/**
+	 * Gives access to the individual steps of a search, so these can be benchmarked. Must be closed when done.
+	 */
+	public SearchSteps openSearchSteps() {
+		return new SearchSteps();
+	}
+
+	/**
+	 * The individual steps of a search on the index that was open when it was created. The index stays open until this is closed, even if the engine is
+	 * closed or reopened in the meantime.
+	 */
+	public class SearchSteps implements Closeable {
+		private SearchState	state;
+
+		private SearchSteps() {
+			state = acquireSearchState();
+			if (state == null)
+				throw new RuntimeException("No index is open for searching");
+		}
+
+		/**
+		 * Creates the MoreLikeThis query used for searching.
+		 */
+		public Query createMltQuery(String searchTerm) {
+			return state.mltQueryBuilder.build(searchTerm).query;
+		}
+
+		/**
+		 * Retrieves the top hits of the query from Lucene, without grouping by concept or rescoring.
+		 */
+		public TopDocs luceneSearch(Query query, int maxHits) throws IOException {
+			return state.searcher.search(query, maxHits);
+		}
+
+		/**
+		 * Recomputes the scores of the hits as TF*IDF cosine similarity, and sorts them by descending score.
+		 */
+		public void recomputeScores(ScoreDoc[] scoreDocs, Query query) {
+			int[] queryTermOrdinals = state.rescorer.getTermOrdinals(query);
+			if (queryTermOrdinals != null)
+				UsagiSearchEngine.this.recomputeScores(state.rescorer, scoreDocs, queryTermOrdinals);
+		}
+
+		public void close() {
+			if (state != null) {
+				releaseSearchState(state);
+				state = null;
+			}
+		}
+	}
+
+	private Query addDocValuesFilter(Query query, String field, Collection<String> values) {
+		return new FilteredQuery(query, new FieldCacheTermsFilter(field, values.toArray(new String[values.size()])));
+	}
+
+	private static boolean isConceptName(String term, Concept concept) {
+		return term.toLowerCase().equals(concept.conceptName.toLowerCase());
 	}
 
 	private void reorderTies(List<ScoredConcept> scoredConcepts) {
@@ -409,33 +890,18 @@ public class UsagiSearchEngine {
 	 * 
 	 * @param scoreDocs
 	 *            The array of documents scored by Lucene
-	 * @param query
-	 *            The query used for retrieval
+	 * @param queryTermOrdinals
+	 *            The ordinals of the terms of the query used for retrieval
 	 */
-	private void recomputeScores(ScoreDoc[] scoreDocs, Query query) {
-		try {
-			Term2Tfidf searchTerm = null;
-			if (query instanceof BooleanQuery)
-				searchTerm = new Term2Tfidf((BooleanQuery) query);
-			else if (query instanceof TermQuery)
-				searchTerm = new Term2Tfidf((TermQuery) query);
-
-			if (searchTerm != null && !searchTerm.isInvalid()) {
-				for (ScoreDoc scoreDoc : scoreDocs) {
-					Term2Tfidf hit = new Term2Tfidf(scoreDoc.doc, "TERM");
-					scoreDoc.score = (float) searchTerm.cosineSimilarity(hit);
-				}
-				Arrays.sort(scoreDocs, new Comparator<ScoreDoc>() {
+	private void recomputeScores(CosineRescorer rescorer, ScoreDoc[] scoreDocs, int[] queryTermOrdinals) {
+		rescorer.rescore(scoreDocs, queryTermOrdinals);
+		Arrays.sort(scoreDocs, new Comparator<ScoreDoc>() {
 
-					@Override
-					public int compare(ScoreDoc arg0, ScoreDoc arg1) {
-						return -Float.compare(arg0.score, arg1.score);
-					}
-				});
+			@Override
+			public int compare(ScoreDoc arg0, ScoreDoc arg1) {
+				return -Float.compare(arg0.score, arg1.score);
 			}
-		} catch (Exception e) {
-			System.err.println(e.getMessage());
-		}
+		});
 	}
 
 	public static class ScoredConcept {
@@ -450,119 +916,8 @@ public class UsagiSearchEngine {
 		}
 	}
 
-	private class Term2Tfidf {
-		public TermTfidfPair[]	pairs;
-		public double			l1;
-		public boolean			invalid	= false;
-
-		public Term2Tfidf(int docId, String field) throws IOException {
-			Terms vector = reader.getTermVector(docId, field);
-
-			pairs = new TermTfidfPair[(int) vector.size()];
-			l1 = 0;
-
-			TermsEnum termsEnum = vector.iterator(null);
-			int i = 0;
-			BytesRef text;
-			while ((text = termsEnum.next()) != null) {
-				//double tfidf = termsEnum.totalTermFreq() * idf(reader.docFreq(new Term(field, termsEnum.term())), numDocs);
-				double tfidf = idf(reader.docFreq(new Term(field, termsEnum.term())), numDocs);
-				pairs[i++] = new TermTfidfPair(BytesRef.deepCopyOf(text), tfidf);
-				l1 += sqr(tfidf);
-			}
-
-			l1 = Math.sqrt(l1);
-			sort();
-		}
-
-		public boolean isInvalid() {
-			return invalid;
-		}
-
-		public Term2Tfidf(BooleanQuery query) throws IOException {
-			pairs = new TermTfidfPair[query.clauses().size()];
-			l1 = 0;
-			int i = 0;
-			for (BooleanClause clause : query.clauses()) {
-				if (!(clause.getQuery() instanceof TermQuery))
-					invalid = true;
-				else {
-					TermQuery q = (TermQuery) clause.getQuery();
-					double tfidf = idf(reader.docFreq(q.getTerm()), numDocs);
-					pairs[i++] = new TermTfidfPair(q.getTerm().bytes(), tfidf);
-					l1 += sqr(tfidf);
-				}
-			}
-			if (!invalid) {
-				l1 = Math.sqrt(l1);
-				sort();
-			}
-		}
-
-		public Term2Tfidf(TermQuery query) throws IOException {
-			pairs = new TermTfidfPair[1];
-			l1 = 0;
-			int i = 0;
-			double tfidf = idf(reader.docFreq(query.getTerm()), numDocs);
-			pairs[i++] = new TermTfidfPair(query.getTerm().bytes(), tfidf);
-			l1 += sqr(tfidf);
-			l1 = Math.sqrt(l1);
-			sort();
-		}
-
-		public void sort() {
-			Arrays.sort(pairs, new Comparator<TermTfidfPair>() {
-
-				@Override
-				public int compare(TermTfidfPair o1, TermTfidfPair o2) {
-					return o1.term.compareTo(o2.term);
-				}
-			});
-		}
-
-		public double cosineSimilarity(Term2Tfidf other) {
-			int cursor1 = 0;
-			int cursor2 = 0;
-			double dotProduct = 0;
-			while (cursor1 < pairs.length && cursor2 < other.pairs.length) {
-				int compare = pairs[cursor1].term.compareTo(other.pairs[cursor2].term);
-				if (compare == 0) {
-					dotProduct += pairs[cursor1].tfidf * other.pairs[cursor2].tfidf;
-					cursor1++;
-					cursor2++;
-				} else if (compare < 0) {
-					cursor1++;
-				} else {
-					cursor2++;
-				}
-			}
-			if (l1 == 0 || other.l1 == 0)
-				return 0;
-			else
-				return dotProduct / (l1 * other.l1);
-		}
-	}
-
-	private class TermTfidfPair {
-		public TermTfidfPair(BytesRef term, Double tfidf) {
-			this.term = term;
-			this.tfidf = tfidf;
-		}
-
-		public BytesRef	term;
-		public double	tfidf;
-	}
-
-	private double sqr(double x) {
-		return x * x;
-	}
-
-	private double idf(int docFreq, int d) {
-		return Math.log(d / (double) docFreq);
-	}
-
 	public boolean isOpenForSearching() {
-		return (reader != null);
+		return (searchState.get() != null);
 	}
 }
 
@@ -15,36 +15,46 @@
  ******************************************************************************/
 package org.ohdsi.usagi;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
-import org.ohdsi.utilities.files.Row;
+import org.ohdsi.utilities.files.RowSchema;
 import org.ohdsi.utilities.files.WriteCSVFileWithHeader;
 
 /**
- * Class for writing code mappings (source codes and mapped target concept(s)) to a CSV file.
+ * Class for writing code mappings (source codes and mapped target concept(s)) to a CSV file. The header is derived from the first code mapping.
  */
 public class WriteCodeMappingsToFile {
-	private WriteCSVFileWithHeader out;
+	private WriteCSVFileWithHeader	out;
+	private boolean					headerWritten	= false;
 
 	public WriteCodeMappingsToFile(String filename) {
 		out = new WriteCSVFileWithHeader(filename);
 	}
 
 	public void write(CodeMapping codeMapping) {
+		SourceCode sourceCode = codeMapping.sourceCode;
+		if (!headerWritten) {
+			List<String> fieldNames = sourceCode.toRow().getFieldNames();
+			fieldNames.add("matchScore");
+			fieldNames.add("mappingStatus");
+			fieldNames.add("conceptId");
+			fieldNames.add("comment");
+			out.writeHeader(new RowSchema(fieldNames));
+			headerWritten = true;
+		}
 		List<Concept> targetConcepts;
-		if (codeMapping.targetConcepts.size() == 0) {
-			targetConcepts = new ArrayList<Concept>(1);
-			targetConcepts.add(Concept.EMPTY_CONCEPT);
-		} else
+		if (codeMapping.targetConcepts.size() == 0)
+			targetConcepts = Collections.singletonList(Concept.EMPTY_CONCEPT);
+		else
 			targetConcepts = codeMapping.targetConcepts;
 		for (Concept targetConcept : targetConcepts) {
-			Row row = codeMapping.sourceCode.toRow();
-			row.add("matchScore", codeMapping.matchScore);
-			row.add("mappingStatus", codeMapping.mappingStatus.toString());
-			row.add("conceptId", targetConcept.conceptId);
-			row.add("comment", codeMapping.comment);
-			out.write(row);
+			sourceCode.addCells(out);
+			out.add(codeMapping.matchScore);
+			out.add(codeMapping.mappingStatus.toString());
+			out.add(targetConcept.conceptId);
+			out.add(codeMapping.comment);
+			out.endRow();
 		}
 	}
 
@@ -15,49 +15,149 @@
  ******************************************************************************/
 package org.ohdsi.usagi.dataImport;
 
+import java.io.File;
+import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
+import org.ohdsi.usagi.BerkeleyDbEngine;
 import org.ohdsi.usagi.CodeMapping;
 import org.ohdsi.usagi.CodeMapping.MappingStatus;
 import org.ohdsi.usagi.SourceCode;
 import org.ohdsi.usagi.Concept;
+import org.ohdsi.usagi.MappingCandidates;
+import org.ohdsi.usagi.MappingCandidatesFile;
 import org.ohdsi.usagi.UsagiSearchEngine;
 import org.ohdsi.usagi.UsagiSearchEngine.ScoredConcept;
 import org.ohdsi.usagi.WriteCodeMappingsToFile;
+import org.ohdsi.usagi.jfr.UsagiEvents;
+import org.ohdsi.usagi.ui.Global;
+import org.ohdsi.utilities.StringUtilities;
 import org.ohdsi.utilities.collections.Pair;
 import org.ohdsi.utilities.files.ReadCSVFileWithHeader;
 import org.ohdsi.utilities.files.Row;
+import org.ohdsi.utilities.files.RowSchema;
+import org.ohdsi.utilities.files.WriteCSVFileWithHeader;
 
 /**
- * Use this class to programmatically import data into the Usagi format
+ * Use this class to programmatically import data into the Usagi format. It can also be run from the command line to automatically map a file of source
+ * codes without starting the user interface, for example:
+ * 
+ * <pre>
+ * java -cp Usagi.jar org.ohdsi.usagi.dataImport.ImportData --usagiFolder /data/usagi --sourceFile codes.csv --mappingFile mapping.csv
+ *      --sourceCodeColumn code --sourceNameColumn name --threads 8
+ * </pre>
+ * 
+ * Run without arguments to see all options.
  * 
  * @author MSCHUEMI
  * 
  */
 public class ImportData {
 
-	public static String		SOURCE_CODE_TYPE_STRING	= "S";
-	public static String		CONCEPT_TYPE_STRING		= "C";
+	public static String		SOURCE_CODE_TYPE_STRING		= "S";
+	public static String		CONCEPT_TYPE_STRING			= "C";
+	public static String		OUTPUT_FORMAT_USAGI			= "usagi";
+	public static String		OUTPUT_FORMAT_CANDIDATES	= "candidates";
+	public static int			CHUNK_SIZE					= 1000;
 
 	private UsagiSearchEngine	usagiSearchEngine;
 
+	public static void main(String[] args) {
+		ImportSettings settings;
+		try {
+			settings = parseArguments(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Error: " + e.getMessage());
+			System.err.println();
+			printUsage();
+			System.exit(1);
+			return;
+		}
+		new ImportData().process(settings);
+	}
+
 	public void process(ImportSettings settings) {
+		long startTime = System.currentTimeMillis();
+		boolean openedDbEngine = false;
+		if (Global.dbEngine == null) {
+			Global.dbEngine = new BerkeleyDbEngine(settings.usagiFolder);
+			Global.dbEngine.openForReading();
+			openedDbEngine = true;
+		}
 		usagiSearchEngine = new UsagiSearchEngine(settings.usagiFolder);
+		usagiSearchEngine.setCandidateWindow(settings.candidateWindow);
+		if (!usagiSearchEngine.mainIndexExists())
+			throw new RuntimeException("No index found in " + settings.usagiFolder + ". Please build the index using the Usagi user interface first.");
+		if (!usagiSearchEngine.mainIndexIsCurrent())
+			throw new RuntimeException("The index in " + settings.usagiFolder + " was built by an older version of Usagi. Please rebuild the index using the Usagi user interface.");
+
 		List<SourceCode> sourceCodes = new ArrayList<SourceCode>();
 		for (Row row : new ReadCSVFileWithHeader(settings.sourceFile))
 			sourceCodes.add(convertToSourceCode(row, settings));
+		StringUtilities.outputWithTime("Loaded " + sourceCodes.size() + " source codes");
+
+		long indexStartTime = System.currentTimeMillis();
+		usagiSearchEngine.createDerivedIndex(sourceCodes);
+		usagiSearchEngine.openIndexForSearching(true);
+		if (settings.mergeIndex)
+			usagiSearchEngine.mergeDerivedIndexInBackground();
+		long indexTime = System.currentTimeMillis() - indexStartTime;
+		Global.metrics.histogram("import.derivedIndex").record(indexTime * 1000000L);
+		StringUtilities.outputWithTime("Created derived index");
 
-		usagiSearchEngine.createDerivedIndex(sourceCodes, null);
+		long searchStartTime = System.currentTimeMillis();
+		List<List<ScoredConcept>> candidates = search(sourceCodes, settings);
+		long searchTime = System.currentTimeMillis() - searchStartTime;
+		Global.metrics.histogram("import.search").record(searchTime * 1000000L);
 
-		createInitialMapping(sourceCodes, settings);
+		int mapped = 0;
+		for (List<ScoredConcept> concepts : candidates)
+			if (concepts.size() > 0)
+				mapped++;
 
+		long writeStart = Global.metrics.start();
+		if (settings.outputFormat.equals(OUTPUT_FORMAT_CANDIDATES))
+			writeCandidates(sourceCodes, candidates, settings);
+		else
+			createInitialMapping(sourceCodes, candidates, settings);
+		Global.metrics.histogram("import.write").recordSince(writeStart);
+		usagiSearchEngine.close();
+		if (openedDbEngine) {
+			Global.dbEngine.shutdown();
+			Global.dbEngine = null;
+		}
+
+		long totalTime = System.currentTimeMillis() - startTime;
+		DecimalFormat df = new DecimalFormat("#,##0.0");
+		System.out.println();
+		System.out.println("*** Automapping statistics ***");
+		System.out.println("Source codes:             " + sourceCodes.size());
+		System.out.println("Codes with a match:       " + mapped);
+		System.out.println("Threads:                  " + settings.threadCount);
+		System.out.println("Derived index time:       " + df.format(indexTime / 1000d) + " s");
+		System.out.println("Search time:              " + df.format(searchTime / 1000d) + " s");
+		System.out.println("Search throughput:        " + df.format(sourceCodes.size() / Math.max(searchTime / 1000d, 0.001)) + " codes/s");
+		System.out.println("Total time:               " + df.format(totalTime / 1000d) + " s");
+		if (settings.metricsFile != null) {
+			Global.metrics.writeReport(settings.metricsFile);
+			StringUtilities.outputWithTime("Wrote timing metrics to " + settings.metricsFile);
+		}
 	}
 
 	private SourceCode convertToSourceCode(Row row, ImportSettings settings) {
 		SourceCode sourceCode = new SourceCode();
-		sourceCode.sourceCode = row.get(settings.sourceCodeColumn);
+		if (settings.sourceCodeColumn == null)
+			sourceCode.sourceCode = "";
+		else
+			sourceCode.sourceCode = row.get(settings.sourceCodeColumn);
 		sourceCode.sourceName = row.get(settings.sourceNameColumn);
 		if (settings.sourceFrequencyColumn != null)
 			sourceCode.sourceFrequency = row.getInt(settings.sourceFrequencyColumn);
@@ -70,13 +170,57 @@ public class ImportData {
 		return sourceCode;
 	}
 
-	private void createInitialMapping(List<SourceCode> sourceCodes, ImportSettings settings) {
+	/**
+	 * Searches all source codes in parallel. The returned list has the same order as the source codes, and holds at most topK concepts per code.
+	 */
+	private List<List<ScoredConcept>> search(List<SourceCode> sourceCodes, ImportSettings settings) {
+		List<List<ScoredConcept>> candidates = new ArrayList<List<ScoredConcept>>(Collections.nCopies(sourceCodes.size(), (List<ScoredConcept>) null));
+		AtomicInteger count = new AtomicInteger();
+
+		// Note: Lucene's and BerkeleyDB's search objects are thread safe, so do not need to be recreated for each thread.
+		ForkJoinPool forkJoinPool = new ForkJoinPool(settings.threadCount);
+		try {
+			for (int start = 0; start < sourceCodes.size(); start += CHUNK_SIZE) {
+				int chunkStart = start;
+				int chunkEnd = Math.min(start + CHUNK_SIZE, sourceCodes.size());
+				AtomicInteger matched = new AtomicInteger();
+				Object event = UsagiEvents.beginImportChunk();
+				forkJoinPool.submit(() -> IntStream.range(chunkStart, chunkEnd).parallel().forEach(i -> {
+					SourceCode sourceCode = sourceCodes.get(i);
+					List<ScoredConcept> concepts = usagiSearchEngine.search(sourceCode.sourceName, true,
+							settings.filterByAuto ? sourceCode.sourceAutoAssignedConceptIds : null, settings.filterDomains, settings.filterConceptClasses,
+							settings.filterVocabularies, settings.filterStandard, settings.includeSourceTerms, settings.topK);
+					if (concepts.size() > settings.topK)
+						concepts = new ArrayList<ScoredConcept>(concepts.subList(0, settings.topK));
+					if (concepts.size() > 0)
+						matched.incrementAndGet();
+					candidates.set(i, concepts);
+					int done = count.incrementAndGet();
+					if (done % 10000 == 0)
+						StringUtilities.outputWithTime("Searched " + done + " of " + sourceCodes.size() + " source codes");
+				})).get();
+				UsagiEvents.endImportChunk(event, chunkStart, chunkEnd - chunkStart, matched.get());
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		} finally {
+			forkJoinPool.shutdown();
+		}
+		return candidates;
+	}
+
+	private void createInitialMapping(List<SourceCode> sourceCodes, List<List<ScoredConcept>> candidates, ImportSettings settings) {
 		WriteCodeMappingsToFile out = new WriteCodeMappingsToFile(settings.mappingFile);
-		for (SourceCode sourceCode : sourceCodes) {
+		String filterSignatureAuto = MappingCandidates.filterSignature(true, settings.filterDomains, settings.filterConceptClasses,
+				settings.filterVocabularies, settings.filterStandard, settings.includeSourceTerms);
+		String filterSignature = MappingCandidates.filterSignature(false, settings.filterDomains, settings.filterConceptClasses,
+				settings.filterVocabularies, settings.filterStandard, settings.includeSourceTerms);
+		Map<String, String> termPool = new HashMap<String, String>();
+		List<CodeMapping> codeMappings = new ArrayList<CodeMapping>();
+		for (int i = 0; i < sourceCodes.size(); i++) {
+			SourceCode sourceCode = sourceCodes.get(i);
+			List<ScoredConcept> concepts = candidates.get(i);
 			CodeMapping codeMapping = new CodeMapping(sourceCode);
-
-			List<ScoredConcept> concepts = usagiSearchEngine.search(sourceCode.sourceName, true, sourceCode.sourceAutoAssignedConceptIds,
-					settings.filterDomains, settings.filterConceptClasses, settings.filterVocabularies, settings.filterStandard, settings.includeSourceTerms);
 			if (concepts.size() > 0) {
 				codeMapping.targetConcepts.add(concepts.get(0).concept);
 				codeMapping.matchScore = concepts.get(0).matchScore;
@@ -84,6 +228,7 @@ public class ImportData {
 				codeMapping.targetConcepts.add(Concept.EMPTY_CONCEPT);
 				codeMapping.matchScore = 0;
 			}
+			codeMapping.comment = "";
 			codeMapping.mappingStatus = MappingStatus.UNCHECKED;
 			if (sourceCode.sourceAutoAssignedConceptIds.size() == 1 && concepts.size() > 0) {
 				codeMapping.mappingStatus = MappingStatus.AUTO_MAPPED_TO_1;
@@ -91,15 +236,207 @@ public class ImportData {
 				codeMapping.mappingStatus = MappingStatus.AUTO_MAPPED;
 			}
 			out.write(codeMapping);
+			if (settings.saveCandidates) {
+				boolean filteredByAuto = settings.filterByAuto && sourceCode.sourceAutoAssignedConceptIds.size() != 0;
+				codeMapping.candidates = MappingCandidates.fromScoredConcepts(concepts, settings.topK, filteredByAuto ? filterSignatureAuto : filterSignature,
+						termPool);
+				codeMappings.add(codeMapping);
+			}
+		}
+		out.close();
+		if (settings.saveCandidates)
+			MappingCandidatesFile.write(MappingCandidatesFile.getFilename(settings.mappingFile), codeMappings);
+	}
+
+	/**
+	 * Writes one row per source code and candidate concept, ranked by match score. Source codes without any candidate get a single row with concept ID 0.
+	 */
+	private void writeCandidates(List<SourceCode> sourceCodes, List<List<ScoredConcept>> candidates, ImportSettings settings) {
+		WriteCSVFileWithHeader out = new WriteCSVFileWithHeader(settings.mappingFile, new RowSchema("sourceCode", "sourceName", "rank", "matchScore",
+				"matchedTerm", "conceptId", "conceptName", "domainId", "vocabularyId", "conceptClassId", "standardConcept"));
+		for (int i = 0; i < sourceCodes.size(); i++) {
+			SourceCode sourceCode = sourceCodes.get(i);
+			List<ScoredConcept> concepts = candidates.get(i);
+			if (concepts.size() == 0)
+				concepts = Collections.singletonList(new ScoredConcept(0, "", Concept.EMPTY_CONCEPT));
+			for (int rank = 0; rank < concepts.size(); rank++) {
+				ScoredConcept scoredConcept = concepts.get(rank);
+				out.add(sourceCode.sourceCode);
+				out.add(sourceCode.sourceName);
+				out.add(rank + 1);
+				out.add(scoredConcept.matchScore);
+				out.add(scoredConcept.term);
+				out.add(scoredConcept.concept.conceptId);
+				out.add(scoredConcept.concept.conceptName);
+				out.add(scoredConcept.concept.domainId);
+				out.add(scoredConcept.concept.vocabularyId);
+				out.add(scoredConcept.concept.conceptClassId);
+				out.add(scoredConcept.concept.standardConcept);
+				out.endRow();
+			}
 		}
 		out.close();
 	}
 
+	/**
+	 * Parses command line arguments of the form --name value into import settings.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if an argument is unknown, lacks a value, or a required argument is missing
+	 */
+	public static ImportSettings parseArguments(String[] args) {
+		ImportSettings settings = new ImportSettings();
+		if (args.length == 0)
+			throw new IllegalArgumentException("No arguments specified");
+		for (int i = 0; i < args.length; i++) {
+			String name = args[i];
+			if (!name.startsWith("--"))
+				throw new IllegalArgumentException("Unexpected argument '" + name + "'");
+			if (i + 1 >= args.length)
+				throw new IllegalArgumentException("Missing value for " + name);
+			String value = args[++i];
+			switch (name) {
+				case "--usagiFolder":
+					settings.usagiFolder = value;
+					break;
+				case "--sourceFile":
+					settings.sourceFile = value;
+					break;
+				case "--mappingFile":
+					settings.mappingFile = value;
+					break;
+				case "--sourceCodeColumn":
+					settings.sourceCodeColumn = value;
+					break;
+				case "--sourceNameColumn":
+					settings.sourceNameColumn = value;
+					break;
+				case "--sourceFrequencyColumn":
+					settings.sourceFrequencyColumn = value;
+					break;
+				case "--autoConceptIdsColumn":
+					settings.autoConceptIdsColumn = value;
+					break;
+				case "--additionalInfoColumns":
+					settings.additionalInfoColumns = new ArrayList<String>(parseList(value));
+					break;
+				case "--filterDomains":
+					settings.filterDomains = parseList(value);
+					break;
+				case "--filterConceptClasses":
+					settings.filterConceptClasses = parseList(value);
+					break;
+				case "--filterVocabularies":
+					settings.filterVocabularies = parseList(value);
+					break;
+				case "--filterStandard":
+					settings.filterStandard = parseBoolean(name, value);
+					break;
+				case "--filterByAuto":
+					settings.filterByAuto = parseBoolean(name, value);
+					break;
+				case "--includeSourceTerms":
+					settings.includeSourceTerms = parseBoolean(name, value);
+					break;
+				case "--threads":
+					settings.threadCount = parsePositiveInt(name, value);
+					break;
+				case "--saveCandidates":
+					settings.saveCandidates = parseBoolean(name, value);
+					break;
+				case "--topK":
+					settings.topK = parsePositiveInt(name, value);
+					break;
+				case "--candidateWindow":
+					settings.candidateWindow = parsePositiveInt(name, value);
+					break;
+				case "--mergeIndex":
+					settings.mergeIndex = parseBoolean(name, value);
+					break;
+				case "--outputFormat":
+					if (!value.equals(OUTPUT_FORMAT_USAGI) && !value.equals(OUTPUT_FORMAT_CANDIDATES))
+						throw new IllegalArgumentException("Unknown output format '" + value + "'");
+					settings.outputFormat = value;
+					break;
+				case "--metricsFile":
+					settings.metricsFile = value;
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown argument '" + name + "'");
+			}
+		}
+		if (settings.sourceFile.equals(""))
+			throw new IllegalArgumentException("--sourceFile must be specified");
+		if (settings.mappingFile.equals(""))
+			throw new IllegalArgumentException("--mappingFile must be specified");
+		if (settings.sourceNameColumn == null)
+			throw new IllegalArgumentException("--sourceNameColumn must be specified");
+		return settings;
+	}
+
+	private static Vector<String> parseList(String value) {
+		Vector<String> list = new Vector<String>();
+		for (String item : value.split(","))
+			if (item.trim().length() != 0)
+				list.add(item.trim());
+		return list;
+	}
+
+	private static int parsePositiveInt(String name, String value) {
+		try {
+			int result = Integer.parseInt(value);
+			if (result > 0)
+				return result;
+		} catch (NumberFormatException e) {
+			// Handled below
+		}
+		throw new IllegalArgumentException(name + " must be a positive integer");
+	}
+
+	private static boolean parseBoolean(String name, String value) {
+		if (value.equalsIgnoreCase("true"))
+			return true;
+		if (value.equalsIgnoreCase("false"))
+			return false;
+		throw new IllegalArgumentException(name + " must be true or false");
+	}
+
+	private static void printUsage() {
+		System.err.println("Usage: java -cp Usagi.jar " + ImportData.class.getName() + " [options]");
+		System.err.println();
+		System.err.println("Required:");
+		System.err.println("  --sourceFile <file>              CSV file containing the source codes");
+		System.err.println("  --mappingFile <file>             Where the output CSV file will be written");
+		System.err.println("  --sourceNameColumn <name>        Column containing the source code names, used for matching");
+		System.err.println();
+		System.err.println("Optional:");
+		System.err.println("  --usagiFolder <folder>           Folder containing the Usagi index (default: current folder)");
+		System.err.println("  --sourceCodeColumn <name>        Column containing the source codes");
+		System.err.println("  --sourceFrequencyColumn <name>   Column containing the source code frequencies");
+		System.err.println("  --autoConceptIdsColumn <name>    Column containing semicolon-delimited concept IDs to restrict the search to");
+		System.err.println("  --additionalInfoColumns <names>  Comma-delimited list of columns to keep as additional information");
+		System.err.println("  --filterDomains <ids>            Comma-delimited list of domains to restrict the search to");
+		System.err.println("  --filterConceptClasses <ids>     Comma-delimited list of concept classes to restrict the search to");
+		System.err.println("  --filterVocabularies <ids>       Comma-delimited list of vocabularies to restrict the search to");
+		System.err.println("  --filterStandard <true|false>    Restrict the search to standard concepts (default: true)");
+		System.err.println("  --filterByAuto <true|false>      Restrict the search to the auto concept IDs, if any (default: true)");
+		System.err.println("  --includeSourceTerms <true|false> Also match on names of source concepts (default: true)");
+		System.err.println("  --threads <n>                    Number of search threads (default: number of processors)");
+		System.err.println("  --topK <n>                       Number of candidate concepts to keep per source code (default: 1)");
+		System.err.println("  --candidateWindow <n>            Number of concepts retrieved and rescored per search (default: " + UsagiSearchEngine.CANDIDATE_WINDOW + ")");
+		System.err.println("  --mergeIndex <true|false>        Merge the derived index into a single segment in the background while searching (default: false)");
+		System.err.println("  --saveCandidates <true|false>    Also write the top K candidates of each code to a file next to the mapping file,");
+		System.err.println("                                   so Usagi can show them without searching again (default: false)");
+		System.err.println("  --outputFormat <format>          '" + OUTPUT_FORMAT_USAGI + "' for a Usagi mapping file (default), or '" + OUTPUT_FORMAT_CANDIDATES
+				+ "' for one row per candidate concept");
+		System.err.println("  --metricsFile <file>             Write timings of the import and of each search stage to this file");
+	}
+
 	public static class ImportSettings {
 		/**
 		 * The root folder of Usagi. This is needed to locate the index
 		 */
-		public String		usagiFolder				= "s:/data/Usagi";
+		public String		usagiFolder				= new File("").getAbsolutePath();
 
 		/**
 		 * The full path to the csv file containing the source code information
@@ -132,6 +469,11 @@ public class ImportData {
 		 */
 		public boolean		filterStandard			= true;
 
+		/**
+		 * Specify whether the search should be restricted to the automatically assigned concept IDs (if any)
+		 */
+		public boolean		filterByAuto			= true;
+
 		/**
 		 * The name of the column containing the source codes
 		 */
@@ -161,6 +503,42 @@ public class ImportData {
 		 * Include names of source concepts that map to standard concepts in the search?
 		 */
 		public boolean includeSourceTerms = true;
+
+		/**
+		 * The number of threads used for searching
+		 */
+		public int			threadCount				= Math.max(1, Runtime.getRuntime().availableProcessors());
+
+		/**
+		 * The maximum number of candidate concepts to keep per source code
+		 */
+		public int			topK					= 1;
+
+		/**
+		 * The number of concepts retrieved by the first search stage and rescored by cosine similarity
+		 */
+		public int			candidateWindow			= UsagiSearchEngine.CANDIDATE_WINDOW;
+
+		/**
+		 * Specify whether the derived index should be merged into a single segment in the background. Searches switch to the merged index once it is ready
+		 */
+		public boolean		mergeIndex				= false;
+
+		/**
+		 * Specify whether the top K candidates of each source code should be saved next to the mapping file, so they can be shown in Usagi without
+		 * searching again. Only used when the output format is OUTPUT_FORMAT_USAGI
+		 */
+		public boolean		saveCandidates			= false;
+
+		/**
+		 * The format of the output file. Either OUTPUT_FORMAT_USAGI or OUTPUT_FORMAT_CANDIDATES
+		 */
+		public String		outputFormat			= OUTPUT_FORMAT_USAGI;
+
+		/**
+		 * If not null, timings of the import steps and search stages are written to this tab-delimited file
+		 */
+		public String		metricsFile				= null;
 	}
 
 }
@@ -8,6 +8,7 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 
 import org.ohdsi.usagi.ErrorReport;
+import org.ohdsi.usagi.jfr.UsagiEvents;
 import org.ohdsi.usagi.ui.Global;
 import org.ohdsi.utilities.StringUtilities;
 
@@ -87,14 +88,20 @@ public class IndexBuildCoordinator {
 
 		public void run() {
 			try {
+				Object event = UsagiEvents.beginIndexBuildStage();
 				VocabVersionGrabber vocabVersionGrabber = new VocabVersionGrabber();
 				vocabVersionGrabber.grabVersion(vocabFolder);
+				UsagiEvents.endIndexBuildStage(event, "Vocabulary version", vocabFolder);
 				
+				event = UsagiEvents.beginIndexBuildStage();
 				BerkeleyDbBuilder berkeleyDbBuilder = new BerkeleyDbBuilder();
 				berkeleyDbBuilder.buildIndex(vocabFolder, loincFile, this);
+				UsagiEvents.endIndexBuildStage(event, "Berkeley DB", vocabFolder);
 
+				event = UsagiEvents.beginIndexBuildStage();
 				LuceneIndexBuilder luceneIndexBuilder = new LuceneIndexBuilder();
 				luceneIndexBuilder.buildIndex(vocabFolder, loincFile, this);
+				UsagiEvents.endIndexBuildStage(event, "Lucene index", vocabFolder);
 				sleep(2000);
 
 				System.out.println("Finished building indexes");
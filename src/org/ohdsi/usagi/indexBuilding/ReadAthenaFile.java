@@ -6,12 +6,13 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 
 import org.ohdsi.utilities.files.Row;
+import org.ohdsi.utilities.files.RowSchema;
 
 public class ReadAthenaFile implements Iterable<Row> {
 	public String				filename;
@@ -36,14 +37,15 @@ public class ReadAthenaFile implements Iterable<Row> {
 	}
 
 	private class AthenaFileIterator implements Iterator<Row> {
-		private List<String>				buffer;
-		private HashMap<String, Integer>	fieldName2ColumnIndex;
+		private List<String>	buffer;
+		private RowSchema		schema;
 
 		public AthenaFileIterator() {
 			readNext();
-			fieldName2ColumnIndex = new HashMap<String, Integer>();
-			for (int i = 0; i < buffer.size(); i++)
-				fieldName2ColumnIndex.put(buffer.get(i).toLowerCase(), i);
+			List<String> fieldNames = new ArrayList<String>(buffer.size());
+			for (String fieldName : buffer)
+				fieldNames.add(fieldName.toLowerCase());
+			schema = new RowSchema(fieldNames);
 			if (!EOF)
 				readNext();
 		}
@@ -67,7 +69,7 @@ public class ReadAthenaFile implements Iterable<Row> {
 		}
 
 		public Row next() {
-			Row result = new Row(buffer, fieldName2ColumnIndex);
+			Row result = new Row(buffer, schema);
 			readNext();
 			return result;
 		}
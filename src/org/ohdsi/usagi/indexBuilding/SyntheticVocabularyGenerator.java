@@ -0,0 +1,363 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi.indexBuilding;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.ohdsi.utilities.StringUtilities;
+import org.ohdsi.utilities.files.Row;
+import org.ohdsi.utilities.files.WriteCSVFileWithHeader;
+import org.ohdsi.utilities.files.WriteTextFile;
+
+/**
+ * Generates a synthetic vocabulary in the tab-delimited Athena format read by the IndexBuildCoordinator (CONCEPT.csv, CONCEPT_SYNONYM.csv,
+ * CONCEPT_RELATIONSHIP.csv, CONCEPT_ANCESTOR.csv and VOCABULARY.csv), and matching source code files that can be imported. Real vocabularies are licensed,
+ * so this allows testing and benchmarking the full pipeline on any size from a few thousand to tens of millions of concepts.<br/>
+ * <br/>
+ * Concept names are built from a lexicon of pseudo-words drawn from a Zipf distribution, so a few words (and their n-grams) are very common and most are
+ * rare, as in real vocabularies. Name lengths follow a log-normal distribution. Standard concepts form a tree per domain with the requested depth, and
+ * non-standard concepts map to standard concepts. Everything is derived from the seed, so the same settings always produce the same files.
+ */
+public class SyntheticVocabularyGenerator {
+	public static int		FIRST_CONCEPT_ID		= 1000000;
+	public static String[]	DOMAINS					= { "Condition", "Drug", "Procedure", "Measurement", "Observation" };
+	public static String[]	VOCABULARIES			= { "SNOMED", "RxNorm", "CPT4", "LOINC", "SNOMED" };
+	public static String[]	CONCEPT_CLASSES			= { "Clinical Finding", "Clinical Drug", "Procedure", "Lab Test", "Observable Entity" };
+	public static String[]	SOURCE_VOCABULARIES		= { "ICD10CM", "NDC", "ICD10PCS", "Read", "Read" };
+	public static double[]	DOMAIN_WEIGHTS			= { 0.35, 0.25, 0.15, 0.15, 0.10 };
+
+	private static String[]	COMMON_WORDS			= { "of", "and", "disorder", "with", "left", "right", "chronic", "acute", "finding", "mg", "oral", "tablet",
+			"injection", "level", "serum", "structure", "procedure", "due", "to", "history", "primary", "secondary", "malignant", "neoplasm", "fracture",
+			"infection", "syndrome", "disease", "blood", "measurement" };
+	private static String[]	SYLLABLES				= { "car", "di", "o", "my", "pa", "thy", "neu", "ro", "gas", "tro", "en", "ter", "hy", "per", "ten", "sion",
+			"pul", "mo", "nar", "ren", "al", "he", "pat", "ic", "os", "teo", "ar", "thr", "lym", "pho", "ma", "derm", "a", "to", "sis", "cyst", "ec", "in",
+			"fec", "chron", "cu", "te", "ol", "ine", "ide", "ate", "ase", "glu", "co", "cor", "ti", "sol", "vas", "cu", "lar", "ce", "phal", "hep", "nep",
+			"hri", "oma", "itis", "algia", "emia", "ur", "ia", "pro", "sta", "ton", "gen", "bi", "li", "ac", "id" };
+	private static String[]	DOSE_FORMS				= { "Oral Tablet", "Oral Capsule", "Injectable Solution", "Topical Cream", "Oral Solution" };
+
+	public int				conceptCount			= 10000;
+	public int				hierarchyDepth			= 6;
+	public int				lexiconSize				= 20000;
+	public double			zipfExponent			= 1.0;
+	public double			medianWordCount			= 4;
+	public double			synonymFraction			= 0.3;
+	public double			nonStandardFraction		= 0.2;
+	public long				seed					= 0;
+
+	private String[]		lexicon;
+	private double[]		cumulativeWordProbabilities;
+	private int				standardCount;
+	private int[]			domainStarts;
+	private int[]			branchingFactors;
+
+	public static void main(String[] args) {
+		SyntheticVocabularyGenerator generator = new SyntheticVocabularyGenerator();
+		String vocabFolder = null;
+		String sourceFile = null;
+		int sourceCodeCount = 10000;
+		try {
+			for (int i = 0; i < args.length; i += 2) {
+				if (i + 1 >= args.length)
+					throw new IllegalArgumentException("Missing value for " + args[i]);
+				String value = args[i + 1];
+				switch (args[i]) {
+					case "--vocabFolder":
+						vocabFolder = value;
+						break;
+					case "--sourceFile":
+						sourceFile = value;
+						break;
+					case "--concepts":
+						generator.conceptCount = Integer.parseInt(value);
+						break;
+					case "--sourceCodes":
+						sourceCodeCount = Integer.parseInt(value);
+						break;
+					case "--depth":
+						generator.hierarchyDepth = Integer.parseInt(value);
+						break;
+					case "--lexiconSize":
+						generator.lexiconSize = Integer.parseInt(value);
+						break;
+					case "--zipfExponent":
+						generator.zipfExponent = Double.parseDouble(value);
+						break;
+					case "--medianWordCount":
+						generator.medianWordCount = Double.parseDouble(value);
+						break;
+					case "--synonymFraction":
+						generator.synonymFraction = Double.parseDouble(value);
+						break;
+					case "--nonStandardFraction":
+						generator.nonStandardFraction = Double.parseDouble(value);
+						break;
+					case "--seed":
+						generator.seed = Long.parseLong(value);
+						break;
+					default:
+						throw new IllegalArgumentException("Unknown argument: " + args[i]);
+				}
+			}
+			if (vocabFolder == null && sourceFile == null)
+				throw new IllegalArgumentException("Specify --vocabFolder, --sourceFile, or both");
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: java -cp Usagi.jar " + SyntheticVocabularyGenerator.class.getName()
+					+ " [--vocabFolder <folder>] [--sourceFile <file>] [--concepts <n>] [--sourceCodes <n>] [--depth <n>] [--lexiconSize <n>]"
+					+ " [--zipfExponent <x>] [--medianWordCount <x>] [--synonymFraction <x>] [--nonStandardFraction <x>] [--seed <n>]");
+			return;
+		}
+		if (vocabFolder != null)
+			generator.generateVocabulary(vocabFolder);
+		if (sourceFile != null)
+			generator.generateSourceCodes(sourceFile, sourceCodeCount);
+	}
+
+	/**
+	 * Writes the vocabulary files to the given folder.
+	 */
+	public void generateVocabulary(String vocabFolder) {
+		initialize();
+		StringUtilities.outputWithTime("Generating synthetic vocabulary with " + conceptCount + " concepts in " + vocabFolder);
+		new File(vocabFolder).mkdirs();
+		WriteTextFile concepts = new WriteTextFile(vocabFolder + "/CONCEPT.csv");
+		WriteTextFile synonyms = new WriteTextFile(vocabFolder + "/CONCEPT_SYNONYM.csv");
+		WriteTextFile ancestors = new WriteTextFile(vocabFolder + "/CONCEPT_ANCESTOR.csv");
+		WriteTextFile relationships = new WriteTextFile(vocabFolder + "/CONCEPT_RELATIONSHIP.csv");
+		concepts.writeln("concept_id\tconcept_name\tdomain_id\tvocabulary_id\tconcept_class_id\tstandard_concept\tconcept_code\tvalid_start_date\tvalid_end_date\tinvalid_reason");
+		synonyms.writeln("concept_id\tconcept_synonym_name\tlanguage_concept_id");
+		ancestors.writeln("ancestor_concept_id\tdescendant_concept_id\tmin_levels_of_separation\tmax_levels_of_separation");
+		relationships.writeln("concept_id_1\tconcept_id_2\trelationship_id\tvalid_start_date\tvalid_end_date\tinvalid_reason");
+		for (int index = 0; index < conceptCount; index++) {
+			int conceptId = getConceptId(index);
+			Random random = getRandom(index);
+			int domain = getDomain(index);
+			if (index < standardCount) {
+				concepts.writeln(conceptId + "\t" + getConceptName(index) + "\t" + DOMAINS[domain] + "\t" + VOCABULARIES[domain] + "\t"
+						+ CONCEPT_CLASSES[domain] + "\tS\t" + index + "\t19700101\t20991231\t");
+				ancestors.writeln(conceptId + "\t" + conceptId + "\t0\t0");
+				int level = 1;
+				int ancestor = getParent(index);
+				while (ancestor != -1) {
+					ancestors.writeln(getConceptId(ancestor) + "\t" + conceptId + "\t" + level + "\t" + level);
+					ancestor = getParent(ancestor);
+					level++;
+				}
+			} else {
+				int target = getMapsToTarget(index);
+				concepts.writeln(conceptId + "\t" + getConceptName(index) + "\t" + DOMAINS[domain] + "\t" + SOURCE_VOCABULARIES[domain] + "\t"
+						+ SOURCE_VOCABULARIES[domain] + "\t\tX" + index + "\t19700101\t20991231\t");
+				relationships.writeln(conceptId + "\t" + getConceptId(target) + "\tMaps to\t19700101\t20991231\t");
+				relationships.writeln(getConceptId(target) + "\t" + conceptId + "\tMapped from\t19700101\t20991231\t");
+			}
+			if (random.nextDouble() < synonymFraction)
+				synonyms.writeln(conceptId + "\t" + distort(getConceptName(index), random) + "\t4180186");
+			if ((index + 1) % 1000000 == 0)
+				StringUtilities.outputWithTime("- Generated " + (index + 1) + " concepts");
+		}
+		concepts.close();
+		synonyms.close();
+		ancestors.close();
+		relationships.close();
+
+		WriteTextFile vocabularies = new WriteTextFile(vocabFolder + "/VOCABULARY.csv");
+		vocabularies.writeln("vocabulary_id\tvocabulary_name\tvocabulary_reference\tvocabulary_version\tvocabulary_concept_id");
+		vocabularies.writeln("None\tOMOP Standardized Vocabularies\tSynthetic\tSynthetic " + conceptCount + " seed " + seed + "\t44819096");
+		Set<String> vocabularyIds = new HashSet<String>(Arrays.asList(VOCABULARIES));
+		vocabularyIds.addAll(Arrays.asList(SOURCE_VOCABULARIES));
+		for (String vocabularyId : vocabularyIds)
+			vocabularies.writeln(vocabularyId + "\t" + vocabularyId + "\tSynthetic\tSynthetic\t0");
+		vocabularies.close();
+		StringUtilities.outputWithTime("Finished generating vocabulary");
+	}
+
+	/**
+	 * Writes a comma-delimited source code file with the columns sourceCode, sourceName, sourceFrequency and targetConceptId. Source names are distorted
+	 * versions of concept names (dropped, abbreviated, reordered and misspelled words), and targetConceptId is the concept the name was derived from, so
+	 * mapping accuracy can be measured as well as speed.
+	 */
+	public void generateSourceCodes(String filename, int count) {
+		initialize();
+		Random random = new Random(seed + 1);
+		WriteCSVFileWithHeader out = new WriteCSVFileWithHeader(filename);
+		for (int i = 0; i < count; i++) {
+			int index = random.nextInt(conceptCount);
+			int target = index < standardCount ? index : getMapsToTarget(index);
+			Row row = new Row();
+			row.add("sourceCode", "SRC" + i);
+			row.add("sourceName", distort(getConceptName(index), random));
+			row.add("sourceFrequency", (int) (100000 / Math.pow(i + 1, 0.8)) + 1);
+			row.add("targetConceptId", getConceptId(target));
+			out.write(row);
+		}
+		out.close();
+	}
+
+	public int getConceptId(int index) {
+		return FIRST_CONCEPT_ID + index;
+	}
+
+	/**
+	 * Returns the name of the concept with the given index. Names of non-standard concepts are variations on the names of the standard concepts they map
+	 * to.
+	 */
+	public String getConceptName(int index) {
+		initialize();
+		Random random = getRandom(index);
+		if (index >= standardCount)
+			return distort(getConceptName(getMapsToTarget(index)), random);
+		int wordCount = (int) Math.round(Math.exp(Math.log(medianWordCount) + 0.5 * random.nextGaussian()));
+		wordCount = Math.max(1, Math.min(30, wordCount));
+		StringBuilder name = new StringBuilder();
+		for (int i = 0; i < wordCount; i++) {
+			if (i != 0)
+				name.append(' ');
+			name.append(sampleWord(random));
+		}
+		if (DOMAINS[getDomain(index)].equals("Drug"))
+			name.append(' ').append(5 * (1 + random.nextInt(200))).append(" MG ").append(DOSE_FORMS[random.nextInt(DOSE_FORMS.length)]);
+		name.setCharAt(0, Character.toUpperCase(name.charAt(0)));
+		return name.toString();
+	}
+
+	/**
+	 * Returns a variation of the name, as typically found in source data.
+	 */
+	public String distort(String name, Random random) {
+		String[] words = name.split(" ");
+		StringBuilder result = new StringBuilder();
+		int start = words.length > 2 && random.nextDouble() < 0.1 ? 1 : 0;
+		for (int i = 0; i < words.length; i++) {
+			String word = words[(i + start) % words.length];
+			double draw = random.nextDouble();
+			if (words.length > 1 && draw < 0.1)
+				continue;
+			if (draw < 0.2 && word.length() > 4)
+				word = word.substring(0, 3 + random.nextInt(2));
+			else if (draw < 0.3 && word.length() > 3) {
+				int position = random.nextInt(word.length() - 1);
+				word = word.substring(0, position) + word.charAt(position + 1) + word.charAt(position) + word.substring(position + 2);
+			}
+			if (result.length() != 0)
+				result.append(' ');
+			result.append(word);
+		}
+		if (result.length() == 0)
+			return name;
+		return random.nextDouble() < 0.2 ? result.toString().toUpperCase() : result.toString();
+	}
+
+	private synchronized void initialize() {
+		if (lexicon != null)
+			return;
+		if (conceptCount < 1 || hierarchyDepth < 1 || lexiconSize < COMMON_WORDS.length)
+			throw new IllegalArgumentException("Invalid generator settings");
+		Random random = new Random(seed);
+		lexicon = new String[lexiconSize];
+		Set<String> seen = new HashSet<String>(Arrays.asList(COMMON_WORDS));
+		System.arraycopy(COMMON_WORDS, 0, lexicon, 0, COMMON_WORDS.length);
+		for (int i = COMMON_WORDS.length; i < lexiconSize; i++) {
+			String word;
+			do {
+				StringBuilder sb = new StringBuilder();
+				int syllableCount = 1 + random.nextInt(3) + random.nextInt(3);
+				for (int j = 0; j < syllableCount; j++)
+					sb.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+				word = sb.toString();
+			} while (!seen.add(word) && seen.size() < lexiconSize * 10);
+			lexicon[i] = word;
+		}
+		cumulativeWordProbabilities = new double[lexiconSize];
+		double sum = 0;
+		for (int i = 0; i < lexiconSize; i++) {
+			sum += 1 / Math.pow(i + 1, zipfExponent);
+			cumulativeWordProbabilities[i] = sum;
+		}
+		for (int i = 0; i < lexiconSize; i++)
+			cumulativeWordProbabilities[i] /= sum;
+
+		standardCount = Math.max(1, (int) Math.round(conceptCount * (1 - nonStandardFraction)));
+		domainStarts = new int[DOMAINS.length + 1];
+		branchingFactors = new int[DOMAINS.length];
+		double cumulativeWeight = 0;
+		for (int domain = 0; domain < DOMAINS.length; domain++) {
+			domainStarts[domain] = (int) Math.round(standardCount * cumulativeWeight);
+			cumulativeWeight += DOMAIN_WEIGHTS[domain];
+		}
+		domainStarts[DOMAINS.length] = standardCount;
+		for (int domain = 0; domain < DOMAINS.length; domain++)
+			branchingFactors[domain] = computeBranchingFactor(domainStarts[domain + 1] - domainStarts[domain]);
+	}
+
+	/**
+	 * Smallest branching factor for which a tree of the requested depth can hold the given number of concepts.
+	 */
+	private int computeBranchingFactor(int size) {
+		if (hierarchyDepth == 1)
+			return Integer.MAX_VALUE;
+		int branchingFactor = 1;
+		long capacity;
+		do {
+			branchingFactor++;
+			capacity = 0;
+			long levelSize = 1;
+			for (int level = 0; level < hierarchyDepth && capacity < size; level++) {
+				capacity += levelSize;
+				levelSize *= branchingFactor;
+			}
+		} while (capacity < size);
+		return branchingFactor;
+	}
+
+	private String sampleWord(Random random) {
+		int index = Arrays.binarySearch(cumulativeWordProbabilities, random.nextDouble());
+		if (index < 0)
+			index = -index - 1;
+		return lexicon[Math.min(index, lexiconSize - 1)];
+	}
+
+	private Random getRandom(int index) {
+		return new Random(seed * 0x5DEECE66DL + index * 0x9E3779B97F4A7C15L);
+	}
+
+	private int getDomain(int index) {
+		if (index >= standardCount)
+			return getDomain(getMapsToTarget(index));
+		for (int domain = DOMAINS.length - 1; domain > 0; domain--)
+			if (index >= domainStarts[domain])
+				return domain;
+		return 0;
+	}
+
+	/**
+	 * Returns the index of the parent concept, or -1 for the root of a domain. Concepts in a domain are laid out as a heap, so the tree is balanced.
+	 */
+	private int getParent(int index) {
+		int domain = getDomain(index);
+		int localIndex = index - domainStarts[domain];
+		if (localIndex == 0 || branchingFactors[domain] == Integer.MAX_VALUE)
+			return -1;
+		return domainStarts[domain] + (localIndex - 1) / branchingFactors[domain];
+	}
+
+	private int getMapsToTarget(int index) {
+		return (int) ((index * 2654435761L) % standardCount);
+	}
+}
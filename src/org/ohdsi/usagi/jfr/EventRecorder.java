@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi.jfr;
+
+/**
+ * Records the events of {@link UsagiEvents}. The Flight Recorder implementation is compiled separately, as the jdk.jfr package is not part of Java 8.
+ */
+interface EventRecorder {
+
+	Object beginIndexBuildStage();
+
+	void endIndexBuildStage(Object event, String stage, String vocabFolder);
+
+	Object beginDerivedIndex();
+
+	void endDerivedIndex(Object event, int sourceCodeCount);
+
+	Object beginImportChunk();
+
+	void endImportChunk(Object event, int firstIndex, int sourceCodeCount, int matchedCount);
+
+	Object beginSearch();
+
+	void endSearch(Object event, int queryLength, int hitCount, int resultCount, boolean filtered);
+
+	Object beginMappingFile();
+
+	void endMappingFile(Object event, String operation, String filename, int codeMappingCount);
+}
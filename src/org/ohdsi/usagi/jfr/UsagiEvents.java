@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi.jfr;
+
+/**
+ * Java Flight Recorder events for the main phases of Usagi: building the index, creating the derived index, importing source codes, searching, and
+ * loading and saving mapping files. Each phase is wrapped in a begin and end call:
+ * 
+ * <pre>
+ * Object event = UsagiEvents.beginSearch();
+ * ...
+ * UsagiEvents.endSearch(event, ...);
+ * </pre>
+ * 
+ * The begin methods return null when Flight Recorder is not available in the running JVM or the event is disabled, and the end methods then do nothing,
+ * so Usagi still runs on Java 8 runtimes without Flight Recorder. The events are in the src-jfr folder, which is only compiled when building with Java 11
+ * or higher, and are loaded by reflection. See usagi.jfc for a recording profile.
+ */
+public class UsagiEvents {
+	private static final EventRecorder	RECORDER	= loadRecorder();
+	public static final boolean			AVAILABLE	= RECORDER != null;
+
+	private static EventRecorder loadRecorder() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return (EventRecorder) Class.forName("org.ohdsi.usagi.jfr.FlightRecorderEvents").getDeclaredConstructor().newInstance();
+		} catch (Throwable e) {
+			return null;
+		}
+	}
+
+	public static Object beginIndexBuildStage() {
+		return AVAILABLE ? RECORDER.beginIndexBuildStage() : null;
+	}
+
+	public static void endIndexBuildStage(Object event, String stage, String vocabFolder) {
+		if (event != null)
+			RECORDER.endIndexBuildStage(event, stage, vocabFolder);
+	}
+
+	public static Object beginDerivedIndex() {
+		return AVAILABLE ? RECORDER.beginDerivedIndex() : null;
+	}
+
+	public static void endDerivedIndex(Object event, int sourceCodeCount) {
+		if (event != null)
+			RECORDER.endDerivedIndex(event, sourceCodeCount);
+	}
+
+	public static Object beginImportChunk() {
+		return AVAILABLE ? RECORDER.beginImportChunk() : null;
+	}
+
+	public static void endImportChunk(Object event, int firstIndex, int sourceCodeCount, int matchedCount) {
+		if (event != null)
+			RECORDER.endImportChunk(event, firstIndex, sourceCodeCount, matchedCount);
+	}
+
+	public static Object beginSearch() {
+		return AVAILABLE ? RECORDER.beginSearch() : null;
+	}
+
+	public static void endSearch(Object event, int queryLength, int hitCount, int resultCount, boolean filtered) {
+		if (event != null)
+			RECORDER.endSearch(event, queryLength, hitCount, resultCount, filtered);
+	}
+
+	public static Object beginMappingFile() {
+		return AVAILABLE ? RECORDER.beginMappingFile() : null;
+	}
+
+	public static void endMappingFile(Object event, String operation, String filename, int codeMappingCount) {
+		if (event != null)
+			RECORDER.endMappingFile(event, operation, filename, codeMappingCount);
+	}
+}
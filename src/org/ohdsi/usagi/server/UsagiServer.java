@@ -0,0 +1,548 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+import org.ohdsi.usagi.BerkeleyDbEngine;
+import org.ohdsi.usagi.Concept;
+import org.ohdsi.usagi.ParentChildRelationShip;
+import org.ohdsi.usagi.UsagiSearchEngine;
+import org.ohdsi.usagi.UsagiSearchEngine.ScoredConcept;
+import org.ohdsi.usagi.ui.Global;
+import org.ohdsi.utilities.JsonParser;
+import org.ohdsi.utilities.JsonWriter;
+import org.ohdsi.utilities.LatencyHistogram;
+import org.ohdsi.utilities.StringUtilities;
+import org.ohdsi.utilities.files.ReadTextFile;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the Usagi index over HTTP, so several clients on the same machine can share a single warm index instead of each loading their own. The index and
+ * database are opened read-only, and requests are served concurrently. All responses are JSON. Endpoints:
+ * <ul>
+ * <li>GET /search?query=...&amp;limit=...&amp;filters: search for a single term</li>
+ * <li>POST /batchSearch: search for many terms. The body is a JSON object with a "queries" array of strings or objects with "query" and "conceptIds"
+ * fields, plus optional filter fields</li>
+ * <li>GET /concept?conceptId=...: concept details</li>
+ * <li>GET /hierarchy?conceptId=...: the parents and children of a concept</li>
+ * <li>GET /metrics: request counts and latencies per endpoint</li>
+ * </ul>
+ * Filters are passed as domains, conceptClasses and vocabularies (comma-delimited), conceptIds (semicolon-delimited), filterStandard and
+ * includeSourceTerms. Request bodies larger than MAX_BODY_BYTES and batches of more than MAX_BATCH_SIZE queries are rejected with status 413, and a limit
+ * above MAX_LIMIT with status 400.
+ */
+public class UsagiServer {
+	public static int						DEFAULT_PORT	= 8081;
+	public static int						DEFAULT_LIMIT	= 100;
+	public static int						MAX_LIMIT		= UsagiSearchEngine.MAX_RESULTS;
+	public static int						MAX_BODY_BYTES	= 16 * 1024 * 1024;
+	public static int						MAX_BATCH_SIZE	= 10000;
+
+	private HttpServer						server;
+	private ExecutorService					executor;
+	private ForkJoinPool					batchPool;
+	private UsagiSearchEngine				usagiSearchEngine;
+	private BerkeleyDbEngine				dbEngine;
+	private String							vocabularyVersion	= "Unknown";
+	private long							startTime;
+	private Map<String, EndpointMetrics>	metrics			= new LinkedHashMap<String, EndpointMetrics>();
+
+	public static void main(String[] args) {
+		String folder = new File("").getAbsolutePath();
+		String host = "127.0.0.1";
+		int port = DEFAULT_PORT;
+		int threadCount = Math.max(1, Runtime.getRuntime().availableProcessors());
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 >= args.length) {
+				printUsage();
+				return;
+			}
+			switch (args[i]) {
+				case "--usagiFolder":
+					folder = args[i + 1];
+					break;
+				case "--host":
+					host = args[i + 1];
+					break;
+				case "--port":
+					port = parseIntArgument(args[i + 1], 0, 65535);
+					break;
+				case "--threads":
+					threadCount = parseIntArgument(args[i + 1], 1, Integer.MAX_VALUE);
+					break;
+				default:
+					printUsage();
+					return;
+			}
+			if (port == -1 || threadCount == -1) {
+				printUsage();
+				return;
+			}
+		}
+		UsagiServer usagiServer = new UsagiServer();
+		usagiServer.start(folder, host, port, threadCount);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> usagiServer.stop()));
+	}
+
+	/**
+	 * Returns -1 if the value is not an integer between min and max.
+	 */
+	private static int parseIntArgument(String value, int min, int max) {
+		if (!StringUtilities.isInteger(value))
+			return -1;
+		int result = Integer.parseInt(value);
+		return result >= min && result <= max ? result : -1;
+	}
+
+	private static void printUsage() {
+		System.err.println("Usage: java -cp Usagi.jar " + UsagiServer.class.getName() + " [--usagiFolder <folder>] [--host <host>] [--port <port>] [--threads <n>]");
+	}
+
+	public void start(String folder, String host, int port, int threadCount) {
+		usagiSearchEngine = new UsagiSearchEngine(folder);
+		if (!usagiSearchEngine.mainIndexExists())
+			throw new RuntimeException("No index found in " + folder + ". Please build the index using the Usagi user interface first.");
+		if (!usagiSearchEngine.mainIndexIsCurrent())
+			throw new RuntimeException("The index in " + folder + " was built by an older version of Usagi. Please rebuild the index using the Usagi user interface.");
+		dbEngine = new BerkeleyDbEngine(folder);
+		dbEngine.openForReading();
+		// The search engine looks up concepts through the global database engine:
+		Global.dbEngine = dbEngine;
+		usagiSearchEngine.openIndexForSearching(false);
+		String versionFileName = folder + "/vocabularyVersion.txt";
+		if (new File(versionFileName).exists())
+			for (String line : new ReadTextFile(versionFileName))
+				vocabularyVersion = line;
+
+		try {
+			server = HttpServer.create(new InetSocketAddress(host, port), 0);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		addEndpoint("/search", "GET", exchange -> search(exchange));
+		addEndpoint("/batchSearch", "POST", exchange -> batchSearch(exchange));
+		addEndpoint("/concept", "GET", exchange -> concept(exchange));
+		addEndpoint("/hierarchy", "GET", exchange -> hierarchy(exchange));
+		addEndpoint("/metrics", "GET", exchange -> metrics());
+		executor = Executors.newFixedThreadPool(threadCount);
+		batchPool = new ForkJoinPool(threadCount);
+		server.setExecutor(executor);
+		server.start();
+		startTime = System.currentTimeMillis();
+		StringUtilities.outputWithTime("Usagi server listening on http://" + host + ":" + server.getAddress().getPort() + " using " + threadCount + " threads");
+	}
+
+	public void stop() {
+		if (server != null) {
+			server.stop(1);
+			executor.shutdown();
+			batchPool.shutdown();
+			usagiSearchEngine.close();
+			dbEngine.shutdown();
+			server = null;
+		}
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	private interface Endpoint {
+		String handle(HttpExchange exchange) throws Exception;
+	}
+
+	private void addEndpoint(String path, String method, Endpoint endpoint) {
+		EndpointMetrics endpointMetrics = new EndpointMetrics();
+		metrics.put(path, endpointMetrics);
+		server.createContext(path, new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				long start = System.nanoTime();
+				int status = 200;
+				String response;
+				try {
+					if (!exchange.getRequestMethod().equalsIgnoreCase(method)) {
+						status = 405;
+						response = error("Method not allowed, use " + method);
+					} else
+						response = endpoint.handle(exchange);
+				} catch (IllegalArgumentException e) {
+					status = 400;
+					response = error(e.getMessage());
+				} catch (NotFoundException e) {
+					status = 404;
+					response = error(e.getMessage());
+				} catch (RequestTooLargeException e) {
+					status = 413;
+					response = error(e.getMessage());
+				} catch (Throwable e) {
+					// Also catch errors, so the client always gets a response
+					status = 500;
+					response = error(e.toString());
+					e.printStackTrace();
+				}
+				byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+				exchange.sendResponseHeaders(status, bytes.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(bytes);
+				}
+				endpointMetrics.record(System.nanoTime() - start, status >= 400);
+			}
+		});
+	}
+
+	private String search(HttpExchange exchange) {
+		Map<String, String> parameters = parseQueryString(exchange.getRequestURI().getRawQuery());
+		String query = parameters.get("query");
+		if (query == null || query.trim().length() == 0)
+			throw new IllegalArgumentException("Parameter 'query' is required");
+		SearchSettings settings = new SearchSettings(parameters);
+		List<ScoredConcept> results = settings.search(query, settings.conceptIds);
+		JsonWriter json = new JsonWriter();
+		writeSearchResult(json, query, results, settings.limit);
+		return json.toString();
+	}
+
+	@SuppressWarnings("unchecked")
+	private String batchSearch(HttpExchange exchange) throws Exception {
+		Object body = JsonParser.parse(readBody(exchange));
+		if (!(body instanceof Map))
+			throw new IllegalArgumentException("Body must be a JSON object");
+		Map<String, Object> request = (Map<String, Object>) body;
+		Map<String, String> parameters = new HashMap<String, String>();
+		for (Map.Entry<String, Object> entry : request.entrySet())
+			if (!entry.getKey().equals("queries"))
+				parameters.put(entry.getKey(), toParameter(entry.getValue()));
+		SearchSettings settings = new SearchSettings(parameters);
+
+		if (!(request.get("queries") instanceof List))
+			throw new IllegalArgumentException("Field 'queries' must be an array");
+		List<Object> queryObjects = (List<Object>) request.get("queries");
+		if (queryObjects.size() > MAX_BATCH_SIZE)
+			throw new RequestTooLargeException("A batch can contain at most " + MAX_BATCH_SIZE + " queries");
+		List<String> queries = new ArrayList<String>(queryObjects.size());
+		List<Set<Integer>> conceptIds = new ArrayList<Set<Integer>>(queryObjects.size());
+		for (Object queryObject : queryObjects) {
+			if (queryObject instanceof String) {
+				queries.add((String) queryObject);
+				conceptIds.add(settings.conceptIds);
+			} else if (queryObject instanceof Map) {
+				Map<String, Object> map = (Map<String, Object>) queryObject;
+				if (!(map.get("query") instanceof String))
+					throw new IllegalArgumentException("Each query object must have a 'query' string");
+				queries.add((String) map.get("query"));
+				conceptIds.add(map.containsKey("conceptIds") ? parseConceptIds(toParameter(map.get("conceptIds"))) : settings.conceptIds);
+			} else
+				throw new IllegalArgumentException("Queries must be strings or objects");
+		}
+
+		List<List<ScoredConcept>> results = new ArrayList<List<ScoredConcept>>(Collections.nCopies(queries.size(), (List<ScoredConcept>) null));
+		batchPool.submit(() -> IntStream.range(0, queries.size()).parallel()
+				.forEach(i -> results.set(i, settings.search(queries.get(i), conceptIds.get(i))))).get();
+
+		JsonWriter json = new JsonWriter();
+		json.beginObject().name("results").beginArray();
+		for (int i = 0; i < queries.size(); i++)
+			writeSearchResult(json, queries.get(i), results.get(i), settings.limit);
+		json.endArray().endObject();
+		return json.toString();
+	}
+
+	private String concept(HttpExchange exchange) throws NotFoundException {
+		Concept concept = getConcept(exchange);
+		JsonWriter json = new JsonWriter();
+		writeConcept(json, concept);
+		return json.toString();
+	}
+
+	private String hierarchy(HttpExchange exchange) throws NotFoundException {
+		Concept concept = getConcept(exchange);
+		JsonWriter json = new JsonWriter();
+		json.beginObject();
+		json.name("concept");
+		writeConcept(json, concept);
+		json.name("parents").beginArray();
+		for (ParentChildRelationShip relationship : dbEngine.getParentChildRelationshipsByChildConceptId(concept.conceptId)) {
+			Concept parent = dbEngine.getConcept(relationship.parentConceptId);
+			if (parent != null)
+				writeConcept(json, parent);
+		}
+		json.endArray();
+		json.name("children").beginArray();
+		for (ParentChildRelationShip relationship : dbEngine.getParentChildRelationshipsByParentConceptId(concept.conceptId)) {
+			Concept child = dbEngine.getConcept(relationship.childConceptId);
+			if (child != null)
+				writeConcept(json, child);
+		}
+		json.endArray();
+		json.endObject();
+		return json.toString();
+	}
+
+	private String metrics() {
+		JsonWriter json = new JsonWriter();
+		json.beginObject();
+		json.name("vocabularyVersion").value(vocabularyVersion);
+		json.name("searchableTerms").value(usagiSearchEngine.getTermCount());
+		json.name("uptimeSeconds").value((System.currentTimeMillis() - startTime) / 1000);
+		json.name("endpoints").beginObject();
+		for (Map.Entry<String, EndpointMetrics> entry : metrics.entrySet()) {
+			json.name(entry.getKey());
+			entry.getValue().write(json);
+		}
+		json.endObject();
+		json.name("stages").beginObject();
+		for (LatencyHistogram histogram : Global.metrics.getHistograms()) {
+			json.name(histogram.getName()).beginObject();
+			json.name("count").value(histogram.getCount());
+			json.name("meanMillis").value(histogram.getMeanNanos() / 1000000d);
+			json.name("medianMillis").value(histogram.getPercentileNanos(50) / 1000000d);
+			json.name("p95Millis").value(histogram.getPercentileNanos(95) / 1000000d);
+			json.name("maxMillis").value(histogram.getMaxNanos() / 1000000d);
+			json.endObject();
+		}
+		json.endObject();
+		json.name("counters").beginObject();
+		for (Map.Entry<String, LongAdder> counter : Global.metrics.getCounters().entrySet())
+			json.name(counter.getKey()).value(counter.getValue().sum());
+		json.endObject();
+		json.endObject();
+		return json.toString();
+	}
+
+	private Concept getConcept(HttpExchange exchange) throws NotFoundException {
+		Map<String, String> parameters = parseQueryString(exchange.getRequestURI().getRawQuery());
+		String conceptIdString = parameters.get("conceptId");
+		if (conceptIdString == null || !StringUtilities.isInteger(conceptIdString.trim()))
+			throw new IllegalArgumentException("Parameter 'conceptId' must be an integer");
+		Concept concept = dbEngine.getConcept(Integer.parseInt(conceptIdString.trim()));
+		if (concept == null)
+			throw new NotFoundException("Concept " + conceptIdString + " not found");
+		return concept;
+	}
+
+	private void writeSearchResult(JsonWriter json, String query, List<ScoredConcept> results, int limit) {
+		json.beginObject();
+		json.name("query").value(query);
+		json.name("results").beginArray();
+		for (int i = 0; i < Math.min(limit, results.size()); i++) {
+			ScoredConcept scoredConcept = results.get(i);
+			json.beginObject();
+			json.name("matchScore").value(scoredConcept.matchScore);
+			json.name("term").value(scoredConcept.term);
+			json.name("concept");
+			writeConcept(json, scoredConcept.concept);
+			json.endObject();
+		}
+		json.endArray();
+		json.endObject();
+	}
+
+	private void writeConcept(JsonWriter json, Concept concept) {
+		json.beginObject();
+		json.name("conceptId").value(concept.conceptId);
+		json.name("conceptName").value(concept.conceptName);
+		json.name("domainId").value(concept.domainId);
+		json.name("vocabularyId").value(concept.vocabularyId);
+		json.name("conceptClassId").value(concept.conceptClassId);
+		json.name("standardConcept").value(concept.standardConcept);
+		json.name("conceptCode").value(concept.conceptCode);
+		json.name("validStartDate").value(concept.validStartDate);
+		json.name("validEndDate").value(concept.validEndDate);
+		json.name("invalidReason").value(concept.invalidReason);
+		json.name("parentCount").value(concept.parentCount);
+		json.name("childCount").value(concept.childCount);
+		json.endObject();
+	}
+
+	private String error(String message) {
+		return new JsonWriter().beginObject().name("error").value(message).endObject().toString();
+	}
+
+	private static String readBody(HttpExchange exchange) throws IOException, RequestTooLargeException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		try (InputStream in = exchange.getRequestBody()) {
+			byte[] bytes = new byte[8192];
+			int read;
+			while ((read = in.read(bytes)) != -1) {
+				if (buffer.size() + read > MAX_BODY_BYTES)
+					throw new RequestTooLargeException("The request body can be at most " + MAX_BODY_BYTES + " bytes");
+				buffer.write(bytes, 0, read);
+			}
+		}
+		return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static Map<String, String> parseQueryString(String rawQuery) {
+		Map<String, String> parameters = new HashMap<String, String>();
+		if (rawQuery == null)
+			return parameters;
+		try {
+			for (String pair : rawQuery.split("&")) {
+				int index = pair.indexOf('=');
+				if (index == -1)
+					parameters.put(URLDecoder.decode(pair, "UTF-8"), "");
+				else
+					parameters.put(URLDecoder.decode(pair.substring(0, index), "UTF-8"), URLDecoder.decode(pair.substring(index + 1), "UTF-8"));
+			}
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		return parameters;
+	}
+
+	/**
+	 * Converts a JSON value to the same string format used in query string parameters, so both can be handled the same way.
+	 */
+	private static String toParameter(Object value) {
+		if (value == null)
+			return null;
+		if (value instanceof List) {
+			List<String> items = new ArrayList<String>();
+			for (Object item : (List<?>) value)
+				items.add(toParameter(item));
+			return StringUtilities.join(items, ",");
+		}
+		if (value instanceof Double && ((Double) value) == Math.rint((Double) value))
+			return Long.toString(((Double) value).longValue());
+		return value.toString();
+	}
+
+	private static Set<Integer> parseConceptIds(String value) {
+		if (value == null || value.trim().length() == 0)
+			return null;
+		Set<Integer> conceptIds = new HashSet<Integer>();
+		for (String conceptId : value.split("[;,]")) {
+			if (!StringUtilities.isInteger(conceptId.trim()))
+				throw new IllegalArgumentException("Invalid concept ID '" + conceptId + "'");
+			conceptIds.add(Integer.parseInt(conceptId.trim()));
+		}
+		return conceptIds;
+	}
+
+	private static Vector<String> parseList(String value) {
+		if (value == null || value.trim().length() == 0)
+			return null;
+		Vector<String> list = new Vector<String>();
+		for (String item : value.split(","))
+			if (item.trim().length() != 0)
+				list.add(item.trim());
+		return list;
+	}
+
+	private class SearchSettings {
+		public Vector<String>	filterDomains;
+		public Vector<String>	filterConceptClasses;
+		public Vector<String>	filterVocabularies;
+		public Set<Integer>		conceptIds;
+		public boolean			filterStandard		= true;
+		public boolean			includeSourceTerms	= true;
+		public int				limit				= DEFAULT_LIMIT;
+
+		public SearchSettings(Map<String, String> parameters) {
+			filterDomains = parseList(parameters.get("domains"));
+			filterConceptClasses = parseList(parameters.get("conceptClasses"));
+			filterVocabularies = parseList(parameters.get("vocabularies"));
+			conceptIds = parseConceptIds(parameters.get("conceptIds"));
+			if (parameters.get("filterStandard") != null)
+				filterStandard = Boolean.parseBoolean(parameters.get("filterStandard"));
+			if (parameters.get("includeSourceTerms") != null)
+				includeSourceTerms = Boolean.parseBoolean(parameters.get("includeSourceTerms"));
+			if (parameters.get("limit") != null) {
+				String value = parameters.get("limit");
+				if (!StringUtilities.isInteger(value) || Integer.parseInt(value) <= 0 || Integer.parseInt(value) > MAX_LIMIT)
+					throw new IllegalArgumentException("Parameter 'limit' must be an integer between 1 and " + MAX_LIMIT);
+				limit = Integer.parseInt(value);
+			}
+		}
+
+		public List<ScoredConcept> search(String query, Set<Integer> filterConceptIds) {
+			return usagiSearchEngine.search(query, true, filterConceptIds, filterDomains, filterConceptClasses, filterVocabularies, filterStandard,
+					includeSourceTerms, limit);
+		}
+	}
+
+	private static class EndpointMetrics {
+		private AtomicLong			requests	= new AtomicLong();
+		private AtomicLong			errors		= new AtomicLong();
+		private AtomicLong			totalNanos	= new AtomicLong();
+		private LongAccumulator		maxNanos	= new LongAccumulator(Long::max, 0);
+
+		public void record(long nanos, boolean error) {
+			requests.incrementAndGet();
+			if (error)
+				errors.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			maxNanos.accumulate(nanos);
+		}
+
+		public void write(JsonWriter json) {
+			long count = requests.get();
+			json.beginObject();
+			json.name("requests").value(count);
+			json.name("errors").value(errors.get());
+			json.name("meanMillis").value(count == 0 ? 0 : totalNanos.get() / (double) count / 1000000d);
+			json.name("maxMillis").value(maxNanos.get() / 1000000d);
+			json.endObject();
+		}
+	}
+
+	private static class NotFoundException extends Exception {
+		private static final long serialVersionUID = -2718052393474823815L;
+
+		public NotFoundException(String message) {
+			super(message);
+		}
+	}
+
+	private static class RequestTooLargeException extends Exception {
+		private static final long serialVersionUID = 4061529387650214772L;
+
+		public RequestTooLargeException(String message) {
+			super(message);
+		}
+	}
+}
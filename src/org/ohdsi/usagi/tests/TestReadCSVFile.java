@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.ohdsi.utilities.StringUtilities;
+import org.ohdsi.utilities.files.ReadCSVFile;
+import org.ohdsi.utilities.files.WriteCSVFile;
+
+/**
+ * Checks the CSV parser of ReadCSVFile: RFC 4180 and backslash escapes, quoted fields spanning several lines, line endings, empty cells and gzipped
+ * files. Lines without RFC 4180 features should be split the same way as by the line based parser used before (line2columns).
+ */
+public class TestReadCSVFile {
+
+	private static int	failures	= 0;
+
+	public static void main(String[] args) throws IOException {
+		check("Plain cells", "a,b,c\n", row("a", "b", "c"));
+		check("No line break at end of file", "a,b", row("a", "b"));
+		check("Quoted delimiter", "\"a,b\",c\n", row("a,b", "c"));
+		check("RFC 4180 quote escape", "\"say \"\"hi\"\"\",x\n", row("say \"hi\"", "x"));
+		check("Backslash quote escape", "\"say \\\"hi\\\"\",x\n", row("say \"hi\"", "x"));
+		check("Backslash backslash escape", "a\\\\b,\"c\\\\d\"\n", row("a\\b", "c\\d"));
+		check("Other backslashes kept", "a\\b,\"c\\d\"\n", row("a\\b", "c\\d"));
+		check("Empty quoted cell", "\"\",x\n", row("", "x"));
+		check("Trailing empty cells", "a,b,,\n", row("a", "b", "", ""));
+		check("Only delimiters", ",,\n", row("", "", ""));
+		check("Empty line", "a\n\nb\n", row("a"), row(""), row("b"));
+		check("Multi-line quoted cell", "\"line 1\nline 2\",x\ny,z\n", row("line 1\nline 2", "x"), row("y", "z"));
+		check("Multi-line quoted cell with CRLF", "\"line 1\r\nline 2\",x\r\ny,z\r\n", row("line 1\r\nline 2", "x"), row("y", "z"));
+		check("CRLF line endings", "a,b\r\nc,d\r\n", row("a", "b"), row("c", "d"));
+		check("CR line endings", "a,b\rc,d\r", row("a", "b"), row("c", "d"));
+		checkRoundTrip("Round trip", ".csv");
+		checkRoundTrip("Round trip gzipped", ".csv.gz");
+		checkSameAsLine2Columns("a,b,c", "\"a,b\",c", "\"say \\\"hi\\\"\",x", "a\\\\b,c", "\"\",x", "a,b,,", ",,", " a , b ", "\"quoted\"", "x,\"y\",z");
+		if (failures == 0)
+			System.out.println("All tests passed");
+		else {
+			System.out.println(failures + " test(s) failed");
+			System.exit(1);
+		}
+	}
+
+	private static List<String> row(String... cells) {
+		return Arrays.asList(cells);
+	}
+
+	@SafeVarargs
+	private static void check(String name, String csv, List<String>... expected) {
+		List<List<String>> rows = new ArrayList<List<String>>();
+		for (List<String> row : new ReadCSVFile(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8))))
+			rows.add(row);
+		report(name, Arrays.asList(expected), rows);
+	}
+
+	/**
+	 * Writes cells that need escaping using WriteCSVFile, and checks they are read back unchanged. WriteCSVFile writes line breaks as \n, so those are
+	 * read back as a backslash followed by n.
+	 */
+	private static void checkRoundTrip(String name, String extension) throws IOException {
+		List<List<String>> written = new ArrayList<List<String>>();
+		written.add(row("sourceCode", "sourceName", "comment"));
+		written.add(row("1", "Delimiter, and \"quotes\"", "Back\\slash"));
+		written.add(row("2", "Line\nbreak", ""));
+		written.add(row("3", "", ""));
+		List<List<String>> expected = new ArrayList<List<String>>(written);
+		expected.set(2, row("2", "Line\\nbreak", ""));
+		File file = File.createTempFile("TestReadCSVFile", extension);
+		try {
+			WriteCSVFile out = new WriteCSVFile(file.getAbsolutePath());
+			for (List<String> row : written)
+				out.write(row);
+			out.close();
+			List<List<String>> rows = new ArrayList<List<String>>();
+			for (List<String> row : new ReadCSVFile(file.getAbsolutePath()))
+				rows.add(row);
+			report(name, expected, rows);
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static void checkSameAsLine2Columns(String... lines) {
+		for (String line : lines) {
+			List<List<String>> rows = new ArrayList<List<String>>();
+			for (List<String> row : new ReadCSVFile(new ByteArrayInputStream(line.getBytes(StandardCharsets.UTF_8))))
+				rows.add(row);
+			List<List<String>> expected = new ArrayList<List<String>>();
+			expected.add(line2columns(line, ','));
+			report("Same as line2columns: " + line, expected, rows);
+		}
+	}
+
+	/**
+	 * The line based parser ReadCSVFile used before it parsed files in a single pass.
+	 */
+	private static List<String> line2columns(String line, char delimiter) {
+		List<String> columns = StringUtilities.safeSplit(line, delimiter);
+		for (int i = 0; i < columns.size(); i++) {
+			String column = columns.get(i);
+			if (column.startsWith("\"") && column.endsWith("\"") && column.length() > 1)
+				column = column.substring(1, column.length() - 1);
+			column = column.replace("\\\"", "\"");
+			column = column.replaceAll("\\\\\\\\", "\\\\");
+			columns.set(i, column);
+		}
+		return columns;
+	}
+
+	private static void report(String name, List<List<String>> expected, List<List<String>> actual) {
+		if (expected.equals(actual))
+			System.out.println("OK      " + name);
+		else {
+			System.out.println("FAILED  " + name + ": expected " + expected + " but got " + actual);
+			failures++;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi.ui;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import org.ohdsi.usagi.CodeMapping;
+import org.ohdsi.utilities.StringUtilities;
+
+/**
+ * Writes files from a snapshot of the mapping on a background thread, so the user can continue reviewing while a large mapping is saved or exported.
+ * Progress is shown in the status bar. Writes are performed one at a time, in the order in which they were started.
+ */
+public class BackgroundWriter {
+
+	private static ExecutorService	executor	= Executors.newSingleThreadExecutor(runnable -> {
+													Thread thread = new Thread(runnable, "Usagi writer");
+													thread.setDaemon(true);
+													return thread;
+												});
+	private static List<Runnable>	completions	= new ArrayList<Runnable>();
+
+	public interface WriteTask {
+		/**
+		 * Writes the code mappings, setting progress to the number of code mappings written so far.
+		 */
+		public void write(List<CodeMapping> codeMappings, AtomicInteger progress) throws Exception;
+	}
+
+	/**
+	 * Writes a snapshot of the code mappings in the background. Must be called on the event dispatch thread.
+	 * 
+	 * @param description
+	 *            shown in the status bar while writing, for example "Saving mapping.csv"
+	 * @param codeMappings
+	 *            the code mappings to write. These should not be modified while writing, so pass a {@link Mapping#snapshot()}
+	 * @param onSuccess
+	 *            run on the event dispatch thread once the write has finished successfully. Can be null
+	 */
+	public static void write(String description, List<CodeMapping> codeMappings, WriteTask task, Runnable onSuccess) {
+		AtomicInteger progress = new AtomicInteger();
+		executor.execute(() -> {
+			Timer[] timer = new Timer[1];
+			boolean[] completed = new boolean[1];
+			SwingUtilities.invokeLater(() -> {
+				if (completed[0])
+					return; // Completed by waitForPendingWrites before the progress could be shown
+				Global.statusBar.showWriteProgress(description);
+				timer[0] = new Timer(250, event -> Global.statusBar.setWriteProgress(progress.get(), codeMappings.size()));
+				timer[0].start();
+			});
+			Exception error = null;
+			try {
+				task.write(codeMappings, progress);
+			} catch (Exception e) {
+				e.printStackTrace();
+				error = e;
+			}
+			Exception finalError = error;
+			synchronized (completions) {
+				completions.add(() -> {
+					completed[0] = true;
+					if (timer[0] != null) {
+						timer[0].stop();
+						Global.statusBar.hideWriteProgress();
+					}
+					if (finalError != null)
+						JOptionPane.showMessageDialog(Global.frame, StringUtilities.wordWrap(description + " failed: " + finalError.toString(), 80), "Error",
+								JOptionPane.ERROR_MESSAGE);
+					else if (onSuccess != null)
+						onSuccess.run();
+				});
+			}
+			SwingUtilities.invokeLater(BackgroundWriter::runCompletions);
+		});
+	}
+
+	/**
+	 * Runs the completion handlers of the finished writes, in the order in which the writes were started. Runs on the event dispatch thread.
+	 */
+	private static void runCompletions() {
+		List<Runnable> finished;
+		synchronized (completions) {
+			finished = new ArrayList<Runnable>(completions);
+			completions.clear();
+		}
+		for (Runnable completion : finished)
+			completion.run();
+	}
+
+	/**
+	 * Blocks until all writes that have been started are finished, and runs their success handlers, so for instance changes made during a save are
+	 * journaled. Call on the event dispatch thread before exiting Usagi.
+	 */
+	public static void waitForPendingWrites() {
+		try {
+			executor.submit(() -> {
+			}).get();
+		} catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+		}
+		runCompletions();
+	}
+}
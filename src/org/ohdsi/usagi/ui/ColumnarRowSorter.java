@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.usagi.ui;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.RowSorter;
+import javax.swing.SortOrder;
+import javax.swing.table.TableModel;
+
+/**
+ * Sorts the rows of a table using numeric sort keys provided by the model, instead of comparing cell values. Rows are ordered with a stable radix sort on
+ * the keys, so ties are kept in model order, as in TableRowSorter. The permutation of each column and sort order is cached until the column changes, so
+ * switching back and forth between sorted columns does not sort again.
+ */
+public class ColumnarRowSorter<M extends ColumnarRowSorter.SortKeyModel> extends RowSorter<M> {
+
+	public interface SortKeyModel extends TableModel {
+		/**
+		 * Returns a key for each model row, such that sorting the keys sorts the rows. Rows with equal values must have equal keys.
+		 */
+		public long[] getSortKeys(int column);
+
+		/**
+		 * Returns a number that changes whenever the values in the column may have changed.
+		 */
+		public long getColumnVersion(int column);
+	}
+
+	private static int						RADIX_BITS		= 16;
+	private static int						RADIX			= 1 << RADIX_BITS;
+	private M								model;
+	private List<SortKey>					sortKeys		= Collections.emptyList();
+	private int[]							viewToModel;
+	private int[]							modelToView;
+	private Map<SortKey, CachedPermutation>	permutations	= new HashMap<SortKey, CachedPermutation>();
+
+	public ColumnarRowSorter(M model) {
+		this.model = model;
+	}
+
+	@Override
+	public M getModel() {
+		return model;
+	}
+
+	@Override
+	public void toggleSortOrder(int column) {
+		SortOrder order = SortOrder.ASCENDING;
+		if (sortKeys.size() != 0 && sortKeys.get(0).getColumn() == column && sortKeys.get(0).getSortOrder() == SortOrder.ASCENDING)
+			order = SortOrder.DESCENDING;
+		setSortKeys(Collections.singletonList(new SortKey(column, order)));
+	}
+
+	/**
+	 * Sets the sort key. Only the first key is used.
+	 */
+	@Override
+	public void setSortKeys(List<? extends SortKey> keys) {
+		List<SortKey> newKeys = Collections.emptyList();
+		if (keys != null && keys.size() != 0 && keys.get(0).getSortOrder() != SortOrder.UNSORTED)
+			newKeys = Collections.singletonList(keys.get(0));
+		if (newKeys.equals(sortKeys))
+			return;
+		sortKeys = newKeys;
+		fireSortOrderChanged();
+		sort();
+	}
+
+	@Override
+	public List<? extends SortKey> getSortKeys() {
+		return sortKeys;
+	}
+
+	@Override
+	public int convertRowIndexToModel(int index) {
+		if (viewToModel == null) {
+			if (index < 0 || index >= model.getRowCount())
+				throw new IndexOutOfBoundsException("Invalid index");
+			return index;
+		}
+		return viewToModel[index];
+	}
+
+	@Override
+	public int convertRowIndexToView(int index) {
+		if (modelToView == null) {
+			if (index < 0 || index >= model.getRowCount())
+				throw new IndexOutOfBoundsException("Invalid index");
+			return index;
+		}
+		if (index < 0 || index >= modelToView.length)
+			throw new IndexOutOfBoundsException("Invalid index");
+		return modelToView[index];
+	}
+
+	@Override
+	public int getViewRowCount() {
+		return model.getRowCount();
+	}
+
+	@Override
+	public int getModelRowCount() {
+		return model.getRowCount();
+	}
+
+	@Override
+	public void modelStructureChanged() {
+		permutations.clear();
+		if (sortKeys.size() != 0 && sortKeys.get(0).getColumn() >= model.getColumnCount()) {
+			sortKeys = Collections.emptyList();
+			fireSortOrderChanged();
+		}
+		sort();
+	}
+
+	@Override
+	public void allRowsChanged() {
+		sort();
+	}
+
+	@Override
+	public void rowsInserted(int firstRow, int endRow) {
+		sort();
+	}
+
+	@Override
+	public void rowsDeleted(int firstRow, int endRow) {
+		sort();
+	}
+
+	@Override
+	public void rowsUpdated(int firstRow, int endRow) {
+		// Like TableRowSorter, rows are not re-sorted when they are updated
+	}
+
+	@Override
+	public void rowsUpdated(int firstRow, int endRow, int column) {
+	}
+
+	private void sort() {
+		int[] lastViewToModel = viewToModel == null ? new int[0] : viewToModel;
+		if (sortKeys.size() == 0) {
+			viewToModel = null;
+			modelToView = null;
+		} else {
+			viewToModel = getPermutation(sortKeys.get(0));
+			modelToView = new int[viewToModel.length];
+			for (int i = 0; i < viewToModel.length; i++)
+				modelToView[viewToModel[i]] = i;
+		}
+		fireRowSorterChanged(lastViewToModel);
+	}
+
+	private int[] getPermutation(SortKey sortKey) {
+		int column = sortKey.getColumn();
+		long version = model.getColumnVersion(column);
+		CachedPermutation cached = permutations.get(sortKey);
+		if (cached != null && cached.version == version && cached.viewToModel.length == model.getRowCount())
+			return cached.viewToModel;
+
+		int[] permutation = sort(model.getSortKeys(column), sortKey.getSortOrder() == SortOrder.DESCENDING);
+		permutations.put(sortKey, new CachedPermutation(version, permutation));
+		return permutation;
+	}
+
+	/**
+	 * Returns the row indices ordered by key, using stable counting sort passes over each 16 bits of the keys.
+	 */
+	private static int[] sort(long[] keys, boolean descending) {
+		int rowCount = keys.length;
+		long[] unsignedKeys = new long[rowCount];
+		for (int row = 0; row < rowCount; row++)
+			unsignedKeys[row] = (descending ? ~keys[row] : keys[row]) ^ Long.MIN_VALUE;
+		int[] rows = new int[rowCount];
+		for (int row = 0; row < rowCount; row++)
+			rows[row] = row;
+		int[] sortedRows = new int[rowCount];
+		int[] counts = new int[RADIX + 1];
+		for (int shift = 0; shift < 64; shift += RADIX_BITS) {
+			Arrays.fill(counts, 0);
+			for (int row = 0; row < rowCount; row++)
+				counts[(int) ((unsignedKeys[row] >>> shift) & (RADIX - 1)) + 1]++;
+			if (rowCount == 0 || counts[(int) ((unsignedKeys[0] >>> shift) & (RADIX - 1)) + 1] == rowCount)
+				continue; // All keys share these bits
+			for (int i = 1; i < counts.length; i++)
+				counts[i] += counts[i - 1];
+			for (int i = 0; i < rowCount; i++) {
+				int row = rows[i];
+				sortedRows[counts[(int) ((unsignedKeys[row] >>> shift) & (RADIX - 1))]++] = row;
+			}
+			int[] swap = rows;
+			rows = sortedRows;
+			sortedRows = swap;
+		}
+		return rows;
+	}
+
+	private static class CachedPermutation {
+		public long		version;
+		public int[]	viewToModel;
+
+		public CachedPermutation(long version, int[] viewToModel) {
+			this.version = version;
+			this.viewToModel = viewToModel;
+		}
+	}
+}
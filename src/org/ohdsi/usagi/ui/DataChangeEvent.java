@@ -1,19 +1,53 @@
 package org.ohdsi.usagi.ui;
 
-public enum DataChangeEvent {
+import org.ohdsi.usagi.CodeMapping;
+import org.ohdsi.usagi.CodeMapping.MappingStatus;
 
-    APPROVE_EVENT (true, false, false),
-    SIMPLE_UPDATE_EVENT (false, false, false),
-    MULTI_UPDATE_EVENT (false, false, true),
-    RESTRUCTURE_EVENT (false, true, false);
+public class DataChangeEvent {
+
+    public static final DataChangeEvent APPROVE_EVENT = new DataChangeEvent(true, false, false);
+    public static final DataChangeEvent SIMPLE_UPDATE_EVENT = new DataChangeEvent(false, false, false);
+    public static final DataChangeEvent MULTI_UPDATE_EVENT = new DataChangeEvent(false, false, true);
+    public static final DataChangeEvent RESTRUCTURE_EVENT = new DataChangeEvent(false, true, false);
 
     public boolean	approved;
     public boolean	structureChange;
     public boolean	multiUpdate;
 
+    /**
+     * The code mappings affected by the change. Empty for a restructure, which can change any code mapping.
+     */
+    public CodeMapping[]	codeMappings	= new CodeMapping[0];
+
+    /**
+     * The status of each affected code mapping before the change, or null if the code mapping was added to the mapping.
+     */
+    public MappingStatus[]	oldStatuses		= new MappingStatus[0];
+
+    /**
+     * The status of each affected code mapping after the change.
+     */
+    public MappingStatus[]	newStatuses		= new MappingStatus[0];
+
     DataChangeEvent(boolean approved, boolean structureChange, boolean multiUpdate) {
         this.approved = approved;
         this.structureChange = structureChange;
         this.multiUpdate = multiUpdate;
     }
+
+    /**
+     * Returns an event of the same type for the given code mappings.
+     *
+     * @param oldStatuses
+     *            the status of each code mapping before the change, or null if it was added
+     */
+    public DataChangeEvent forCodeMappings(CodeMapping[] codeMappings, MappingStatus[] oldStatuses) {
+        DataChangeEvent event = new DataChangeEvent(approved, structureChange, multiUpdate);
+        event.codeMappings = codeMappings;
+        event.oldStatuses = oldStatuses;
+        event.newStatuses = new MappingStatus[codeMappings.length];
+        for (int i = 0; i < codeMappings.length; i++)
+            event.newStatuses[i] = codeMappings[i].mappingStatus;
+        return event;
+    }
 }
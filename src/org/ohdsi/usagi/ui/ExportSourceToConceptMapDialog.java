@@ -21,7 +21,7 @@ import java.awt.GridBagLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import javax.swing.Box;
@@ -38,7 +38,7 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 import org.ohdsi.usagi.CodeMapping;
 import org.ohdsi.usagi.CodeMapping.MappingStatus;
 import org.ohdsi.usagi.Concept;
-import org.ohdsi.utilities.files.Row;
+import org.ohdsi.utilities.files.RowSchema;
 import org.ohdsi.utilities.files.WriteCSVFileWithHeader;
 
 public class ExportSourceToConceptMapDialog extends JDialog {
@@ -99,7 +99,7 @@ public class ExportSourceToConceptMapDialog extends JDialog {
 		if (fileChooser.showSaveDialog(Global.frame) == JFileChooser.APPROVE_OPTION) {
 			File file = fileChooser.getSelectedFile();
 			Global.folder = file.getParentFile().getAbsolutePath();
-			if (!file.getName().toLowerCase().endsWith(".csv"))
+			if (!file.getName().toLowerCase().endsWith(".csv") && !file.getName().toLowerCase().endsWith(".csv.gz"))
 				file = new File(file.getAbsolutePath() + ".csv");
 
 			writeToCsvFile(file.getAbsolutePath());
@@ -108,30 +108,36 @@ public class ExportSourceToConceptMapDialog extends JDialog {
 	}
 
 	private void writeToCsvFile(String filename) {
-		WriteCSVFileWithHeader out = new WriteCSVFileWithHeader(filename);
-		for (CodeMapping mapping : Global.mapping)
-			if (exportUnapproved || mapping.mappingStatus == MappingStatus.APPROVED) {
-				List<Concept> targetConcepts;
-				if (mapping.targetConcepts.size() == 0) {
-					targetConcepts = new ArrayList<Concept>(1);
-					targetConcepts.add(Concept.EMPTY_CONCEPT);
-				} else
-					targetConcepts = mapping.targetConcepts;
+		// Read the settings on the event dispatch thread, before writing in the background
+		String sourceVocabularyId = sourceVocabularyIdField.getText();
+		boolean exportUnapproved = this.exportUnapproved;
+		BackgroundWriter.write("Exporting " + new File(filename).getName(), Global.mapping.snapshot(), (codeMappings, progress) -> {
+			WriteCSVFileWithHeader out = new WriteCSVFileWithHeader(filename, new RowSchema("source_code", "source_concept_id", "source_vocabulary_id",
+					"source_code_description", "target_concept_id", "target_vocabulary_id", "valid_start_date", "valid_end_date", "invalid_reason"));
+			for (CodeMapping mapping : codeMappings) {
+				progress.incrementAndGet();
+				if (exportUnapproved || mapping.mappingStatus == MappingStatus.APPROVED) {
+					List<Concept> targetConcepts;
+					if (mapping.targetConcepts.size() == 0)
+						targetConcepts = Collections.singletonList(Concept.EMPTY_CONCEPT);
+					else
+						targetConcepts = mapping.targetConcepts;
 
-				for (Concept targetConcept : targetConcepts) {
-					Row row = new Row();
-					row.add("source_code", mapping.sourceCode.sourceCode);
-					row.add("source_concept_id", "0");
-					row.add("source_vocabulary_id", sourceVocabularyIdField.getText());
-					row.add("source_code_description", mapping.sourceCode.sourceName);
-					row.add("target_concept_id", targetConcept.conceptId);
-					row.add("target_vocabulary_id", targetConcept.conceptId == 0 ? "None" : targetConcept.vocabularyId );
-					row.add("valid_start_date", "1970-01-01");
-					row.add("valid_end_date", "2099-12-31");
-					row.add("invalid_reason", "");
-					out.write(row);
+					for (Concept targetConcept : targetConcepts) {
+						out.add(mapping.sourceCode.sourceCode);
+						out.add(0);
+						out.add(sourceVocabularyId);
+						out.add(mapping.sourceCode.sourceName);
+						out.add(targetConcept.conceptId);
+						out.add(targetConcept.conceptId == 0 ? "None" : targetConcept.vocabularyId);
+						out.add("1970-01-01");
+						out.add("2099-12-31");
+						out.add("");
+						out.endRow();
+					}
 				}
 			}
-		out.close();
+			out.close();
+		}, null);
 	}
 }
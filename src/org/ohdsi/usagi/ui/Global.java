@@ -20,6 +20,7 @@ import javax.swing.JFrame;
 import org.ohdsi.usagi.BerkeleyDbEngine;
 import org.ohdsi.usagi.UsagiSearchEngine;
 import org.ohdsi.usagi.ui.actions.*;
+import org.ohdsi.utilities.MetricsRegistry;
 
 import java.util.Vector;
 
@@ -57,4 +58,5 @@ public class Global {
 	public static Vector<String> 					vocabularyIds;
 	public static Vector<String>	 				domainIds;
 	public static ShowStatsAction					showStatsAction;
+	public static MetricsRegistry					metrics			= new MetricsRegistry();
 }
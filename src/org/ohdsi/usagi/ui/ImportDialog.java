@@ -29,9 +29,12 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.BorderFactory;
 import javax.swing.Box;
@@ -50,8 +53,12 @@ import javax.swing.table.TableModel;
 
 import org.ohdsi.usagi.CodeMapping;
 import org.ohdsi.usagi.CodeMapping.MappingStatus;
+import org.ohdsi.usagi.MappingCandidates;
 import org.ohdsi.usagi.SourceCode;
+import org.ohdsi.usagi.UsagiSearchEngine;
 import org.ohdsi.usagi.UsagiSearchEngine.ScoredConcept;
+import org.ohdsi.usagi.dataImport.ImportData;
+import org.ohdsi.usagi.jfr.UsagiEvents;
 import org.ohdsi.utilities.ReadXlsxFile;
 import org.ohdsi.utilities.StringUtilities;
 import org.ohdsi.utilities.collections.Pair;
@@ -344,6 +351,7 @@ public class ImportDialog extends JDialog {
 				e.printStackTrace();
 			}
 			Global.filename = null;
+			Global.mapping.closeJournal();
 			Global.mapping.fireDataChanged(RESTRUCTURE_EVENT);
 			setVisible(false);
 		} catch (Exception e) {
@@ -421,6 +429,11 @@ public class ImportDialog extends JDialog {
 				final Vector<String> filterConceptClassesFinal = filterConceptClasses;
 				final Vector<String> filterVocabulariesFinal = filterVocabularies;
 				final Vector<String> filterDomainsFinal = filterDomains;
+				String filterSignatureAuto = MappingCandidates.filterSignature(true, filterDomains, filterConceptClasses, filterVocabularies, filterStandard,
+						includeSourceConcepts);
+				String filterSignature = MappingCandidates.filterSignature(false, filterDomains, filterConceptClasses, filterVocabularies, filterStandard,
+						includeSourceConcepts);
+				Map<String, String> termPool = new ConcurrentHashMap<String, String>();
 
 				Global.mapping.clear();
 
@@ -432,35 +445,45 @@ public class ImportDialog extends JDialog {
 
 				// Note: Lucene's and BerkeleyDB's search objects are thread safe, so do not need to be recreated for each thread.
 				ForkJoinPool forkJoinPool = new ForkJoinPool(threadCount);
-				forkJoinPool.submit(() -> sourceCodes.parallelStream().forEach(sourceCode -> {
-					Set<Integer> filterConceptIds = null;
-					if (filterPanel.getFilterByAuto())
-						filterConceptIds = sourceCode.sourceAutoAssignedConceptIds;
-					try {
-						CodeMapping codeMapping = new CodeMapping(sourceCode);
-						List<ScoredConcept> concepts = Global.usagiSearchEngine.search(sourceCode.sourceName, true, filterConceptIds, filterDomainsFinal,
-								filterConceptClassesFinal, filterVocabulariesFinal, filterStandard, includeSourceConcepts);
-						if (concepts.size() > 0) {
-							codeMapping.targetConcepts.add(concepts.get(0).concept);
-							codeMapping.matchScore = concepts.get(0).matchScore;
-						} else {
-							codeMapping.matchScore = 0;
+				for (int start = 0; start < sourceCodes.size(); start += ImportData.CHUNK_SIZE) {
+					List<SourceCode> chunk = sourceCodes.subList(start, Math.min(start + ImportData.CHUNK_SIZE, sourceCodes.size()));
+					AtomicInteger matched = new AtomicInteger();
+					Object event = UsagiEvents.beginImportChunk();
+					forkJoinPool.submit(() -> chunk.parallelStream().forEach(sourceCode -> {
+						Set<Integer> filterConceptIds = null;
+						if (filterPanel.getFilterByAuto())
+							filterConceptIds = sourceCode.sourceAutoAssignedConceptIds;
+						try {
+							CodeMapping codeMapping = new CodeMapping(sourceCode);
+							List<ScoredConcept> concepts = Global.usagiSearchEngine.search(sourceCode.sourceName, true, filterConceptIds, filterDomainsFinal,
+									filterConceptClassesFinal, filterVocabulariesFinal, filterStandard, includeSourceConcepts, UsagiSearchEngine.MAX_RESULTS, false);
+							if (concepts.size() > 0) {
+								matched.incrementAndGet();
+								codeMapping.targetConcepts.add(concepts.get(0).concept);
+								codeMapping.matchScore = concepts.get(0).matchScore;
+							} else {
+								codeMapping.matchScore = 0;
+							}
+							boolean filteredByAuto = filterConceptIds != null && filterConceptIds.size() != 0;
+							codeMapping.candidates = MappingCandidates.fromScoredConcepts(concepts, MappingCandidates.DEFAULT_COUNT,
+									filteredByAuto ? filterSignatureAuto : filterSignature, termPool);
+							codeMapping.comment = "";
+							codeMapping.mappingStatus = MappingStatus.UNCHECKED;
+							if (sourceCode.sourceAutoAssignedConceptIds.size() == 1 && concepts.size() > 0) {
+								codeMapping.mappingStatus = MappingStatus.AUTO_MAPPED_TO_1;
+							} else if (sourceCode.sourceAutoAssignedConceptIds.size() > 1 && concepts.size() > 0) {
+								codeMapping.mappingStatus = MappingStatus.AUTO_MAPPED;
+							}
+							synchronized (globalMappingList) {
+								globalMappingList.add(codeMapping);
+								progressBar.setValue(Math.round(100 * globalMappingList.size() / sourceCodes.size()));
+							}
+						} catch (Exception e) {
+							System.out.println(e.toString());
 						}
-						codeMapping.comment = "";
-						codeMapping.mappingStatus = MappingStatus.UNCHECKED;
-						if (sourceCode.sourceAutoAssignedConceptIds.size() == 1 && concepts.size() > 0) {
-							codeMapping.mappingStatus = MappingStatus.AUTO_MAPPED_TO_1;
-						} else if (sourceCode.sourceAutoAssignedConceptIds.size() > 1 && concepts.size() > 0) {
-							codeMapping.mappingStatus = MappingStatus.AUTO_MAPPED;
-						}
-						synchronized (globalMappingList) {
-							globalMappingList.add(codeMapping);
-							progressBar.setValue(Math.round(100 * globalMappingList.size() / sourceCodes.size()));
-						}
-					} catch (Exception e) {
-						System.out.println(e.toString());
-					}
-				})).get();
+					})).get();
+					UsagiEvents.endImportChunk(event, start, chunk.size(), matched.get());
+				}
 				forkJoinPool.shutdown();
 				dialog.setVisible(false);
 				Global.applyPreviousMappingAction.setEnabled(true);
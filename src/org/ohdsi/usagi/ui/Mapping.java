@@ -15,27 +15,55 @@
  ******************************************************************************/
 package org.ohdsi.usagi.ui;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.JOptionPane;
 
 import org.ohdsi.usagi.CodeMapping;
+import org.ohdsi.usagi.CodeMapping.MappingStatus;
+import org.ohdsi.usagi.MappingCandidatesFile;
+import org.ohdsi.usagi.MappingJournal;
+import org.ohdsi.usagi.MappingSessionFile;
 import org.ohdsi.usagi.ReadCodeMappingsFromFile;
 import org.ohdsi.usagi.SourceCode;
 import org.ohdsi.usagi.WriteCodeMappingsToFile;
+import org.ohdsi.usagi.jfr.UsagiEvents;
 
 import static org.ohdsi.usagi.ui.DataChangeEvent.*;
 
 public class Mapping extends ArrayList<CodeMapping> {
 	private static final long			serialVersionUID	= -8560539820505747600L;
 	private List<DataChangeListener>	listeners			= new ArrayList<>();
+	private MappingJournal				journal				= null;
+	private List<Set<CodeMapping>>		changeTrackers		= new ArrayList<>();
 
 	public void loadFromFile(String filename) {
+		Object event = UsagiEvents.beginMappingFile();
+		closeJournal();
 		clear();
 		int nInvalidTargets = 0;
 		try {
-			for (CodeMapping codeMapping : new ReadCodeMappingsFromFile(filename)) {
+			String sessionFilename = MappingSessionFile.getFilename(filename);
+			List<CodeMapping> codeMappings = null;
+			if (MappingSessionFile.isCurrent(sessionFilename, filename)) {
+				try {
+					codeMappings = MappingSessionFile.read(sessionFilename);
+				} catch (Exception e) {
+					System.err.println("Unable to load session from " + sessionFilename + ", reading " + filename + " instead: " + e.getMessage());
+				}
+			}
+			if (codeMappings == null)
+				codeMappings = new ReadCodeMappingsFromFile(filename).load();
+			for (CodeMapping codeMapping : codeMappings) {
 				add(codeMapping);
 				if (codeMapping.mappingStatus == CodeMapping.MappingStatus.INVALID_TARGET) {
 					nInvalidTargets += 1;
@@ -50,6 +78,16 @@ public class Mapping extends ArrayList<CodeMapping> {
 			);
 		}
 
+		String candidatesFilename = MappingCandidatesFile.getFilename(filename);
+		if (new File(candidatesFilename).exists()) {
+			try {
+				MappingCandidatesFile.read(candidatesFilename, this);
+			} catch (Exception e) {
+				System.err.println("Unable to load candidates from " + candidatesFilename + ": " + e.getMessage());
+			}
+		}
+		UsagiEvents.endMappingFile(event, "load", filename, size());
+
 		if (nInvalidTargets > 0) {
 			JOptionPane.showMessageDialog(
 					null,
@@ -69,16 +107,147 @@ public class Mapping extends ArrayList<CodeMapping> {
 		listeners.add(listener);
 	}
 
-	public void fireDataChanged(DataChangeEvent event) {
+	/**
+	 * Notifies the listeners of a change in the mapping that did not change the status of any code mapping.
+	 * 
+	 * @param changedCodeMappings
+	 *            the code mappings whose comment or target concepts were changed. These are written to the journal, if one is open
+	 */
+	public void fireDataChanged(DataChangeEvent event, CodeMapping... changedCodeMappings) {
+		MappingStatus[] oldStatuses = new MappingStatus[changedCodeMappings.length];
+		for (int i = 0; i < changedCodeMappings.length; i++)
+			oldStatuses[i] = changedCodeMappings[i].mappingStatus;
+		fireDataChanged(event, changedCodeMappings, oldStatuses);
+	}
+
+	/**
+	 * Notifies the listeners of a change in the mapping.
+	 * 
+	 * @param changedCodeMappings
+	 *            the code mappings whose status, comment or target concepts were changed or that were added. These are written to the journal, if one is
+	 *            open
+	 * @param oldStatuses
+	 *            the status of each changed code mapping before the change, or null if the code mapping was added
+	 */
+	public void fireDataChanged(DataChangeEvent event, CodeMapping[] changedCodeMappings, MappingStatus[] oldStatuses) {
+		if (journal != null && changedCodeMappings.length != 0)
+			journal.append(changedCodeMappings);
+		for (Set<CodeMapping> changeTracker : changeTrackers)
+			Collections.addAll(changeTracker, changedCodeMappings);
+		if (!event.structureChange)
+			event = event.forCodeMappings(changedCodeMappings, oldStatuses);
 		for (DataChangeListener listener : listeners)
 			listener.dataChanged(event);
 	}
 
+	/**
+	 * Restores the changes made since the mapping file was last saved, and journals all further changes next to the mapping file so they survive a crash.
+	 * Call after opening or saving the mapping file.
+	 * 
+	 * @return the number of code mappings restored from the journal
+	 */
+	public int openJournal(String filename) {
+		closeJournal();
+		journal = new MappingJournal(filename, this);
+		if (journal.getRestoredCount() != 0)
+			fireDataChanged(RESTRUCTURE_EVENT);
+		return journal.getRestoredCount();
+	}
+
+	/**
+	 * Stops journaling changes. The journal file is kept, so its changes are restored when the mapping file is opened again. Background saves that are still
+	 * running will no longer open a journal when they finish.
+	 */
+	public void closeJournal() {
+		changeTrackers.clear();
+		if (journal != null) {
+			journal.close();
+			journal = null;
+		}
+	}
+
 	public void saveToFile(String filename) {
-		WriteCodeMappingsToFile out = new WriteCodeMappingsToFile(filename);
-		for (CodeMapping codeMapping : this)
+		Object event = UsagiEvents.beginMappingFile();
+		writeFiles(filename, this, null, new AtomicInteger());
+		if (journal != null) {
+			// All changes are now in the mapping file
+			journal.delete();
+			journal = null;
+		}
+		UsagiEvents.endMappingFile(event, "save", filename, size());
+	}
+
+	/**
+	 * Saves a snapshot of the mapping on a background thread, so the user can continue reviewing while the files are written. Changes made during the save
+	 * are journaled next to the new mapping file: an open journal is moved to the new mapping file as soon as it has been written, and otherwise a journal is
+	 * opened once the save has finished. Must be called on the event dispatch thread.
+	 */
+	public void saveToFileInBackground(String filename) {
+		List<CodeMapping> snapshot = snapshot();
+		Set<CodeMapping> changedDuringSave = Collections.newSetFromMap(new IdentityHashMap<CodeMapping, Boolean>());
+		changeTrackers.add(changedDuringSave);
+		MappingJournal journalDuringSave = journal;
+		BackgroundWriter.write("Saving " + new File(filename).getName(), snapshot, (codeMappings, progress) -> {
+			Object event = UsagiEvents.beginMappingFile();
+			writeFiles(filename, codeMappings, journalDuringSave, progress);
+			UsagiEvents.endMappingFile(event, "save", filename, codeMappings.size());
+		}, () -> {
+			if (!changeTrackers.remove(changedDuringSave))
+				return; // Another mapping was loaded in the meantime
+			if (journal != null && journal == journalDuringSave)
+				return; // The journal was moved to the new mapping file, and already holds the changes made during the save
+			if (journal != null)
+				journal.delete();
+			journal = new MappingJournal(filename, this);
+			if (changedDuringSave.size() != 0)
+				journal.append(changedDuringSave.toArray(new CodeMapping[changedDuringSave.size()]));
+		});
+	}
+
+	/**
+	 * Returns a copy of the mapping that is not affected by later edits, to be written to file on a background thread. Source codes and candidates are shared,
+	 * since these are not edited.
+	 */
+	public List<CodeMapping> snapshot() {
+		List<CodeMapping> snapshot = new ArrayList<CodeMapping>(size());
+		for (CodeMapping codeMapping : this) {
+			CodeMapping copy = new CodeMapping(codeMapping.sourceCode);
+			copy.matchScore = codeMapping.matchScore;
+			copy.mappingStatus = codeMapping.mappingStatus;
+			copy.targetConcepts = new ArrayList<>(codeMapping.targetConcepts);
+			copy.comment = codeMapping.comment;
+			copy.candidates = codeMapping.candidates;
+			snapshot.add(copy);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Writes the mapping file, and the candidates and session files next to it. The mapping file is first written to a temporary file, so an existing
+	 * mapping file is not lost if writing fails halfway.
+	 * 
+	 * @param journal
+	 *            if not null, moved to the new mapping file as soon as it is in place, so the changes made while writing are restored after a crash
+	 * @param progress
+	 *            set to the number of code mappings written to the mapping file so far
+	 */
+	private static void writeFiles(String filename, List<CodeMapping> codeMappings, MappingJournal journal, AtomicInteger progress) {
+		String tempFilename = filename + ".tmp";
+		WriteCodeMappingsToFile out = new WriteCodeMappingsToFile(tempFilename);
+		for (CodeMapping codeMapping : codeMappings) {
 			out.write(codeMapping);
+			progress.incrementAndGet();
+		}
 		out.close();
+		try {
+			Files.move(Paths.get(tempFilename), Paths.get(filename), StandardCopyOption.REPLACE_EXISTING);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		if (journal != null)
+			journal.moveTo(filename);
+		MappingCandidatesFile.write(MappingCandidatesFile.getFilename(filename), codeMappings);
+		MappingSessionFile.write(MappingSessionFile.getFilename(filename), codeMappings, filename);
 	}
 
 	public List<SourceCode> getSourceCodes() {
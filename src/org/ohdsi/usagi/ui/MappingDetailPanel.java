@@ -31,6 +31,7 @@ import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.Vector;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.swing.Action;
 import javax.swing.BorderFactory;
@@ -53,6 +54,8 @@ import javax.swing.table.TableRowSorter;
 import org.ohdsi.usagi.CodeMapping;
 import org.ohdsi.usagi.CodeMapping.MappingStatus;
 import org.ohdsi.usagi.Concept;
+import org.ohdsi.usagi.MappingCandidates;
+import org.ohdsi.usagi.UsagiSearchEngine;
 import org.ohdsi.usagi.UsagiSearchEngine.ScoredConcept;
 
 import static org.ohdsi.usagi.ui.DataChangeEvent.*;
@@ -60,6 +63,7 @@ import static org.ohdsi.usagi.ui.DataChangeEvent.*;
 public class MappingDetailPanel extends JPanel implements CodeSelectedListener, FilterChangeListener {
 
 	private static final long					serialVersionUID	= 2127318722005512776L;
+	private static LongAdder					candidateCacheHits	= Global.metrics.counter("search.candidateCacheHits");
 	private UsagiTable							sourceCodeTable;
 	private SourceCodeTableModel				sourceCodeTableModel;
 	private UsagiTable							targetConceptTable;
@@ -69,6 +73,7 @@ public class MappingDetailPanel extends JPanel implements CodeSelectedListener,
 	private ConceptTableModel					searchTableModel;
 	private JButton								approveButton;
 	private JTextField							commentField;
+	private boolean								ignoreCommentChanges	= false;
 	private JButton								removeButton;
 	private JButton								replaceButton;
 	private JButton								addButton;
@@ -137,7 +142,8 @@ public class MappingDetailPanel extends JPanel implements CodeSelectedListener,
 
 			@Override
 			public void actionPerformed(ActionEvent arg0) {
-				doSearch();
+				if (!showCandidates())
+					doSearch();
 			}
 		});
 		panel.add(autoQueryButton, c);
@@ -269,20 +275,17 @@ public class MappingDetailPanel extends JPanel implements CodeSelectedListener,
 
 			@Override
 			public void removeUpdate(DocumentEvent arg0) {
-				codeMapping.comment = commentField.getText();
-				Global.mapping.fireDataChanged(SIMPLE_UPDATE_EVENT);
+				commentChanged();
 			}
 
 			@Override
 			public void insertUpdate(DocumentEvent arg0) {
-				codeMapping.comment = commentField.getText();
-				Global.mapping.fireDataChanged(SIMPLE_UPDATE_EVENT);
+				commentChanged();
 			}
 
 			@Override
 			public void changedUpdate(DocumentEvent arg0) {
-				codeMapping.comment = commentField.getText();
-				Global.mapping.fireDataChanged(SIMPLE_UPDATE_EVENT);
+				commentChanged();
 			}
 		});
 		commentField.setToolTipText("Comments about the code mapping can be written here");
@@ -365,14 +368,28 @@ public class MappingDetailPanel extends JPanel implements CodeSelectedListener,
 		return panel;
 	}
 
+	private void commentChanged() {
+		// Showing the comment of a newly selected code does not change the mapping
+		if (ignoreCommentChanges)
+			return;
+		codeMapping.comment = commentField.getText();
+		Global.mapping.fireDataChanged(SIMPLE_UPDATE_EVENT, codeMapping);
+	}
+
 	@Override
 	public void codeSelected(CodeMapping codeMapping) {
 		this.codeMapping = codeMapping;
 		setApproveButton();
 		sourceCodeTableModel.setMapping(codeMapping);
 		targetConceptTableModel.setConcepts(codeMapping.targetConcepts);
-		commentField.setText(codeMapping.comment);
-		doSearch();
+		ignoreCommentChanges = true;
+		try {
+			commentField.setText(codeMapping.comment);
+		} finally {
+			ignoreCommentChanges = false;
+		}
+		if (!showCandidates())
+			doSearch();
 	}
 
 	@Override
@@ -386,12 +403,13 @@ public class MappingDetailPanel extends JPanel implements CodeSelectedListener,
 	}
 
 	public void approve() {
+		MappingStatus[] oldStatuses = new MappingStatus[] { codeMapping.mappingStatus };
 		if (codeMapping.mappingStatus != CodeMapping.MappingStatus.APPROVED) {
 			codeMapping.mappingStatus = CodeMapping.MappingStatus.APPROVED;
-			Global.mapping.fireDataChanged(APPROVE_EVENT);
+			Global.mapping.fireDataChanged(APPROVE_EVENT, new CodeMapping[] { codeMapping }, oldStatuses);
 		} else {
 			codeMapping.mappingStatus = CodeMapping.MappingStatus.UNCHECKED;
-			Global.mapping.fireDataChanged(SIMPLE_UPDATE_EVENT);
+			Global.mapping.fireDataChanged(SIMPLE_UPDATE_EVENT, new CodeMapping[] { codeMapping }, oldStatuses);
 			setApproveButton();
 		}
 	}
@@ -416,9 +434,11 @@ public class MappingDetailPanel extends JPanel implements CodeSelectedListener,
 		targetConceptTableModel.fireTableDataChanged();
 
 		if (codeMappingsFromMulti.size() > 0) {
-			Global.mapping.fireDataChanged(MULTI_UPDATE_EVENT);
+			List<CodeMapping> changedCodeMappings = new ArrayList<CodeMapping>(codeMappingsFromMulti);
+			changedCodeMappings.add(codeMapping);
+			Global.mapping.fireDataChanged(MULTI_UPDATE_EVENT, changedCodeMappings.toArray(new CodeMapping[changedCodeMappings.size()]));
 		} else {
-			Global.mapping.fireDataChanged(SIMPLE_UPDATE_EVENT);
+			Global.mapping.fireDataChanged(SIMPLE_UPDATE_EVENT, codeMapping);
 		}
 	}
 
@@ -446,7 +466,7 @@ public class MappingDetailPanel extends JPanel implements CodeSelectedListener,
 			codeMapping.targetConcepts.remove(row);
 
 		targetConceptTableModel.fireTableDataChanged();
-		Global.mapping.fireDataChanged(SIMPLE_UPDATE_EVENT);
+		Global.mapping.fireDataChanged(SIMPLE_UPDATE_EVENT, codeMapping);
 	}
 
 	private class SearchTask extends TimerTask {
@@ -483,6 +503,37 @@ public class MappingDetailPanel extends JPanel implements CodeSelectedListener,
 		}
 	}
 
+	/**
+	 * Shows the candidates that were stored during automapping instead of searching, if they were found using the source term and the current filters, and
+	 * hold at least as many concepts as the search would return.
+	 * 
+	 * @return true if the candidates were shown
+	 */
+	private boolean showCandidates() {
+		if (codeMapping == null || codeMapping.candidates == null || !autoQueryButton.isSelected())
+			return false;
+		if (!codeMapping.candidates.filterSignature.equals(getFilterSignature()))
+			return false;
+		// Candidates saved by a batch import are often cut off below the number of results of a normal search:
+		if (!codeMapping.candidates.complete && codeMapping.candidates.size() < UsagiSearchEngine.MAX_RESULTS)
+			return false;
+		if (timer != null)
+			timer.cancel();
+		searchTableModel.setScoredConcepts(codeMapping.candidates.toScoredConcepts());
+		Global.metrics.increment(candidateCacheHits, 1);
+		searchTable.scrollRectToVisible(new Rectangle(searchTable.getCellRect(0, 0, true)));
+		Global.statusBar.setSearching(false);
+		return true;
+	}
+
+	private String getFilterSignature() {
+		boolean filterByAuto = filterPanel.getFilterByAuto() && codeMapping.sourceCode.sourceAutoAssignedConceptIds.size() != 0;
+		return MappingCandidates.filterSignature(filterByAuto, filterPanel.getFilterByDomains() ? filterPanel.getDomain() : null,
+				filterPanel.getFilterByConceptClasses() ? filterPanel.getConceptClass() : null,
+				filterPanel.getFilterByVocabularies() ? filterPanel.getVocabulary() : null, filterPanel.getFilterStandard(),
+				filterPanel.getIncludeSourceTerms());
+	}
+
 	public void doSearch() {
 		Global.statusBar.setSearching(true);
 		if (timer != null)
@@ -575,7 +626,8 @@ public class MappingDetailPanel extends JPanel implements CodeSelectedListener,
 
 	@Override
 	public void filterChanged() {
-		doSearch();
+		if (!showCandidates())
+			doSearch();
 	}
 
 }
@@ -17,15 +17,21 @@ package org.ohdsi.usagi.ui;
 
 import java.awt.Dimension;
 import java.awt.Rectangle;
+import java.text.CollationKey;
+import java.text.Collator;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
 import javax.swing.BoxLayout;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.ListSelectionModel;
 import javax.swing.table.AbstractTableModel;
-import javax.swing.table.TableRowSorter;
 
 import org.ohdsi.usagi.CodeMapping;
 import org.ohdsi.usagi.CodeMapping.MappingStatus;
@@ -46,7 +52,7 @@ public class MappingTablePanel extends JPanel implements DataChangeListener {
 
 		tableModel = new CodeMapTableModel();
 		table = new UsagiTable(tableModel);
-		table.setRowSorter(new TableRowSorter<>(tableModel));
+		table.setRowSorter(new ColumnarRowSorter<>(tableModel));
 		table.setPreferredScrollableViewportSize(new Dimension(1200, 200));
 		table.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
 
@@ -102,7 +108,12 @@ public class MappingTablePanel extends JPanel implements DataChangeListener {
 		Global.mapping.addListener(this);
 	}
 
-	class CodeMapTableModel extends AbstractTableModel {
+	/**
+	 * Table model holding the status, frequency, match score and first target concept of each code mapping in primitive arrays, so sorting and rendering do
+	 * not need to go through the code mappings. The arrays are refreshed for the code mappings that changed, and only the columns whose values changed get a
+	 * new version, so the sorter keeps its cached order for the other columns.
+	 */
+	class CodeMapTableModel extends AbstractTableModel implements ColumnarRowSorter.SortKeyModel {
 		private static final long	serialVersionUID	= 169286268154988911L;
 
 		private String[]			defaultColumnNames	= { "Status", "Source code", "Source term", "Frequency", "Match score", "Concept ID", "Concept name",
@@ -111,6 +122,19 @@ public class MappingTablePanel extends JPanel implements DataChangeListener {
 		private String[]			columnNames			= defaultColumnNames;
 		private int					addInfoColCount		= 0;
 		private int					ADD_INFO_START_COL	= 4;
+		private MappingStatus[]		statusValues		= MappingStatus.values();
+		private byte[]				statuses			= new byte[0];
+		private int[]				frequencies			= new int[0];
+		private double[]			matchScores			= new double[0];
+		private int[]				conceptIds			= new int[0];
+		private int[]				parentCounts		= new int[0];
+		private int[]				childCounts			= new int[0];
+		private String[]			comments			= new String[0];
+		private Map<CodeMapping, Integer>	codeMappingToRow	= new IdentityHashMap<CodeMapping, Integer>();
+		private long				sourceVersion		= 0;
+		private long[]				columnVersions		= new long[defaultColumnNames.length];
+		private long[][]			sortKeys			= new long[defaultColumnNames.length][];
+		private long[]				sortKeyVersions		= new long[defaultColumnNames.length];
 
 		public int getColumnCount() {
 			return columnNames.length;
@@ -120,7 +144,111 @@ public class MappingTablePanel extends JPanel implements DataChangeListener {
 			return Global.mapping.get(modelRow);
 		}
 
+		/**
+		 * Reloads the columns that can change when code mappings are edited, for the given code mappings. The source columns only change when the mapping is
+		 * restructured.
+		 * 
+		 * @return the model rows of the code mappings, or null if all rows were reloaded because no code mappings were given or the rows have changed
+		 */
+		public int[] refresh(CodeMapping[] codeMappings) {
+			if (codeMappings.length == 0 || statuses.length != Global.mapping.size()) {
+				refresh();
+				return null;
+			}
+			int[] rows = new int[codeMappings.length];
+			for (int i = 0; i < codeMappings.length; i++) {
+				Integer row = codeMappingToRow.get(codeMappings[i]);
+				if (row == null) {
+					refresh();
+					return null;
+				}
+				rows[i] = row;
+			}
+			for (int i = 0; i < codeMappings.length; i++)
+				loadMappingColumns(rows[i], codeMappings[i]);
+			return rows;
+		}
+
+		/**
+		 * Reloads the columns that can change when code mappings are edited, for all code mappings.
+		 */
+		public void refresh() {
+			int rowCount = Global.mapping.size();
+			if (statuses.length != rowCount) {
+				reload();
+				return;
+			}
+			for (int row = 0; row < rowCount; row++) {
+				CodeMapping codeMapping = Global.mapping.get(row);
+				Integer knownRow = codeMappingToRow.get(codeMapping);
+				if (knownRow == null || knownRow != row) {
+					reload();
+					return;
+				}
+				loadMappingColumns(row, codeMapping);
+			}
+		}
+
+		private void reload() {
+			int rowCount = Global.mapping.size();
+			statuses = new byte[rowCount];
+			frequencies = new int[rowCount];
+			matchScores = new double[rowCount];
+			conceptIds = new int[rowCount];
+			parentCounts = new int[rowCount];
+			childCounts = new int[rowCount];
+			comments = new String[rowCount];
+			codeMappingToRow = new IdentityHashMap<CodeMapping, Integer>(rowCount);
+			for (int row = 0; row < rowCount; row++) {
+				CodeMapping codeMapping = Global.mapping.get(row);
+				frequencies[row] = codeMapping.sourceCode.sourceFrequency;
+				codeMappingToRow.put(codeMapping, row);
+				loadMappingColumns(row, codeMapping);
+			}
+			sourceVersion++;
+			invalidateColumns(0, defaultColumnNames.length - 1);
+		}
+
+		/**
+		 * Loads the mapping columns of one row, and gives a new version to each column whose value changed.
+		 */
+		private void loadMappingColumns(int row, CodeMapping codeMapping) {
+			byte status = (byte) codeMapping.mappingStatus.ordinal();
+			if (statuses[row] != status) {
+				statuses[row] = status;
+				invalidateColumns(0, 0);
+			}
+			if (Double.compare(matchScores[row], codeMapping.matchScore) != 0) {
+				matchScores[row] = codeMapping.matchScore;
+				invalidateColumns(4, 4);
+			}
+			Concept targetConcept;
+			if (codeMapping.targetConcepts.size() > 0)
+				targetConcept = codeMapping.targetConcepts.get(0);
+			else
+				targetConcept = Concept.EMPTY_CONCEPT;
+			if (conceptIds[row] != targetConcept.conceptId || parentCounts[row] != targetConcept.parentCount || childCounts[row] != targetConcept.childCount) {
+				conceptIds[row] = targetConcept.conceptId;
+				parentCounts[row] = targetConcept.parentCount;
+				childCounts[row] = targetConcept.childCount;
+				invalidateColumns(5, 16);
+			}
+			if (!Objects.equals(comments[row], codeMapping.comment)) {
+				comments[row] = codeMapping.comment;
+				invalidateColumns(17, 17);
+			}
+		}
+
+		/**
+		 * Gives a new version to the given range of default columns, so cached sort keys and row orders of these columns are no longer used.
+		 */
+		private void invalidateColumns(int firstDefaultCol, int lastDefaultCol) {
+			for (int col = firstDefaultCol; col <= lastDefaultCol; col++)
+				columnVersions[col]++;
+		}
+
 		public void restructure() {
+			reload();
 			columnNames = defaultColumnNames;
 			addInfoColCount = 0;
 			if (Global.mapping.size() != 0) {
@@ -136,12 +264,14 @@ public class MappingTablePanel extends JPanel implements DataChangeListener {
 				for (int i = ADD_INFO_START_COL; i < defaultColumnNames.length; i++)
 					columnNames[i + addInfoColCount] = defaultColumnNames[i];
 			}
+			sortKeys = new long[columnNames.length][];
+			sortKeyVersions = new long[columnNames.length];
 			fireTableStructureChanged();
 			table.setRowSelectionInterval(0, 0);
 		}
 
 		public int getRowCount() {
-			return Global.mapping.size();
+			return statuses.length;
 		}
 
 		public String getColumnName(int col) {
@@ -164,17 +294,17 @@ public class MappingTablePanel extends JPanel implements DataChangeListener {
 					targetConcept = Concept.EMPTY_CONCEPT;
 				switch (col) {
 					case 0:
-						return codeMapping.mappingStatus;
+						return statusValues[statuses[row]];
 					case 1:
 						return codeMapping.sourceCode.sourceCode;
 					case 2:
 						return codeMapping.sourceCode.sourceName;
 					case 3:
-						return codeMapping.sourceCode.sourceFrequency == -1 ? "" : codeMapping.sourceCode.sourceFrequency;
+						return frequencies[row] == -1 ? "" : frequencies[row];
 					case 4:
-						return codeMapping.matchScore;
+						return matchScores[row];
 					case 5:
-						return targetConcept.conceptId;
+						return conceptIds[row];
 					case 6:
 						return targetConcept.conceptName;
 					case 7:
@@ -194,11 +324,11 @@ public class MappingTablePanel extends JPanel implements DataChangeListener {
 					case 14:
 						return targetConcept.standardConcept;
 					case 15:
-						return targetConcept.parentCount;
+						return parentCounts[row];
 					case 16:
-						return targetConcept.childCount;
+						return childCounts[row];
 					case 17:
-						return codeMapping.comment;
+						return comments[row];
 					default:
 						return "";
 				}
@@ -240,6 +370,112 @@ public class MappingTablePanel extends JPanel implements DataChangeListener {
 		public void setValueAt(Object value, int row, int col) {
 
 		}
+
+		public long getColumnVersion(int col) {
+			if (col < ADD_INFO_START_COL + addInfoColCount && col != 0)
+				return sourceVersion;
+			else if (col >= ADD_INFO_START_COL)
+				return columnVersions[col - addInfoColCount];
+			else
+				return columnVersions[col];
+		}
+
+		/**
+		 * Returns the sort keys of a column, computed from the primitive columns where possible. Keys are cached until the column changes.
+		 */
+		public long[] getSortKeys(int col) {
+			long version = getColumnVersion(col);
+			if (sortKeys[col] != null && sortKeyVersions[col] == version)
+				return sortKeys[col];
+			long[] keys;
+			int defaultCol = col;
+			if (col >= ADD_INFO_START_COL && col < ADD_INFO_START_COL + addInfoColCount)
+				defaultCol = -1;
+			else if (col >= ADD_INFO_START_COL)
+				defaultCol = col - addInfoColCount;
+			switch (defaultCol) {
+				case 0:
+					keys = new long[statuses.length];
+					for (int row = 0; row < keys.length; row++)
+						keys[row] = statuses[row];
+					break;
+				case 3:
+					keys = toLongs(frequencies);
+					break;
+				case 4:
+					keys = new long[matchScores.length];
+					for (int row = 0; row < keys.length; row++) {
+						long bits = Double.doubleToLongBits(matchScores[row]);
+						keys[row] = bits < 0 ? bits ^ Long.MAX_VALUE : bits;
+					}
+					break;
+				case 5:
+					keys = toLongs(conceptIds);
+					break;
+				case 15:
+					keys = toLongs(parentCounts);
+					break;
+				case 16:
+					keys = toLongs(childCounts);
+					break;
+				default:
+					keys = rankStrings(col);
+			}
+			sortKeys[col] = keys;
+			sortKeyVersions[col] = version;
+			return keys;
+		}
+
+		private long[] toLongs(int[] values) {
+			long[] longs = new long[values.length];
+			for (int row = 0; row < values.length; row++)
+				longs[row] = values[row];
+			return longs;
+		}
+
+		/**
+		 * Ranks the values of a column in the order of the default collator, as used by TableRowSorter for strings. Each distinct value is only collated once.
+		 * Null values are ranked before all others.
+		 */
+		private long[] rankStrings(int col) {
+			long[] ranks = new long[getRowCount()];
+			Map<String, Integer> valueToIndex = new HashMap<String, Integer>();
+			List<String> distinctValues = new ArrayList<String>();
+			for (int row = 0; row < ranks.length; row++) {
+				Object value = getValueAt(row, col);
+				if (value == null) {
+					ranks[row] = -1;
+					continue;
+				}
+				String string = value.toString();
+				Integer index = valueToIndex.get(string);
+				if (index == null) {
+					index = distinctValues.size();
+					valueToIndex.put(string, index);
+					distinctValues.add(string);
+				}
+				ranks[row] = index;
+			}
+			Collator collator = Collator.getInstance();
+			CollationKey[] collationKeys = new CollationKey[distinctValues.size()];
+			for (int i = 0; i < collationKeys.length; i++)
+				collationKeys[i] = collator.getCollationKey(distinctValues.get(i));
+			Integer[] order = new Integer[collationKeys.length];
+			for (int i = 0; i < order.length; i++)
+				order[i] = i;
+			Arrays.sort(order, (index1, index2) -> collationKeys[index1].compareTo(collationKeys[index2]));
+			int[] indexToRank = new int[order.length];
+			int rank = 0;
+			for (int i = 0; i < order.length; i++) {
+				if (i != 0 && collationKeys[order[i]].compareTo(collationKeys[order[i - 1]]) != 0)
+					rank++;
+				indexToRank[order[i]] = rank;
+			}
+			for (int row = 0; row < ranks.length; row++)
+				if (ranks[row] != -1)
+					ranks[row] = indexToRank[(int) ranks[row]];
+			return ranks;
+		}
 	}
 
 	public void addCodeSelectedListener(CodeSelectedListener listener) {
@@ -248,6 +484,9 @@ public class MappingTablePanel extends JPanel implements DataChangeListener {
 
 	@Override
 	public void dataChanged(DataChangeEvent event) {
+		int[] changedRows = null;
+		if (!event.structureChange)
+			changedRows = tableModel.refresh(event.codeMappings);
 		if (event.approved) {
 			int row = table.getSelectedRow();
 			ignoreSelection = true;
@@ -262,8 +501,11 @@ public class MappingTablePanel extends JPanel implements DataChangeListener {
 			table.setRowSelectionInterval(0, 0);
 		} else if (event.multiUpdate) {
 			tableModel.fireTableDataChanged();
-		} else {
-			tableModel.fireTableRowsUpdated(table.getSelectedRow(), table.getSelectedRow());
+		} else if (changedRows != null) {
+			for (int row : changedRows)
+				tableModel.fireTableRowsUpdated(row, row);
+		} else if (tableModel.getRowCount() != 0) {
+			tableModel.fireTableRowsUpdated(0, tableModel.getRowCount() - 1);
 		}
 
 		// Multi selection is lost
@@ -273,12 +515,16 @@ public class MappingTablePanel extends JPanel implements DataChangeListener {
 	}
 
 	public void approveAll() {
-		for (int viewRow : table.getSelectedRows()) {
-			int modelRow = table.convertRowIndexToModel(viewRow);
-			tableModel.getCodeMapping(modelRow).mappingStatus = MappingStatus.APPROVED;
-
+		int[] viewRows = table.getSelectedRows();
+		CodeMapping[] changedCodeMappings = new CodeMapping[viewRows.length];
+		MappingStatus[] oldStatuses = new MappingStatus[viewRows.length];
+		for (int i = 0; i < viewRows.length; i++) {
+			int modelRow = table.convertRowIndexToModel(viewRows[i]);
+			changedCodeMappings[i] = tableModel.getCodeMapping(modelRow);
+			oldStatuses[i] = changedCodeMappings[i].mappingStatus;
+			changedCodeMappings[i].mappingStatus = MappingStatus.APPROVED;
 		}
-		Global.mapping.fireDataChanged(SIMPLE_UPDATE_EVENT);
+		Global.mapping.fireDataChanged(SIMPLE_UPDATE_EVENT, changedCodeMappings, oldStatuses);
 		int viewRow = table.getSelectedRow();
 		if (viewRow != -1) {
 			int modelRow = table.convertRowIndexToModel(viewRow);
@@ -288,11 +534,13 @@ public class MappingTablePanel extends JPanel implements DataChangeListener {
 	}
 
 	public void clearAll() {
+		List<CodeMapping> changedCodeMappings = new ArrayList<CodeMapping>();
 		for (int viewRow : table.getSelectedRows()) {
 			int modelRow = table.convertRowIndexToModel(viewRow);
 			tableModel.getCodeMapping(modelRow).targetConcepts.clear();
+			changedCodeMappings.add(tableModel.getCodeMapping(modelRow));
 		}
-		Global.mapping.fireDataChanged(SIMPLE_UPDATE_EVENT);
+		Global.mapping.fireDataChanged(SIMPLE_UPDATE_EVENT, changedCodeMappings.toArray(new CodeMapping[changedCodeMappings.size()]));
 		int viewRow = table.getSelectedRow();
 		if (viewRow != -1) {
 			int modelRow = table.convertRowIndexToModel(viewRow);
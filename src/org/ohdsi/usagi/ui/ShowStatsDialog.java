@@ -22,6 +22,8 @@ import java.awt.event.ActionListener;
 import java.io.File;
 import java.text.NumberFormat;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.swing.Box;
 import javax.swing.BoxLayout;
@@ -31,6 +33,8 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 
 import org.ohdsi.usagi.BerkeleyDbEngine.BerkeleyDbStats;
+import org.ohdsi.utilities.LatencyHistogram;
+import org.ohdsi.utilities.MetricsRegistry;
 import org.ohdsi.utilities.files.ReadTextFile;
 
 public class ShowStatsDialog extends JDialog {
@@ -90,8 +94,30 @@ public class ShowStatsDialog extends JDialog {
 		g.gridy = 4;
 		add(new JLabel(numberFormat.format(berkeleyDbStats.parentChildCount)), g);
 
+		int row = 5;
+		for (LatencyHistogram histogram : Global.metrics.getHistograms()) {
+			if (histogram.getCount() == 0)
+				continue;
+			g.gridx = 0;
+			g.gridy = row;
+			add(new JLabel(histogram.getName() + ":"), g);
+
+			g.gridx = 1;
+			g.gridy = row++;
+			add(new JLabel(MetricsRegistry.summarize(histogram)), g);
+		}
+		for (Map.Entry<String, LongAdder> counter : Global.metrics.getCounters().entrySet()) {
+			g.gridx = 0;
+			g.gridy = row;
+			add(new JLabel(counter.getKey() + ":"), g);
+
+			g.gridx = 1;
+			g.gridy = row++;
+			add(new JLabel(numberFormat.format(counter.getValue().sum())), g);
+		}
+
 		g.gridx = 0;
-		g.gridy = 5;
+		g.gridy = row;
 		g.gridwidth = 2;
 
 		JPanel buttonPanel = new JPanel();
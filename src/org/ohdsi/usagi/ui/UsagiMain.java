@@ -58,8 +58,10 @@ public class UsagiMain implements ActionListener {
 			Global.folder = new File("").getAbsolutePath();
 		}
 		Global.usagiSearchEngine = new UsagiSearchEngine(Global.folder);
+		// Searches are run one at a time as the user selects codes, so use all processors within a single search:
+		Global.usagiSearchEngine.setSearchThreads(Runtime.getRuntime().availableProcessors());
 		Global.dbEngine = new BerkeleyDbEngine(Global.folder);
-		if (Global.usagiSearchEngine.mainIndexExists()) {
+		if (Global.usagiSearchEngine.mainIndexIsCurrent()) {
 			Global.usagiSearchEngine.openIndexForSearching(false);
 			Global.dbEngine.openForReading();
 		}
@@ -104,6 +106,8 @@ public class UsagiMain implements ActionListener {
 		frame.addWindowListener(new WindowAdapter() {
 			public void windowClosing(WindowEvent e) {
 				if (UsagiDialogs.askBeforeExit()) {
+					BackgroundWriter.waitForPendingWrites();
+					Global.mapping.closeJournal();
 					Global.dbEngine.shutdown();
 					System.exit(0);
 				}
@@ -135,6 +139,11 @@ public class UsagiMain implements ActionListener {
 
 		if (!Global.usagiSearchEngine.mainIndexExists())
 			Global.rebuildIndexAction.actionPerformed(null);
+		else if (!Global.usagiSearchEngine.mainIndexIsCurrent()) {
+			JOptionPane.showMessageDialog(frame, "The index was built by an older version of Usagi, and needs to be rebuilt.", "Index out of date",
+					JOptionPane.INFORMATION_MESSAGE);
+			Global.rebuildIndexAction.actionPerformed(null);
+		}
 
 		if (args.length > 1 && args[0].equals("--file")) {
 			OpenAction.open(new File(args[1]));
@@ -16,6 +16,7 @@
 package org.ohdsi.usagi.ui;
 
 import java.awt.Color;
+import java.awt.Dimension;
 import java.text.DecimalFormat;
 
 import javax.swing.BorderFactory;
@@ -23,6 +24,7 @@ import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 
 import org.ohdsi.usagi.CodeMapping;
 import org.ohdsi.usagi.CodeMapping.MappingStatus;
@@ -33,7 +35,12 @@ public class UsagiStatusBar extends JPanel implements DataChangeListener {
 	private JLabel				countLabel;
 	private JLabel				percentLabel;
 	private JLabel				searchLabel;
+	private JLabel				writeLabel;
+	private JProgressBar		writeProgressBar;
 	private DecimalFormat		percentFormatter	= new DecimalFormat("##0.0");
+	private int					approved			= 0;
+	private long				totalFreq			= 0;
+	private long				approvedFreq		= 0;
 
 	public UsagiStatusBar() {
 		super();
@@ -58,32 +65,80 @@ public class UsagiStatusBar extends JPanel implements DataChangeListener {
 		searchLabel.setVisible(false);
 		add(searchLabel);
 		add(Box.createHorizontalGlue());
+		writeLabel = new JLabel();
+		writeLabel.setVisible(false);
+		add(writeLabel);
+		add(Box.createHorizontalStrut(5));
+		writeProgressBar = new JProgressBar();
+		writeProgressBar.setMaximumSize(new Dimension(150, writeProgressBar.getPreferredSize().height));
+		writeProgressBar.setVisible(false);
+		add(writeProgressBar);
+		add(Box.createHorizontalStrut(15));
 		JLabel versionLabel = new JLabel("Vocabulary version: " + Global.vocabularyVersion);
 		add(versionLabel);
 		Global.mapping.addListener(this);
+		recount();
+		update();
 	}
 
 	public void setSearching(boolean value) {
 		searchLabel.setVisible(value);
 	}
 
-	private void update() {
-		int approved = 0;
-		long totalFreq = 0;
-		long approvedFreq = 0;
+	public void showWriteProgress(String description) {
+		writeLabel.setText(description + "...");
+		writeLabel.setVisible(true);
+		writeProgressBar.setValue(0);
+		writeProgressBar.setVisible(true);
+	}
+
+	public void setWriteProgress(int written, int total) {
+		writeProgressBar.setMaximum(total);
+		writeProgressBar.setValue(written);
+	}
+
+	public void hideWriteProgress() {
+		writeLabel.setVisible(false);
+		writeProgressBar.setVisible(false);
+	}
+
+	private void recount() {
+		approved = 0;
+		totalFreq = 0;
+		approvedFreq = 0;
 		for (CodeMapping codeMapping : Global.mapping) {
 			if (codeMapping.mappingStatus == MappingStatus.APPROVED) {
 				approved++;
-				if (codeMapping.sourceCode.sourceFrequency == -1)
-					approvedFreq++;
-				else
-					approvedFreq += codeMapping.sourceCode.sourceFrequency;
+				approvedFreq += getFrequency(codeMapping);
 			}
-			if (codeMapping.sourceCode.sourceFrequency == -1)
-				totalFreq++;
-			else
-				totalFreq += codeMapping.sourceCode.sourceFrequency;
+			totalFreq += getFrequency(codeMapping);
 		}
+	}
+
+	/**
+	 * Applies the status changes in the event to the counts, instead of recounting the whole mapping.
+	 */
+	private void applyChanges(DataChangeEvent event) {
+		for (int i = 0; i < event.codeMappings.length; i++) {
+			long frequency = getFrequency(event.codeMappings[i]);
+			if (event.oldStatuses[i] == null)
+				totalFreq += frequency;
+			else if (event.oldStatuses[i] == MappingStatus.APPROVED) {
+				approved--;
+				approvedFreq -= frequency;
+			}
+			if (event.newStatuses[i] == MappingStatus.APPROVED) {
+				approved++;
+				approvedFreq += frequency;
+			}
+		}
+	}
+
+	private long getFrequency(CodeMapping codeMapping) {
+		return codeMapping.sourceCode.sourceFrequency == -1 ? 1 : codeMapping.sourceCode.sourceFrequency;
+	}
+
+	private void update() {
 		countLabel.setText(approved + " / " + Global.mapping.size());
 		countLabel.setToolTipText(approved + " of the " + Global.mapping.size() + " source codes now has an approved mapping");
 		String percent = percentFormatter.format(100 * approvedFreq / (double) totalFreq) + "%";
@@ -94,6 +149,10 @@ public class UsagiStatusBar extends JPanel implements DataChangeListener {
 
 	@Override
 	public void dataChanged(DataChangeEvent event) {
+		if (event.structureChange)
+			recount();
+		else
+			applyChanges(event);
 		update();
 	}
 }
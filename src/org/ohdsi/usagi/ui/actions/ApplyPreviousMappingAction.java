@@ -17,8 +17,12 @@ package org.ohdsi.usagi.ui.actions;
 
 import java.awt.event.ActionEvent;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.swing.AbstractAction;
 import javax.swing.Action;
@@ -28,6 +32,7 @@ import javax.swing.filechooser.FileFilter;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 import org.ohdsi.usagi.CodeMapping;
+import org.ohdsi.usagi.CodeMapping.MappingStatus;
 import org.ohdsi.usagi.ui.Global;
 import org.ohdsi.usagi.ui.Mapping;
 
@@ -63,9 +68,16 @@ public class ApplyPreviousMappingAction extends AbstractAction {
 			mappingToBeApplied.loadFromFile(file.getAbsolutePath());
 
 			// Apply mapping. Add mappings not currently present
+			List<CodeMapping> changedCodeMappings = new ArrayList<CodeMapping>();
+			List<MappingStatus> oldStatuses = new ArrayList<MappingStatus>();
+			Set<CodeMapping> appliedMappings = new HashSet<CodeMapping>();
 			for (CodeMapping codeMappingToBeApplied : mappingToBeApplied) {
 				CodeMapping existingMapping = codeToMapping.get(codeMappingToBeApplied.sourceCode.sourceCode);
 				if (existingMapping != null) {
+					if (appliedMappings.add(existingMapping)) {
+						oldStatuses.add(existingMapping.mappingStatus);
+						changedCodeMappings.add(existingMapping);
+					}
 					existingMapping.sourceCode.sourceName = codeMappingToBeApplied.sourceCode.sourceName;
 					existingMapping.targetConcepts = codeMappingToBeApplied.targetConcepts;
 					existingMapping.mappingStatus = codeMappingToBeApplied.mappingStatus;
@@ -73,6 +85,8 @@ public class ApplyPreviousMappingAction extends AbstractAction {
 					mappingsApplied++;
 				} else {
 					Global.mapping.add(codeMappingToBeApplied);
+					oldStatuses.add(null);
+					changedCodeMappings.add(codeMappingToBeApplied);
 					mappingsAdded++;
 				}
 			}
@@ -81,7 +95,8 @@ public class ApplyPreviousMappingAction extends AbstractAction {
 					+ " were applied to the current mapping and " + mappingsAdded + " were newly added.";
 			Global.mappingTablePanel.updateUI();
 			Global.mappingDetailPanel.updateUI();
-			Global.mapping.fireDataChanged(APPROVE_EVENT); // To update the footer
+			Global.mapping.fireDataChanged(APPROVE_EVENT, changedCodeMappings.toArray(new CodeMapping[changedCodeMappings.size()]),
+					oldStatuses.toArray(new MappingStatus[oldStatuses.size()])); // To update the footer
 			if (mappingsAdded > 0) {
 				Global.usagiSearchEngine.close();
 				Global.usagiSearchEngine.createDerivedIndex(Global.mapping.getSourceCodes(), Global.frame);
@@ -15,6 +15,7 @@
  ******************************************************************************/
 package org.ohdsi.usagi.ui.actions;
 
+import org.ohdsi.usagi.ui.BackgroundWriter;
 import org.ohdsi.usagi.ui.Global;
 
 import java.awt.event.ActionEvent;
@@ -33,6 +34,8 @@ public class ExitAction extends AbstractAction {
 	@Override
 	public void actionPerformed(ActionEvent arg0) {
 		if (UsagiDialogs.askBeforeExit()) {
+			BackgroundWriter.waitForPendingWrites();
+			Global.mapping.closeJournal();
 			Global.dbEngine.shutdown();
 			System.exit(0);
 		}
@@ -19,7 +19,8 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
 import java.io.File;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import javax.swing.*;
@@ -29,8 +30,9 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 import org.ohdsi.usagi.CodeMapping;
 import org.ohdsi.usagi.CodeMapping.MappingStatus;
 import org.ohdsi.usagi.Concept;
+import org.ohdsi.usagi.ui.BackgroundWriter;
 import org.ohdsi.usagi.ui.Global;
-import org.ohdsi.utilities.files.Row;
+import org.ohdsi.utilities.files.RowSchema;
 import org.ohdsi.utilities.files.WriteCSVFileWithHeader;
 
 public class ExportForReviewAction extends AbstractAction {
@@ -72,40 +74,56 @@ public class ExportForReviewAction extends AbstractAction {
 		if (fileChooser.showSaveDialog(Global.frame) == JFileChooser.APPROVE_OPTION) {
 			File file = fileChooser.getSelectedFile();
 			Global.folder = file.getParentFile().getAbsolutePath();
-			if (!file.getName().toLowerCase().endsWith(".csv"))
+			if (!file.getName().toLowerCase().endsWith(".csv") && !file.getName().toLowerCase().endsWith(".csv.gz"))
 				file = new File(file.getAbsolutePath() + ".csv");
-			Global.frame.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-			WriteCSVFileWithHeader out = new WriteCSVFileWithHeader(file.getAbsolutePath());
-			for (CodeMapping mapping : Global.mapping)
-				if (exportUnapproved || mapping.mappingStatus == MappingStatus.APPROVED) {
-					List<Concept> targetConcepts;
-					if (mapping.targetConcepts.size() == 0) {
-						targetConcepts = new ArrayList<Concept>(1);
-						targetConcepts.add(Concept.EMPTY_CONCEPT);
-					} else
-						targetConcepts = mapping.targetConcepts;
+			String filename = file.getAbsolutePath();
+			BackgroundWriter.write("Exporting " + file.getName(), Global.mapping.snapshot(), (codeMappings, progress) -> {
+				WriteCSVFileWithHeader out = new WriteCSVFileWithHeader(filename);
+				boolean headerWritten = false;
+				for (CodeMapping mapping : codeMappings) {
+					progress.incrementAndGet();
+					if (exportUnapproved || mapping.mappingStatus == MappingStatus.APPROVED) {
+						if (!headerWritten) {
+							// Additional info columns are taken from the first exported source code
+							List<String> fieldNames = mapping.sourceCode.toRow().getFieldNames();
+							fieldNames.add("matchScore");
+							if (exportUnapproved)
+								fieldNames.add("mappingStatus");
+							fieldNames.addAll(Arrays.asList("targetConceptId", "targetConceptName", "targetVocabularyId", "targetDomainId",
+									"targetStandardConcept", "targetChildCount", "targetParentCount", "targetConceptClassId", "targetConceptCode",
+									"targetValidStartDate", "targetValidEndDate", "targetInvalidReason"));
+							out.writeHeader(new RowSchema(fieldNames));
+							headerWritten = true;
+						}
+						List<Concept> targetConcepts;
+						if (mapping.targetConcepts.size() == 0)
+							targetConcepts = Collections.singletonList(Concept.EMPTY_CONCEPT);
+						else
+							targetConcepts = mapping.targetConcepts;
 
-					for (Concept targetConcept : targetConcepts) {
-						Row row = mapping.sourceCode.toRow();
-						row.add("matchScore", mapping.matchScore);
-						if (exportUnapproved) row.add("mappingStatus", mapping.mappingStatus.toString());
-						row.add("targetConceptId", targetConcept.conceptId);
-						row.add("targetConceptName", targetConcept.conceptName);
-						row.add("targetVocabularyId", targetConcept.vocabularyId);
-						row.add("targetDomainId", targetConcept.domainId);
-						row.add("targetStandardConcept", targetConcept.standardConcept);
-						row.add("targetChildCount", targetConcept.childCount);
-						row.add("targetParentCount", targetConcept.parentCount);
-						row.add("targetConceptClassId", targetConcept.conceptClassId);
-						row.add("targetConceptCode", targetConcept.conceptCode);
-						row.add("targetValidStartDate", targetConcept.validStartDate);
-						row.add("targetValidEndDate", targetConcept.validEndDate);
-						row.add("targetInvalidReason", targetConcept.invalidReason);
-						out.write(row);
+						for (Concept targetConcept : targetConcepts) {
+							mapping.sourceCode.addCells(out);
+							out.add(mapping.matchScore);
+							if (exportUnapproved)
+								out.add(mapping.mappingStatus.toString());
+							out.add(targetConcept.conceptId);
+							out.add(targetConcept.conceptName);
+							out.add(targetConcept.vocabularyId);
+							out.add(targetConcept.domainId);
+							out.add(targetConcept.standardConcept);
+							out.add(targetConcept.childCount);
+							out.add(targetConcept.parentCount);
+							out.add(targetConcept.conceptClassId);
+							out.add(targetConcept.conceptCode);
+							out.add(targetConcept.validStartDate);
+							out.add(targetConcept.validEndDate);
+							out.add(targetConcept.invalidReason);
+							out.endRow();
+						}
 					}
 				}
-			out.close();
-			Global.frame.setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
+				out.close();
+			}, null);
 		}
 	}
 
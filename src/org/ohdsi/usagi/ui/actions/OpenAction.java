@@ -23,6 +23,7 @@ import java.io.File;
 import javax.swing.AbstractAction;
 import javax.swing.Action;
 import javax.swing.JFileChooser;
+import javax.swing.JOptionPane;
 import javax.swing.KeyStroke;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.filechooser.FileNameExtensionFilter;
@@ -56,6 +57,11 @@ public class OpenAction extends AbstractAction {
 		Global.filename = file.getAbsolutePath();
 		Global.folder = file.getParentFile().getAbsolutePath();
 		Global.mapping.loadFromFile(Global.filename);
+		int restoredCount = Global.mapping.openJournal(Global.filename);
+		if (restoredCount != 0)
+			JOptionPane.showMessageDialog(Global.frame, "Restored unsaved changes to " + restoredCount
+					+ " source codes from the last session. Save the mapping to keep them in the mapping file.", "Unsaved changes restored",
+					JOptionPane.INFORMATION_MESSAGE);
 		Global.usagiSearchEngine.close();
 		Global.usagiSearchEngine.createDerivedIndex(Global.mapping.getSourceCodes(), Global.frame);
 		Global.mappingDetailPanel.doSearch();
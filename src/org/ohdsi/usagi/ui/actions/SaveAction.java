@@ -57,9 +57,7 @@ public class SaveAction extends AbstractAction {
 			}
 		}
 		if (Global.filename != null) {
-			Global.frame.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-			Global.mapping.saveToFile(Global.filename);
-			Global.frame.setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
+			Global.mapping.saveToFileInBackground(Global.filename);
 		}
 	}
 
@@ -15,7 +15,6 @@
  ******************************************************************************/
 package org.ohdsi.usagi.ui.actions;
 
-import java.awt.Cursor;
 import java.awt.event.ActionEvent;
 import java.io.File;
 
@@ -48,9 +47,7 @@ public class SaveAsAction extends AbstractAction {
 			Global.frame.setTitle("Usagi - " + file.getName());
 			Global.filename = file.getAbsolutePath();
 			Global.folder = file.getParentFile().getAbsolutePath();
-			Global.frame.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-			Global.mapping.saveToFile(Global.filename);
-			Global.frame.setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
+			Global.mapping.saveToFileInBackground(Global.filename);
 		}
 	}
 
@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.utilities;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON parser. Objects are returned as Map&lt;String, Object&gt;, arrays as List&lt;Object&gt;, numbers as Double, and true/false/null as
+ * Boolean/null. Documents nested deeper than MAX_DEPTH are rejected, so untrusted input cannot exhaust the stack.
+ */
+public class JsonParser {
+	public static int	MAX_DEPTH	= 64;
+
+	private String		json;
+	private int			pos;
+	private int			depth;
+
+	private JsonParser(String json) {
+		this.json = json;
+	}
+
+	/**
+	 * Parses a JSON document.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the document is not valid JSON
+	 */
+	public static Object parse(String json) {
+		JsonParser parser = new JsonParser(json);
+		Object value = parser.readValue();
+		parser.skipWhitespace();
+		if (parser.pos != json.length())
+			throw parser.error("Unexpected trailing characters");
+		return value;
+	}
+
+	private Object readValue() {
+		skipWhitespace();
+		if (pos >= json.length())
+			throw error("Unexpected end of input");
+		char ch = json.charAt(pos);
+		switch (ch) {
+			case '{':
+				return readObject();
+			case '[':
+				return readArray();
+			case '"':
+				return readString();
+			case 't':
+				expect("true");
+				return Boolean.TRUE;
+			case 'f':
+				expect("false");
+				return Boolean.FALSE;
+			case 'n':
+				expect("null");
+				return null;
+			default:
+				if (ch == '-' || (ch >= '0' && ch <= '9'))
+					return readNumber();
+				throw error("Unexpected character '" + ch + "'");
+		}
+	}
+
+	private Map<String, Object> readObject() {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		enterNesting();
+		pos++;
+		skipWhitespace();
+		if (peek() == '}') {
+			pos++;
+			depth--;
+			return map;
+		}
+		while (true) {
+			skipWhitespace();
+			if (peek() != '"')
+				throw error("Expected field name");
+			String name = readString();
+			skipWhitespace();
+			if (peek() != ':')
+				throw error("Expected ':'");
+			pos++;
+			map.put(name, readValue());
+			skipWhitespace();
+			char ch = peek();
+			pos++;
+			if (ch == '}') {
+				depth--;
+				return map;
+			}
+			if (ch != ',')
+				throw error("Expected ',' or '}'");
+		}
+	}
+
+	private List<Object> readArray() {
+		List<Object> list = new ArrayList<Object>();
+		enterNesting();
+		pos++;
+		skipWhitespace();
+		if (peek() == ']') {
+			pos++;
+			depth--;
+			return list;
+		}
+		while (true) {
+			list.add(readValue());
+			skipWhitespace();
+			char ch = peek();
+			pos++;
+			if (ch == ']') {
+				depth--;
+				return list;
+			}
+			if (ch != ',')
+				throw error("Expected ',' or ']'");
+		}
+	}
+
+	private String readString() {
+		StringBuilder sb = new StringBuilder();
+		pos++;
+		while (true) {
+			if (pos >= json.length())
+				throw error("Unterminated string");
+			char ch = json.charAt(pos++);
+			if (ch == '"')
+				return sb.toString();
+			if (ch == '\\') {
+				if (pos >= json.length())
+					throw error("Unterminated string");
+				char escaped = json.charAt(pos++);
+				switch (escaped) {
+					case 'n':
+						sb.append('\n');
+						break;
+					case 'r':
+						sb.append('\r');
+						break;
+					case 't':
+						sb.append('\t');
+						break;
+					case 'b':
+						sb.append('\b');
+						break;
+					case 'f':
+						sb.append('\f');
+						break;
+					case 'u':
+						if (pos + 4 > json.length())
+							throw error("Invalid unicode escape");
+						try {
+							sb.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+						} catch (NumberFormatException e) {
+							throw error("Invalid unicode escape");
+						}
+						pos += 4;
+						break;
+					default:
+						sb.append(escaped);
+				}
+			} else
+				sb.append(ch);
+		}
+	}
+
+	private Double readNumber() {
+		int start = pos;
+		while (pos < json.length() && "+-0123456789.eE".indexOf(json.charAt(pos)) != -1)
+			pos++;
+		try {
+			return Double.parseDouble(json.substring(start, pos));
+		} catch (NumberFormatException e) {
+			throw error("Invalid number");
+		}
+	}
+
+	private void enterNesting() {
+		if (++depth > MAX_DEPTH)
+			throw error("Nesting deeper than " + MAX_DEPTH + " levels");
+	}
+
+	private void expect(String word) {
+		if (!json.startsWith(word, pos))
+			throw error("Expected '" + word + "'");
+		pos += word.length();
+	}
+
+	private char peek() {
+		if (pos >= json.length())
+			throw error("Unexpected end of input");
+		return json.charAt(pos);
+	}
+
+	private void skipWhitespace() {
+		while (pos < json.length() && Character.isWhitespace(json.charAt(pos)))
+			pos++;
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at position " + pos);
+	}
+}
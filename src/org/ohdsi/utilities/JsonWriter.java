@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.utilities;
+
+/**
+ * Minimal streaming JSON writer. Commas between values are inserted automatically.
+ * 
+ * <pre>
+ * JsonWriter json = new JsonWriter();
+ * json.beginObject().name("id").value(1).name("tags").beginArray().value("a").endArray().endObject();
+ * </pre>
+ */
+public class JsonWriter {
+	private StringBuilder	sb			= new StringBuilder();
+	private boolean			needComma	= false;
+
+	public JsonWriter beginObject() {
+		separate();
+		sb.append('{');
+		needComma = false;
+		return this;
+	}
+
+	public JsonWriter endObject() {
+		sb.append('}');
+		needComma = true;
+		return this;
+	}
+
+	public JsonWriter beginArray() {
+		separate();
+		sb.append('[');
+		needComma = false;
+		return this;
+	}
+
+	public JsonWriter endArray() {
+		sb.append(']');
+		needComma = true;
+		return this;
+	}
+
+	public JsonWriter name(String name) {
+		separate();
+		appendString(name);
+		sb.append(':');
+		needComma = false;
+		return this;
+	}
+
+	public JsonWriter value(String value) {
+		separate();
+		if (value == null)
+			sb.append("null");
+		else
+			appendString(value);
+		needComma = true;
+		return this;
+	}
+
+	public JsonWriter value(long value) {
+		separate();
+		sb.append(value);
+		needComma = true;
+		return this;
+	}
+
+	public JsonWriter value(double value) {
+		separate();
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			sb.append("null");
+		else
+			sb.append(value);
+		needComma = true;
+		return this;
+	}
+
+	public JsonWriter value(boolean value) {
+		separate();
+		sb.append(value);
+		needComma = true;
+		return this;
+	}
+
+	private void separate() {
+		if (needComma)
+			sb.append(',');
+	}
+
+	private void appendString(String string) {
+		sb.append('"');
+		for (int i = 0; i < string.length(); i++) {
+			char ch = string.charAt(i);
+			switch (ch) {
+				case '"':
+					sb.append("\\\"");
+					break;
+				case '\\':
+					sb.append("\\\\");
+					break;
+				case '\n':
+					sb.append("\\n");
+					break;
+				case '\r':
+					sb.append("\\r");
+					break;
+				case '\t':
+					sb.append("\\t");
+					break;
+				default:
+					if (ch < 0x20) {
+						sb.append(String.format("\\u%04x", (int) ch));
+					} else
+						sb.append(ch);
+			}
+		}
+		sb.append('"');
+	}
+
+	public String toString() {
+		return sb.toString();
+	}
+}
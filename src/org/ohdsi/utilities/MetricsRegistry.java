@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.utilities;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.ohdsi.utilities.files.WriteTextFile;
+
+/**
+ * Registry of named latency histograms and counters. Histograms and counters are created on first use; callers on hot paths should look them up once and
+ * keep the reference. When the registry is disabled, {@link #start()} returns 0 and nothing is timed.
+ */
+public class MetricsRegistry {
+	public volatile boolean					enabled		= true;
+
+	private Map<String, LatencyHistogram>	histograms	= new ConcurrentSkipListMap<String, LatencyHistogram>();
+	private Map<String, LongAdder>			counters	= new ConcurrentSkipListMap<String, LongAdder>();
+
+	public LatencyHistogram histogram(String name) {
+		return histograms.computeIfAbsent(name, key -> new LatencyHistogram(key));
+	}
+
+	public LongAdder counter(String name) {
+		return counters.computeIfAbsent(name, key -> new LongAdder());
+	}
+
+	/**
+	 * Returns the current time in nanoseconds, or 0 if the registry is disabled. To be passed to {@link LatencyHistogram#recordSince(long)}.
+	 */
+	public long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	public void increment(LongAdder counter, long value) {
+		if (enabled)
+			counter.add(value);
+	}
+
+	public List<LatencyHistogram> getHistograms() {
+		return new ArrayList<LatencyHistogram>(histograms.values());
+	}
+
+	public Map<String, LongAdder> getCounters() {
+		return counters;
+	}
+
+	public void reset() {
+		for (LatencyHistogram histogram : histograms.values())
+			histogram.reset();
+		for (LongAdder counter : counters.values())
+			counter.reset();
+	}
+
+	/**
+	 * Returns a one-line summary of a histogram, with times in milliseconds.
+	 */
+	public static String summarize(LatencyHistogram histogram) {
+		return String.format("n = %d, mean = %.3f ms, median = %.3f ms, p95 = %.3f ms, max = %.3f ms", histogram.getCount(), histogram.getMeanNanos() / 1e6,
+				histogram.getPercentileNanos(50) / 1e6, histogram.getPercentileNanos(95) / 1e6, histogram.getMaxNanos() / 1e6);
+	}
+
+	/**
+	 * Writes all histograms and counters to a tab-delimited text file, with times in milliseconds.
+	 */
+	public void writeReport(String filename) {
+		WriteTextFile out = new WriteTextFile(filename);
+		out.writeln("metric\tcount\ttotal_ms\tmean_ms\tmedian_ms\tp95_ms\tp99_ms\tmax_ms");
+		for (LatencyHistogram histogram : histograms.values())
+			out.writeln(String.format("%s\t%d\t%.3f\t%.4f\t%.4f\t%.4f\t%.4f\t%.4f", histogram.getName(), histogram.getCount(), histogram.getTotalNanos() / 1e6,
+					histogram.getMeanNanos() / 1e6, histogram.getPercentileNanos(50) / 1e6, histogram.getPercentileNanos(95) / 1e6,
+					histogram.getPercentileNanos(99) / 1e6, histogram.getMaxNanos() / 1e6));
+		for (Map.Entry<String, LongAdder> counter : counters.entrySet())
+			out.writeln(counter.getKey() + "\t" + counter.getValue().sum() + "\t\t\t\t\t\t");
+		out.close();
+	}
+}
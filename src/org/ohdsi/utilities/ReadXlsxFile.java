@@ -15,30 +15,42 @@
  ******************************************************************************/
 package org.ohdsi.utilities;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
 import java.io.InputStream;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.xssf.usermodel.XSSFSheet;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
 
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+
+/**
+ * Reads the rows of the first sheet of an XLSX file. The sheet XML is streamed with a pull parser, so memory use does not depend on the number of rows in
+ * the file, except for the table of shared strings.<br/>
+ * <br/>
+ * Numeric cells are formatted without exponent or grouping, boolean cells as TRUE or FALSE, and formula cells as their last calculated value. Missing
+ * cells before a cell are returned as empty strings, so values stay in their column.
+ */
 public class ReadXlsxFile implements Iterable<List<String>> {
-	private InputStream	inputstream;
+	private static final String	RELATIONSHIPS_NAMESPACE	= "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+
+	private String				filename;
+	private InputStream			inputstream;
 
 	public ReadXlsxFile(String filename) {
-		try {
-			inputstream = new FileInputStream(filename);
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		}
+		this.filename = filename;
 	}
 
+	/**
+	 * Reads the XLSX file from a stream. Note that the zipped file is held in memory in this case.
+	 */
 	public ReadXlsxFile(InputStream inputstream) {
 		this.inputstream = inputstream;
 	}
@@ -50,36 +62,47 @@ public class ReadXlsxFile implements Iterable<List<String>> {
 
 	public class RowIterator implements Iterator<List<String>> {
 
-		private Iterator<org.apache.poi.ss.usermodel.Row>	iterator;
-		private DecimalFormat								myFormatter	= new DecimalFormat("###############.################");
+		private OPCPackage					opcPackage;
+		private ReadOnlySharedStringsTable	sharedStrings;
+		private XMLStreamReader				reader;
+		private List<String>				row;
+		private DecimalFormat				myFormatter	= new DecimalFormat("###############.################");
 
 		public RowIterator() {
 			try {
-				XSSFWorkbook workbook = new XSSFWorkbook(inputstream);
-				XSSFSheet sheet = workbook.getSheetAt(0);
-				iterator = sheet.iterator();
-			} catch (IOException e) {
-				e.printStackTrace();
+				if (filename != null)
+					opcPackage = OPCPackage.open(filename, PackageAccess.READ);
+				else
+					opcPackage = OPCPackage.open(inputstream);
+				XSSFReader xssfReader = new XSSFReader(opcPackage);
+				sharedStrings = new ReadOnlySharedStringsTable(opcPackage);
+				XMLInputFactory factory = XMLInputFactory.newInstance();
+				factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+				factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+				String sheetId = getFirstSheetId(factory.createXMLStreamReader(xssfReader.getWorkbookData()));
+				reader = factory.createXMLStreamReader(xssfReader.getSheet(sheetId));
+				row = readRow();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
 			}
 		}
 
 		@Override
 		public boolean hasNext() {
-			return iterator.hasNext();
+			return row != null;
 		}
 
 		@Override
 		public List<String> next() {
-			List<String> cells = new ArrayList<String>();
-			for (Cell cell : iterator.next()) {
-				String text;
-				if (cell.getCellType() == Cell.CELL_TYPE_NUMERIC)
-					text = myFormatter.format(cell.getNumericCellValue());
-				else
-					text = cell.toString();
-				cells.add(text);
+			if (row == null)
+				throw new NoSuchElementException();
+			List<String> result = row;
+			try {
+				row = readRow();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
 			}
-			return cells;
+			return result;
 		}
 
 		@Override
@@ -87,5 +110,77 @@ public class ReadXlsxFile implements Iterable<List<String>> {
 			throw new RuntimeException("Remove not supported");
 		}
 
+		private String getFirstSheetId(XMLStreamReader workbookReader) throws Exception {
+			while (workbookReader.hasNext())
+				if (workbookReader.next() == XMLStreamConstants.START_ELEMENT && workbookReader.getLocalName().equals("sheet")) {
+					String sheetId = workbookReader.getAttributeValue(RELATIONSHIPS_NAMESPACE, "id");
+					workbookReader.close();
+					return sheetId;
+				}
+			throw new RuntimeException("Workbook contains no sheets");
+		}
+
+		/**
+		 * Returns the cells of the next row, or null (after closing the file) if there are no more rows.
+		 */
+		private List<String> readRow() throws Exception {
+			while (reader.hasNext()) {
+				if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("row")) {
+					List<String> cells = new ArrayList<String>();
+					while (!(reader.next() == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("row")))
+						if (reader.getEventType() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("c")) {
+							int column = getColumn(reader.getAttributeValue(null, "r"), cells.size());
+							while (cells.size() < column)
+								cells.add("");
+							cells.add(readCell(reader.getAttributeValue(null, "t")));
+						}
+					return cells;
+				}
+			}
+			reader.close();
+			opcPackage.revert();
+			return null;
+		}
+
+		/**
+		 * Reads the value of a cell up to the end of its element.
+		 */
+		private String readCell(String type) throws Exception {
+			String value = null;
+			StringBuilder inlineString = null;
+			while (!(reader.next() == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("c")))
+				if (reader.getEventType() == XMLStreamConstants.START_ELEMENT) {
+					if (reader.getLocalName().equals("v"))
+						value = reader.getElementText();
+					else if (reader.getLocalName().equals("t")) {
+						if (inlineString == null)
+							inlineString = new StringBuilder();
+						inlineString.append(reader.getElementText());
+					}
+				}
+			if ("inlineStr".equals(type))
+				return inlineString == null ? "" : inlineString.toString();
+			if (value == null || value.length() == 0)
+				return "";
+			if (type == null || type.equals("n"))
+				return myFormatter.format(Double.parseDouble(value));
+			if (type.equals("s"))
+				return sharedStrings.getEntryAt(Integer.parseInt(value));
+			if (type.equals("b"))
+				return value.equals("1") ? "TRUE" : "FALSE";
+			return value;
+		}
+
+		/**
+		 * Returns the zero-based column index of a cell reference such as AB12.
+		 */
+		private int getColumn(String cellReference, int defaultColumn) {
+			if (cellReference == null)
+				return defaultColumn;
+			int column = 0;
+			for (int i = 0; i < cellReference.length() && Character.isLetter(cellReference.charAt(i)); i++)
+				column = column * 26 + (Character.toUpperCase(cellReference.charAt(i)) - 'A' + 1);
+			return column - 1;
+		}
 	}
 }
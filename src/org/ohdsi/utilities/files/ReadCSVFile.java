@@ -15,23 +15,42 @@
  ******************************************************************************/
 package org.ohdsi.utilities.files;
 
-import java.io.BufferedReader;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
-import org.ohdsi.utilities.StringUtilities;
-
+/**
+ * Reads delimited text files. The file is parsed in a single pass by a state machine over a character buffer:<br/>
+ * <ul>
+ * <li>Fields can be quoted. Quoted fields can contain delimiters and line breaks, so a row can span several lines</li>
+ * <li>Quotes inside quoted fields are escaped by doubling them (RFC 4180), or with a backslash (as written by {@link WriteCSVFile})</li>
+ * <li>A backslash followed by a quote or backslash is replaced by that character. Other backslashes are kept as is</li>
+ * <li>Rows end with \n, \r\n or \r</li>
+ * </ul>
+ * The cells of a row are stored in a reused buffer. Rows can either be iterated as lists of strings, or read one at a time using {@link #nextRow()}, in
+ * which case cells are only converted to strings when requested. Files with names ending in .gz are decompressed.
+ */
 public class ReadCSVFile implements Iterable<List<String>> {
-	protected BufferedReader	bufferedReader;
+	private static final int	BUFFER_SIZE	= 65536;
+
+	protected Reader			reader;
 	public boolean				EOF			= false;
 	private char				delimiter	= ',';
 	private String				charSet		= "UTF-8";
+	private char[]				buffer		= new char[BUFFER_SIZE];
+	private int					bufferLength;
+	private int					bufferPos;
+	private char[]				cells		= new char[1024];
+	private int					cellsLength;
+	private int[]				cellEnds	= new int[64];
+	private int					cellCount;
 
 	public ReadCSVFile(String filename, char delimiter) {
 		this(filename);
@@ -40,14 +59,7 @@ public class ReadCSVFile implements Iterable<List<String>> {
 	
 	public ReadCSVFile(String filename, String	charSet) {
 		this.charSet = charSet;
-		try {
-			FileInputStream textFileStream = new FileInputStream(filename);
-			bufferedReader = new BufferedReader(new InputStreamReader(textFileStream, charSet));
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (UnsupportedEncodingException e) {
-			e.printStackTrace();
-		}		
+		open(filename);
 	}
 	
 	public ReadCSVFile(String filename, char delimiter, String	charSet) {
@@ -56,14 +68,7 @@ public class ReadCSVFile implements Iterable<List<String>> {
 	}
 
 	public ReadCSVFile(String filename) {
-		try {
-			FileInputStream textFileStream = new FileInputStream(filename);
-			bufferedReader = new BufferedReader(new InputStreamReader(textFileStream, charSet));
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (UnsupportedEncodingException e) {
-			e.printStackTrace();
-		}
+		open(filename);
 	}
 
 	public ReadCSVFile(InputStream inputstream, char delimiter) {
@@ -72,44 +77,48 @@ public class ReadCSVFile implements Iterable<List<String>> {
 	}
 
 	public ReadCSVFile(InputStream inputstream) {
-		try {
-			bufferedReader = new BufferedReader(new InputStreamReader(inputstream, charSet));
-		} catch (UnsupportedEncodingException e) {
-			e.printStackTrace();
-		}
+		open(inputstream);
 	}
 	
 	public ReadCSVFile(InputStream inputstream, String charSet) {
 		this.charSet = charSet;
-		try {
-			bufferedReader = new BufferedReader(new InputStreamReader(inputstream, charSet));
-		} catch (UnsupportedEncodingException e) {
-			e.printStackTrace();
-		}
+		open(inputstream);
 	}
 
 	public ReadCSVFile(InputStream inputstream, char delimiter, String charSet) {
 		this(inputstream, charSet);
 		this.delimiter = delimiter;
 	}
+
+	private void open(String filename) {
+		try {
+			InputStream stream = new FileInputStream(filename);
+			if (filename.toLowerCase().endsWith(".gz"))
+				stream = new GZIPInputStream(stream, BUFFER_SIZE);
+			open(stream);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void open(InputStream inputstream) {
+		try {
+			reader = new InputStreamReader(inputstream, charSet);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
 	public Iterator<List<String>> getIterator() {
 		return iterator();
 	}
 
 	private class CSVFileIterator implements Iterator<List<String>> {
-		private String	buffer;
+		private List<String>	row;
 
 		public CSVFileIterator() {
-			try {
-				buffer = bufferedReader.readLine();
-				if (buffer == null) {
-					EOF = true;
-					bufferedReader.close();
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-
+			if (nextRow())
+				row = getCells();
 		}
 
 		public boolean hasNext() {
@@ -117,18 +126,10 @@ public class ReadCSVFile implements Iterable<List<String>> {
 		}
 
 		public List<String> next() {
-			String result = buffer;
-			try {
-				buffer = bufferedReader.readLine();
-				if (buffer == null) {
-					EOF = true;
-					bufferedReader.close();
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-
-			return line2columns(result);
+			List<String> result = row;
+			if (nextRow())
+				row = getCells();
+			return result;
 		}
 
 		public void remove() {
@@ -136,21 +137,173 @@ public class ReadCSVFile implements Iterable<List<String>> {
 		}
 	}
 
+	/**
+	 * Iterates over the rows as lists of strings. Should not be combined with {@link #nextRow()}.
+	 */
 	public Iterator<List<String>> iterator() {
 		return new CSVFileIterator();
 	}
 
-	private List<String> line2columns(String line) {
-		List<String> columns = StringUtilities.safeSplit(line, delimiter);
-		for (int i = 0; i < columns.size(); i++) {
-			String column = columns.get(i);
-			if (column.startsWith("\"") && column.endsWith("\"") && column.length() > 1)
-				column = column.substring(1, column.length() - 1);
-			column = column.replace("\\\"", "\"");
-			column = column.replaceAll("\\\\\\\\", "\\\\");
-			columns.set(i, column);
+	/**
+	 * Parses the next row. Its cells can be retrieved using {@link #getCell(int)} until the next call.
+	 * 
+	 * @return false if the end of the file was reached, in which case the file is closed
+	 */
+	public boolean nextRow() {
+		if (EOF)
+			return false;
+		cellsLength = 0;
+		cellCount = 0;
+		try {
+			int ch = read();
+			if (ch == -1) {
+				EOF = true;
+				reader.close();
+				return false;
+			}
+			while (true) {
+				if (ch == '"')
+					ch = readQuoted();
+				// Unquoted field, or anything following the closing quote of a quoted field:
+				while (ch != delimiter && ch != '\n' && ch != '\r' && ch != -1) {
+					if (ch == '\\') {
+						ch = read();
+						if (ch == '"' || ch == '\\') {
+							append(ch);
+							ch = read();
+						} else
+							append('\\');
+					} else {
+						append(ch);
+						ch = read();
+					}
+				}
+				endCell();
+				if (ch == delimiter)
+					ch = read();
+				else {
+					if (ch == '\r' && peek() == '\n')
+						read();
+					return true;
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Reads a quoted field up to and including the closing quote.
+	 * 
+	 * @return the character after the closing quote
+	 */
+	private int readQuoted() throws IOException {
+		while (true) {
+			int ch = read();
+			if (ch == -1)
+				return -1;
+			if (ch == '"') {
+				ch = read();
+				if (ch != '"')
+					return ch;
+				append('"');
+			} else if (ch == '\\') {
+				ch = read();
+				if (ch == -1) {
+					append('\\');
+					return -1;
+				}
+				if (ch != '"' && ch != '\\')
+					append('\\');
+				append(ch);
+			} else
+				append(ch);
+		}
+	}
+
+	private int read() throws IOException {
+		if (bufferPos == bufferLength) {
+			bufferPos = 0;
+			bufferLength = Math.max(0, reader.read(buffer, 0, buffer.length));
+			if (bufferLength == 0)
+				return -1;
 		}
-		return columns;
+		return buffer[bufferPos++];
+	}
+
+	private int peek() throws IOException {
+		int ch = read();
+		if (ch != -1)
+			bufferPos--;
+		return ch;
+	}
+
+	private void append(int ch) {
+		if (cellsLength == cells.length) {
+			char[] newCells = new char[cells.length * 2];
+			System.arraycopy(cells, 0, newCells, 0, cellsLength);
+			cells = newCells;
+		}
+		cells[cellsLength++] = (char) ch;
+	}
+
+	private void endCell() {
+		if (cellCount == cellEnds.length) {
+			int[] newCellEnds = new int[cellEnds.length * 2];
+			System.arraycopy(cellEnds, 0, newCellEnds, 0, cellCount);
+			cellEnds = newCellEnds;
+		}
+		cellEnds[cellCount++] = cellsLength;
+	}
+
+	/**
+	 * Returns the number of cells in the current row.
+	 */
+	public int getCellCount() {
+		return cellCount;
+	}
+
+	/**
+	 * Returns a cell of the current row, or an empty string if the row has fewer cells.
+	 */
+	public String getCell(int index) {
+		if (index >= cellCount)
+			return "";
+		int start = index == 0 ? 0 : cellEnds[index - 1];
+		return new String(cells, start, cellEnds[index] - start);
+	}
+
+	/**
+	 * Parses a cell of the current row as an integer, directly from the character data, ignoring leading and trailing whitespace.
+	 */
+	public int getInt(int index) {
+		if (index >= cellCount)
+			return Row.parseInt("", 0, 0);
+		int start = index == 0 ? 0 : cellEnds[index - 1];
+		return Row.parseInt(CharBuffer.wrap(cells, start, cellEnds[index] - start), 0, cellEnds[index] - start);
+	}
+
+	/**
+	 * Parses a cell of the current row as an integer, or returns the default value if the cell is empty or missing.
+	 */
+	public int getIntOrDefault(int index, int defaultValue) {
+		if (index >= cellCount)
+			return defaultValue;
+		int start = index == 0 ? 0 : cellEnds[index - 1];
+		CharBuffer chars = CharBuffer.wrap(cells, start, cellEnds[index] - start);
+		if (Row.isBlank(chars, 0, chars.length()))
+			return defaultValue;
+		return Row.parseInt(chars, 0, chars.length());
+	}
+
+	/**
+	 * Returns the cells of the current row.
+	 */
+	public List<String> getCells() {
+		List<String> result = new ArrayList<String>(cellCount);
+		for (int i = 0; i < cellCount; i++)
+			result.add(getCell(i));
+		return result;
 	}
 
 	public void setDelimiter(char delimiter) {
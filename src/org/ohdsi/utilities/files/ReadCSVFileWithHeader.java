@@ -19,10 +19,8 @@ package org.ohdsi.utilities.files;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 public class ReadCSVFileWithHeader implements Iterable<Row> {
 	private InputStream	inputstream;
@@ -70,13 +68,18 @@ public class ReadCSVFileWithHeader implements Iterable<Row> {
 	public class RowIterator implements Iterator<Row> {
 
 		private Iterator<List<String>>	iterator;
-		private Map<String, Integer>	fieldName2ColumnIndex;
+		private RowSchema				schema;
 
 		public RowIterator() {
 			iterator = new ReadCSVFile(inputstream, delimiter, charSet).iterator();
-			fieldName2ColumnIndex = new HashMap<String, Integer>();
-			for (String header : iterator.next())
-				fieldName2ColumnIndex.put(header, fieldName2ColumnIndex.size());
+			schema = new RowSchema(iterator.next());
+		}
+
+		/**
+		 * Returns the schema shared by all rows, for resolving field ordinals once.
+		 */
+		public RowSchema getSchema() {
+			return schema;
 		}
 
 		@Override
@@ -86,7 +89,7 @@ public class ReadCSVFileWithHeader implements Iterable<Row> {
 
 		@Override
 		public Row next() {
-			return new Row(iterator.next(), fieldName2ColumnIndex);
+			return new Row(iterator.next(), schema);
 		}
 
 		@Override
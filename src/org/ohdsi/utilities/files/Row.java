@@ -16,55 +16,81 @@
 package org.ohdsi.utilities.files;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import org.ohdsi.utilities.StringUtilities;
 
+/**
+ * A row of a file. The field names are held by a {@link RowSchema} that is shared by all rows of the file. Fields can be accessed by name, or by ordinal
+ * after resolving the name once using {@link RowSchema#getOrdinal(String)}.
+ */
 public class Row {
-	private List<String>			cells;
-	private Map<String, Integer>	fieldName2ColumnIndex;
+	private List<String>	cells;
+	private RowSchema		schema;
 	
 	public Row() {
-		fieldName2ColumnIndex = new HashMap<String, Integer>();
+		schema = RowSchema.EMPTY;
 		cells = new ArrayList<String>();
 	}
 	
-	public Row(List<String> cells, Map<String, Integer> fieldName2ColumnIndex) {
+	public Row(List<String> cells, RowSchema schema) {
 		this.cells = cells;
-		this.fieldName2ColumnIndex = fieldName2ColumnIndex;
+		this.schema = schema;
 	}
 	
 	public Row(Row row) {
 		cells = new ArrayList<String>(row.cells);
-		fieldName2ColumnIndex = new HashMap<String, Integer>(row.fieldName2ColumnIndex);
+		schema = row.schema;
 	}
 	
 	public String get(String fieldName) {
-		int index;
-		try {
-			index = fieldName2ColumnIndex.get(fieldName);
-		} catch (NullPointerException e) {
-			throw new RuntimeException("Field \"" + fieldName + "\" not found");
-		}
-		if (cells.size() <= index)
+		return get(schema.getOrdinal(fieldName));
+	}
+	
+	public String get(int ordinal) {
+		if (cells.size() <= ordinal)
 			return "";
 		else
-			return cells.get(index);
+			return cells.get(ordinal);
 	}
 	
 	public List<String> getFieldNames() {
-		List<String> names = new ArrayList<String>(fieldName2ColumnIndex.size());
-		for (int i = 0; i < fieldName2ColumnIndex.size(); i++)
-			names.add(null);
-		for (Map.Entry<String, Integer> entry : fieldName2ColumnIndex.entrySet())
-			names.set(entry.getValue(), entry.getKey());
-		return names;
+		return new ArrayList<String>(schema.getFieldNames());
+	}
+	
+	public RowSchema getSchema() {
+		return schema;
 	}
 	
 	public int getInt(String fieldName) {
-		return Integer.parseInt(get(fieldName).trim());
+		return getInt(schema.getOrdinal(fieldName));
+	}
+	
+	/**
+	 * Parses the cell as an integer, ignoring leading and trailing whitespace.
+	 */
+	public int getInt(int ordinal) {
+		String value = get(ordinal);
+		return parseInt(value, 0, value.length());
+	}
+	
+	/**
+	 * Parses the cell as an integer, or returns the default value if the field is not in the schema or the cell is empty.
+	 */
+	public int getIntOrDefault(String fieldName, int defaultValue) {
+		if (!schema.hasField(fieldName))
+			return defaultValue;
+		return getIntOrDefault(schema.getOrdinal(fieldName), defaultValue);
+	}
+	
+	/**
+	 * Parses the cell as an integer, or returns the default value if the cell is empty or missing.
+	 */
+	public int getIntOrDefault(int ordinal, int defaultValue) {
+		String value = get(ordinal);
+		if (isBlank(value, 0, value.length()))
+			return defaultValue;
+		return parseInt(value, 0, value.length());
 	}
 	
 	public long getLong(String fieldName) {
@@ -76,7 +102,7 @@ public class Row {
 	}
 	
 	public void add(String fieldName, String value) {
-		fieldName2ColumnIndex.put(fieldName, cells.size());
+		schema = schema.extend(fieldName);
 		cells.add(value);
 	}
 	
@@ -97,7 +123,7 @@ public class Row {
 	}
 	
 	public void set(String fieldName, String value) {
-		cells.set(fieldName2ColumnIndex.get(fieldName), value);
+		cells.set(schema.getOrdinal(fieldName), value);
 	}
 	
 	public void set(String fieldName, int value) {
@@ -116,30 +142,19 @@ public class Row {
 		return cells;
 	}
 	
-	protected Map<String, Integer> getfieldName2ColumnIndex() {
-		return fieldName2ColumnIndex;
-	}
-	
 	public String toString() {
 		List<String> data = new ArrayList<String>(cells);
-		for (String fieldName : fieldName2ColumnIndex.keySet()) {
-			int index = fieldName2ColumnIndex.get(fieldName);
-			if (data.size() > index)
-				data.set(index, "[" + fieldName + ": " + data.get(index) + "]");
-		}
+		List<String> fieldNames = schema.getFieldNames();
+		for (int index = 0; index < fieldNames.size(); index++)
+			if (data.size() > index && schema.getOrdinal(fieldNames.get(index)) == index)
+				data.set(index, "[" + fieldNames.get(index) + ": " + data.get(index) + "]");
 		return StringUtilities.join(data, ",");
 	}
 	
 	public void remove(String field) {
-		Integer index = fieldName2ColumnIndex.remove(field);
-		cells.remove((int)index);
-		Map<String, Integer> tempMap = new HashMap<String, Integer>();
-		for (Map.Entry<String, Integer> entry : fieldName2ColumnIndex.entrySet())
-			if (entry.getValue() > index)
-				tempMap.put(entry.getKey(), entry.getValue() - 1);
-			else
-				tempMap.put(entry.getKey(), entry.getValue());
-		fieldName2ColumnIndex = tempMap;
+		int index = schema.getOrdinal(field);
+		cells.remove(index);
+		schema = schema.remove(index);
 	}
 	
 	public int size() {
@@ -147,9 +162,44 @@ public class Row {
 	}
 	
 	public void upperCaseFieldNames() {
-		Map<String, Integer> tempMap = new HashMap<String, Integer>();
-		for (Map.Entry<String, Integer> entry : fieldName2ColumnIndex.entrySet())
-			tempMap.put(entry.getKey().toUpperCase(), entry.getValue());
-		fieldName2ColumnIndex = tempMap;
+		schema = schema.upperCaseFieldNames();
+	}
+	
+	/**
+	 * Parses an integer from a range of characters without creating a string, ignoring leading and trailing whitespace.
+	 * 
+	 * @throws NumberFormatException
+	 *             if the characters are not an integer
+	 */
+	static int parseInt(CharSequence chars, int start, int end) {
+		while (start < end && chars.charAt(start) <= ' ')
+			start++;
+		while (end > start && chars.charAt(end - 1) <= ' ')
+			end--;
+		int pos = start;
+		boolean negative = false;
+		if (pos < end && (chars.charAt(pos) == '-' || chars.charAt(pos) == '+')) {
+			negative = chars.charAt(pos) == '-';
+			pos++;
+		}
+		if (pos == end)
+			throw new NumberFormatException("For input string: \"" + chars.subSequence(start, end) + "\"");
+		// Accumulate negatively, so Integer.MIN_VALUE can be parsed:
+		int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+		int result = 0;
+		for (; pos < end; pos++) {
+			int digit = chars.charAt(pos) - '0';
+			if (digit < 0 || digit > 9 || result < limit / 10 || result * 10 < limit + digit)
+				throw new NumberFormatException("For input string: \"" + chars.subSequence(start, end) + "\"");
+			result = result * 10 - digit;
+		}
+		return negative ? result : -result;
+	}
+	
+	static boolean isBlank(CharSequence chars, int start, int end) {
+		for (int i = start; i < end; i++)
+			if (chars.charAt(i) > ' ')
+				return false;
+		return true;
 	}
 }
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright 2019 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.utilities.files;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The field names of a file and their ordinals (column indexes). A schema is shared by all rows of a file, so a field name only needs to be resolved to an
+ * ordinal once. Schemas are immutable. If a field name occurs more than once, the last occurrence is used.
+ */
+public class RowSchema {
+	/**
+	 * The schema of a new row. Rows built by adding fields in the same order share the same schemas.
+	 */
+	public static final RowSchema	EMPTY				= new RowSchema();
+
+	private static final int		MAX_EXTENSIONS		= 256;
+
+	private List<String>			fieldNames;
+	private Map<String, Integer>	fieldName2Ordinal;
+	private Map<String, RowSchema>	extensions			= new ConcurrentHashMap<String, RowSchema>();
+
+	public RowSchema(String... fieldNames) {
+		this(Arrays.asList(fieldNames));
+	}
+
+	public RowSchema(List<String> fieldNames) {
+		this.fieldNames = Collections.unmodifiableList(new ArrayList<String>(fieldNames));
+		fieldName2Ordinal = new HashMap<String, Integer>(fieldNames.size() * 2);
+		for (int i = 0; i < fieldNames.size(); i++)
+			fieldName2Ordinal.put(fieldNames.get(i), i);
+	}
+
+	/**
+	 * Returns the ordinal of a field.
+	 * 
+	 * @throws RuntimeException
+	 *             if the field is not in the schema
+	 */
+	public int getOrdinal(String fieldName) {
+		Integer ordinal = fieldName2Ordinal.get(fieldName);
+		if (ordinal == null)
+			throw new RuntimeException("Field \"" + fieldName + "\" not found");
+		return ordinal;
+	}
+
+	public boolean hasField(String fieldName) {
+		return fieldName2Ordinal.containsKey(fieldName);
+	}
+
+	/**
+	 * Returns the field names in column order.
+	 */
+	public List<String> getFieldNames() {
+		return fieldNames;
+	}
+
+	public int size() {
+		return fieldNames.size();
+	}
+
+	/**
+	 * Returns the schema with the field appended. Extensions are cached, so rows built by adding the same fields share their schema.
+	 */
+	RowSchema extend(String fieldName) {
+		RowSchema extension = extensions.get(fieldName);
+		if (extension == null) {
+			List<String> names = new ArrayList<String>(fieldNames.size() + 1);
+			names.addAll(fieldNames);
+			names.add(fieldName);
+			extension = new RowSchema(names);
+			// Field names should not be data, but if they are, do not keep every variation:
+			if (extensions.size() < MAX_EXTENSIONS)
+				extensions.put(fieldName, extension);
+		}
+		return extension;
+	}
+
+	RowSchema remove(int ordinal) {
+		List<String> names = new ArrayList<String>(fieldNames);
+		names.remove(ordinal);
+		return new RowSchema(names);
+	}
+
+	RowSchema upperCaseFieldNames() {
+		List<String> names = new ArrayList<String>(fieldNames.size());
+		for (String fieldName : fieldNames)
+			names.add(fieldName.toUpperCase());
+		return new RowSchema(names);
+	}
+}
@@ -15,43 +15,39 @@
  ******************************************************************************/
 package org.ohdsi.utilities.files;
 
-import java.io.BufferedWriter;
-import java.io.FileNotFoundException;
+import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.util.Iterator;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
+/**
+ * Writes delimited text files. Cells are escaped and appended to a reusable character buffer, which is written to the file when full. Files with names
+ * ending in .gz are gzip compressed.
+ */
 public class WriteCSVFile {
 
-	private char	delimiter	= ',';
-	private String	charSet		= "UTF-8";
+	private static final int	BUFFER_SIZE		= 65536;
+
+	private char				delimiter		= ',';
+	private String				charSet			= "UTF-8";
+	private String				lineSeparator	= System.lineSeparator();
+	private Writer				writer;
+	private char[]				buffer			= new char[BUFFER_SIZE];
+	private int					length			= 0;
+	private boolean				rowStarted		= false;
 
 	public WriteCSVFile(String filename, boolean append) {
-		FileOutputStream stream;
-		try {
-			stream = new FileOutputStream(filename, append);
-			bufferedWrite = new BufferedWriter(new OutputStreamWriter(stream, charSet), 10000);
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (UnsupportedEncodingException e) {
-			e.printStackTrace();
-		}
+		open(filename, append);
 	}
 	
 	public WriteCSVFile(String filename, String charSet, boolean append) {
 		this.charSet = charSet;
-		FileOutputStream stream;
-		try {
-			stream = new FileOutputStream(filename, append);
-			bufferedWrite = new BufferedWriter(new OutputStreamWriter(stream, charSet), 10000);
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (UnsupportedEncodingException e) {
-			e.printStackTrace();
-		}
+		open(filename, append);
 	}
 	
 	public WriteCSVFile(String filename, String charSet) {
@@ -72,52 +68,173 @@ public class WriteCSVFile {
 		this.delimiter = delimiter;
 	}
 
-	public void write(List<String> string) {
+	private void open(String filename, boolean append) {
 		try {
-			bufferedWrite.write(columns2line(string));
-			bufferedWrite.newLine();
+			OutputStream stream = new FileOutputStream(filename, append);
+			if (filename.toLowerCase().endsWith(".gz"))
+				stream = new GZIPOutputStream(stream, BUFFER_SIZE);
+			else
+				stream = new BufferedOutputStream(stream, BUFFER_SIZE);
+			writer = new OutputStreamWriter(stream, charSet);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
+	public void write(List<String> string) {
+		for (String column : string)
+			writeCell(column);
+		endRow();
+	}
+
+	/**
+	 * Appends a cell to the current row. Null is written as an empty cell.
+	 */
+	public void writeCell(String value) {
+		startCell();
+		if (value == null)
+			return;
+		int valueLength = value.length();
+		for (int i = 0; i < valueLength; i++) {
+			char ch = value.charAt(i);
+			if (ch == '\\' || ch == '"' || ch == '\r' || ch == '\n' || ch == delimiter) {
+				append(escape(value));
+				return;
+			}
+		}
+		append(value);
+	}
+
+	public void writeCell(int value) {
+		writeCell((long) value);
+	}
+
+	public void writeCell(long value) {
+		startCell();
+		if (value == Long.MIN_VALUE) {
+			append(Long.toString(value));
+			return;
+		}
+		if (length + 20 > buffer.length)
+			drain();
+		if (value < 0) {
+			buffer[length++] = '-';
+			value = -value;
+		}
+		int digits = 1;
+		for (long remainder = value / 10; remainder != 0; remainder /= 10)
+			digits++;
+		length += digits;
+		int pos = length;
+		do {
+			buffer[--pos] = (char) ('0' + (value % 10));
+			value /= 10;
+		} while (value != 0);
+	}
+
+	public void writeCell(double value) {
+		writeCell(Double.toString(value));
+	}
+
+	/**
+	 * Ends the current row.
+	 */
+	public void endRow() {
+		append(lineSeparator);
+		rowStarted = false;
+	}
+
 	public String columns2line(List<String> columns) {
 		StringBuilder sb = new StringBuilder();
 		Iterator<String> iterator = columns.iterator();
 		while (iterator.hasNext()) {
 			String column = iterator.next();
-			if (column != null) {
-				boolean hasQuotes = column.contains("\"");
-				column = column.replaceAll("\\\\", "\\\\\\\\");
-				if (hasQuotes)
-					column = column.replaceAll("\"", "\\\\\"");
-				column = column.replaceAll("\r", "");
-				column = column.replaceAll("\n", "\\\\n");
-				if (hasQuotes || column.contains(Character.toString(delimiter)))
-					column = "\"" + column + "\"";
-				sb.append(column);
-			}
+			if (column != null)
+				sb.append(escape(column));
 			if (iterator.hasNext())
 				sb.append(delimiter);
 		}
 		return sb.toString();
 	}
 
+	/**
+	 * Backslashes and quotes are escaped with a backslash, carriage returns are removed, and newlines are written as \n. Values containing quotes or the
+	 * delimiter are quoted.
+	 */
+	private String escape(String value) {
+		StringBuilder sb = new StringBuilder(value.length() + 8);
+		boolean hasQuotes = false;
+		boolean hasDelimiter = false;
+		for (int i = 0; i < value.length(); i++) {
+			char ch = value.charAt(i);
+			if (ch == '\\')
+				sb.append("\\\\");
+			else if (ch == '"') {
+				sb.append("\\\"");
+				hasQuotes = true;
+			} else if (ch == '\n')
+				sb.append("\\n");
+			else if (ch != '\r')
+				sb.append(ch);
+		}
+		for (int i = 0; i < sb.length() && !hasDelimiter; i++)
+			hasDelimiter = sb.charAt(i) == delimiter;
+		if (hasQuotes || hasDelimiter)
+			return "\"" + sb.toString() + "\"";
+		else
+			return sb.toString();
+	}
+
+	private void startCell() {
+		if (rowStarted) {
+			if (length == buffer.length)
+				drain();
+			buffer[length++] = delimiter;
+		} else
+			rowStarted = true;
+	}
+
+	private void append(String value) {
+		int valueLength = value.length();
+		if (length + valueLength > buffer.length) {
+			drain();
+			if (valueLength > buffer.length) {
+				try {
+					writer.write(value);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				return;
+			}
+		}
+		value.getChars(0, valueLength, buffer, length);
+		length += valueLength;
+	}
+
+	private void drain() {
+		try {
+			writer.write(buffer, 0, length);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		length = 0;
+	}
+
 	public void flush() {
+		drain();
 		try {
-			bufferedWrite.flush();
+			writer.flush();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
 	public void close() {
+		drain();
 		try {
-			bufferedWrite.close();
+			writer.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
-
-	private BufferedWriter	bufferedWrite;
 }
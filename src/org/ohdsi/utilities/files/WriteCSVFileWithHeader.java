@@ -15,11 +15,13 @@
  ******************************************************************************/
 package org.ohdsi.utilities.files;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Writes a CSV file with a header. Rows can be written as {@link Row} objects, where the header is taken from the first row, or cell by cell when the
+ * schema is specified up front, which avoids creating a Row per line when writing large files. Files with names ending in .gz are gzip
+ * compressed.
+ */
 public class WriteCSVFileWithHeader {
 	
 	private WriteCSVFile	out;
@@ -47,11 +49,51 @@ public class WriteCSVFileWithHeader {
 		headerWritten = false;
 	}
 	
+	/**
+	 * Creates a file with the given header. Rows are written by adding their cells in the order of the field names, and calling {@link #endRow()}.
+	 */
+	public WriteCSVFileWithHeader(String filename, RowSchema schema) {
+		out = new WriteCSVFile(filename);
+		writeHeader(schema);
+	}
+
+	/**
+	 * Writes the header, for when the field names are only known after the file has been created. Rows are written by adding their cells in the order of
+	 * the field names, and calling {@link #endRow()}.
+	 */
+	public void writeHeader(RowSchema schema) {
+		out.write(schema.getFieldNames());
+		headerWritten = true;
+	}
+
+	public void add(String value) {
+		out.writeCell(value);
+	}
+
+	public void add(int value) {
+		out.writeCell(value);
+	}
+
+	public void add(long value) {
+		out.writeCell(value);
+	}
+
+	public void add(double value) {
+		out.writeCell(value);
+	}
+
+	/**
+	 * Ends the row started by the cells added since the previous row.
+	 */
+	public void endRow() {
+		out.endRow();
+	}
+
 	public void write(Row row) {
 		if (threadSafe)
 			lock.lock();
 		if (!headerWritten)
-			writeHeader(row);
+			writeHeader(row.getSchema());
 		out.write(row.getCells());
 		if (threadSafe)
 			lock.unlock();
@@ -78,16 +120,4 @@ public class WriteCSVFileWithHeader {
 	public boolean getThreadSafe() {
 		return threadSafe;
 	}
-	
-	private void writeHeader(Row row) {
-		headerWritten = true;
-		Map<String, Integer> fieldName2ColumnIndex = row.getfieldName2ColumnIndex();
-		int size = fieldName2ColumnIndex.size();
-		List<String> header = new ArrayList<String>(size);
-		for (int i = 0; i < size; i++)
-			header.add(null);
-		for (Map.Entry<String, Integer> entry : fieldName2ColumnIndex.entrySet())
-			header.set(entry.getValue(), entry.getKey());
-		out.write(header);
-	}
 }